@@ -0,0 +1,157 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Columnas calculadas de la conciliación para un grupo típico (una factura con tres pagos): el cálculo
+ * anterior con BigDecimal por fila (restas, división y totales en HashMap) contra ConciliacionCalculo
+ * con centavos en long. Se mide el cálculo y el texto de los montos, no el armado de la línea ni el
+ * driver. Con -prof gc se ve la diferencia de asignaciones por grupo.
+ *
+ * mvn -Pbenchmark test-compile exec:java -Dexec.args="ConciliacionCalculo -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConciliacionCalculoBenchmark {
+
+  private static final String[] COLUMNAS = columnas();
+
+  private List<ConciliacionFila> grupo;
+  private ConciliacionCalculo calculo;
+
+  @Setup
+  public void setup() throws SQLException {
+    ConciliacionFila.Lector lector = new ConciliacionFila.Lector();
+    grupo = List.of(
+        lector.leer(resultSet(fila("FE-10234", "Auditado", "1500000.00", "200000.00", "1300000.00", "0.00", "1000000.00", "76.92"))),
+        lector.leer(resultSet(fila("FE-10234", "Auditado", "1500000.00", "200000.00", "1300000.00", "0.00", "250000.00", "19.23"))),
+        lector.leer(resultSet(fila("FE-10234", "Auditado", "1500000.00", "200000.00", "1300000.00", "0.00", "50000.00", "3.85"))));
+    calculo = new ConciliacionCalculo(ConciliacionCalculo.Formulas.CSV);
+  }
+
+  @Benchmark
+  public void antes(Blackhole bh) {
+    Map<String, BigDecimal[]> totales = new HashMap<>(4);
+    for (ConciliacionFila r : grupo) {
+      BigDecimal[] t = totales.computeIfAbsent(r.texto(ConciliacionFila.FACTURA), k -> new BigDecimal[] { BigDecimal.ZERO, BigDecimal.ZERO });
+      t[0] = t[0].add(montoOCero(r, ConciliacionFila.VALOR_FACTURA));
+      t[1] = t[1].add(montoOCero(r, ConciliacionFila.VALOR_PAGADO));
+    }
+    for (ConciliacionFila r : grupo) {
+      BigDecimal[] t = totales.get(r.texto(ConciliacionFila.FACTURA));
+      BigDecimal valorFactura = montoOCero(r, ConciliacionFila.VALOR_FACTURA);
+      BigDecimal valorRatConc = montoOCero(r, ConciliacionFila.VALOR_RATIFICADO_CONCILIACION);
+      BigDecimal valorActAcept = montoOCero(r, ConciliacionFila.VALOR_ACTUAL_ACEPTADO);
+      BigDecimal valorActRecon = montoOCero(r, ConciliacionFila.VALOR_ACTUAL_RECONOCIDO);
+      BigDecimal valorFinalRat = montoOCero(r, ConciliacionFila.VALOR_FINAL_RATIFICADO);
+      BigDecimal valorPagado = montoOCero(r, ConciliacionFila.VALOR_PAGADO);
+      BigDecimal pctPago = montoOCero(r, ConciliacionFila.PORCENTAJE_PAGO);
+      for (int i = 0; i < ConciliacionFila.MONTOS.length; i++) bh.consume(String.valueOf(r.monto(i)));
+      bh.consume(String.valueOf(valorFactura.subtract(valorRatConc).subtract(valorActAcept).subtract(valorActRecon)));
+      bh.consume(String.valueOf(valorFactura.subtract(valorFinalRat).subtract(valorRatConc).subtract(valorActRecon)));
+      bh.consume(String.valueOf(valorActAcept.subtract(valorFinalRat)));
+      String auditoria = ConciliacionCalculo.estadoAuditoria(r.texto(ConciliacionFila.ESTADO_APLICACION));
+      bh.consume(auditoria);
+      bh.consume(valorPagado.compareTo(BigDecimal.ZERO) > 0 && pctPago.compareTo(new BigDecimal("100")) == 0);
+      BigDecimal porcAplicado = BigDecimal.ZERO;
+      if (t[0].compareTo(BigDecimal.ZERO) != 0) {
+        porcAplicado = t[1].divide(t[0], 6, RoundingMode.HALF_UP).multiply(new BigDecimal("100"));
+      }
+      bh.consume(String.valueOf(porcAplicado.setScale(2, RoundingMode.HALF_UP)));
+    }
+  }
+
+  @Benchmark
+  public void despues(Blackhole bh) {
+    calculo.grupo(grupo);
+    for (ConciliacionFila r : grupo) {
+      calculo.calcular(r);
+      for (int i = 0; i < ConciliacionFila.MONTOS.length; i++) bh.consume(String.valueOf(r.monto(i)));
+      bh.consume(ConciliacionCalculo.texto(calculo.enTramite));
+      bh.consume(ConciliacionCalculo.texto(calculo.estadoSaldo));
+      bh.consume(ConciliacionCalculo.texto(calculo.saldoSinGlosas));
+      bh.consume(calculo.auditoria);
+      bh.consume(calculo.aplicacion);
+      bh.consume(ConciliacionCalculo.texto(calculo.porcAplicadoCentesimas()));
+    }
+  }
+
+  private static BigDecimal montoOCero(ConciliacionFila r, int i) {
+    BigDecimal v = r.monto(i);
+    return v == null ? BigDecimal.ZERO : v;
+  }
+
+  // ===== ResultSet en memoria (una fila fija) =====
+
+  private static Object[] fila(String factura, String estadoAplicacion, String valorFactura, String actualAceptado,
+      String actualReconocido, String finalRatificado, String pagado, String porcentaje) {
+    Object[] fila = new Object[COLUMNAS.length];
+    for (int i = 0; i < ConciliacionFila.TEXTOS.length; i++) fila[i] = "valor_" + i;
+    fila[ConciliacionFila.ID] = "123456";
+    fila[ConciliacionFila.NIT] = "900123456";
+    fila[ConciliacionFila.FACTURA] = factura;
+    fila[ConciliacionFila.ESTADO_APLICACION] = estadoAplicacion;
+    int m = ConciliacionFila.TEXTOS.length;
+    for (int i = 0; i < ConciliacionFila.MONTOS.length; i++) fila[m + i] = new BigDecimal("0.00");
+    fila[m + ConciliacionFila.VALOR_FACTURA] = new BigDecimal(valorFactura);
+    fila[m + ConciliacionFila.VALOR_ACTUAL_ACEPTADO] = new BigDecimal(actualAceptado);
+    fila[m + ConciliacionFila.VALOR_ACTUAL_RECONOCIDO] = new BigDecimal(actualReconocido);
+    fila[m + ConciliacionFila.VALOR_FINAL_RATIFICADO] = new BigDecimal(finalRatificado);
+    fila[m + ConciliacionFila.VALOR_PAGADO] = new BigDecimal(pagado);
+    fila[m + ConciliacionFila.PORCENTAJE_PAGO] = new BigDecimal(porcentaje);
+    return fila;
+  }
+
+  private static String[] columnas() {
+    String[] columnas = new String[ConciliacionFila.TEXTOS.length + ConciliacionFila.MONTOS.length];
+    System.arraycopy(ConciliacionFila.TEXTOS, 0, columnas, 0, ConciliacionFila.TEXTOS.length);
+    System.arraycopy(ConciliacionFila.MONTOS, 0, columnas, ConciliacionFila.TEXTOS.length, ConciliacionFila.MONTOS.length);
+    return columnas;
+  }
+
+  private static ResultSet resultSet(Object[] fila) {
+    ResultSetMetaData md = (ResultSetMetaData) Proxy.newProxyInstance(
+        ResultSetMetaData.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, (p, m, args) -> switch (m.getName()) {
+          case "getColumnCount" -> COLUMNAS.length;
+          case "getColumnLabel", "getColumnName" -> COLUMNAS[(Integer) args[0] - 1].toLowerCase(Locale.ROOT);
+          case "getScale" -> (Integer) args[0] > ConciliacionFila.TEXTOS.length ? 2 : 0;
+          default -> throw new UnsupportedOperationException(m.getName());
+        });
+    return (ResultSet) Proxy.newProxyInstance(
+        ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (p, m, args) -> {
+          if (m.getName().equals("getMetaData")) return md;
+          Object v = fila[(Integer) args[0] - 1];
+          return switch (m.getName()) {
+            case "getObject", "getBigDecimal" -> v;
+            case "getString" -> v == null ? null : v.toString();
+            default -> throw new UnsupportedOperationException(m.getName());
+          };
+        });
+  }
+}
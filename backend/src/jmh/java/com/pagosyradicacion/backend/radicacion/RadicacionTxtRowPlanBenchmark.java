@@ -0,0 +1,162 @@
+package com.pagosyradicacion.backend.radicacion;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Costo por fila del TXT de radicación: mapeo anterior (búsqueda por nombre, DATE_COLUMNS.contains por
+ * celda, parseos con excepciones) contra el plan compilado por índice. El ResultSet es un proxy en
+ * memoria con una fila típica de radicacion_filtrada, así se mide solo el mapeo y no el driver.
+ *
+ * mvn -Pbenchmark test-compile exec:java -Dexec.args="RadicacionTxtRowPlan"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RadicacionTxtRowPlanBenchmark {
+
+  private static final Set<String> DATE_COLUMNS = Set.of("fecha_radicacion", "fecha_factura", "feccha_pago", "fecha_pago");
+  private static final String[] COLUMNAS = {
+      "id", "modalidad_pago", "nit", "nom_prestador", "tipo_red", "departamento", "municipio", "prefijo", "factura",
+      "prefijo_factura", "mes_radicacion", "estado_aplicacion", "fecha_radicacion", "rango_dias", "fecha_factura",
+      "valor_factura", "valor_iva", "nota_credito", "valor_glosa_inicial", "valor_no_glosado_inicial",
+      "valor_aceptado_primera_respuesta", "valor_levantado_primera_respuesta", "valor_ratificado_primera_respuesta",
+      "valor_aceptado_segunda_respuesta", "valor_levantado_segunda_respuesta", "valor_ratificado_segunda_respuesta",
+      "valor_aceptado_conciliacion", "valor_levantado_conciliacion", "valor_ratificado_conciliacion",
+      "valor_actual_aceptado", "valor_actual_reconocido", "valor_final_ratificado", "valor_pagado", "porcentaje_pago",
+      "estado", "voucher", "feccha_pago", "id_fomag", "nit_norm", "voucher_norm"
+  };
+
+  private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final DateTimeFormatter DMY_DATE = DateTimeFormatter.ofPattern("d/M/uuuu");
+  private static final DateTimeFormatter DMY_DATE_TIME = DateTimeFormatter.ofPattern("d/M/uuuu HH:mm[:ss]");
+
+  private ResultSet rs;
+  private RadicacionTxtRowPlan plan;
+  private StringBuilder linea;
+
+  @Setup
+  public void setup() throws SQLException {
+    Object[] fila = new Object[COLUMNAS.length];
+    int[] tipos = new int[COLUMNAS.length];
+    for (int i = 0; i < COLUMNAS.length; i++) {
+      fila[i] = "valor_" + i;
+      tipos[i] = Types.VARCHAR;
+    }
+    fila[0] = "123456";
+    fila[2] = "900123456";
+    fila[15] = "1500000.00";
+    set(fila, tipos, "fecha_radicacion", Timestamp.valueOf(LocalDateTime.of(2024, 3, 15, 10, 30, 0)), Types.TIMESTAMP);
+    set(fila, tipos, "fecha_factura", java.sql.Date.valueOf(LocalDate.of(2024, 2, 28)), Types.DATE);
+    // feccha_pago suele llegar como texto dd/MM/yyyy: en el mapeo anterior cuesta dos parseos fallidos
+    set(fila, tipos, "feccha_pago", "05/04/2024", Types.VARCHAR);
+    fila[indice("nit_norm")] = null;
+    fila[indice("voucher_norm")] = null;
+
+    rs = resultSet(fila, tipos);
+    plan = RadicacionTxtRowPlan.compilar(rs.getMetaData(), COLUMNAS, DATE_COLUMNS);
+    linea = new StringBuilder(512);
+  }
+
+  @Benchmark
+  public String antes() throws SQLException {
+    String[] values = new String[COLUMNAS.length];
+    for (int i = 0; i < COLUMNAS.length; i++) {
+      values[i] = extractColumnAnterior(rs, COLUMNAS[i]);
+    }
+    return String.join("|", values);
+  }
+
+  @Benchmark
+  public int despues() throws SQLException {
+    plan.escribir(rs, linea);
+    return linea.length();
+  }
+
+  // ===== Mapeo anterior (copia de RadicacionService antes del plan compilado) =====
+
+  private static String extractColumnAnterior(ResultSet rs, String column) throws SQLException {
+    if (DATE_COLUMNS.contains(column)) {
+      return formatAnyDateAnterior(rs.getObject(column));
+    }
+    String value = rs.getString(column);
+    return value == null ? "" : value.replace('|', '/');
+  }
+
+  private static String formatAnyDateAnterior(Object o) {
+    try {
+      if (o == null) return "";
+      if (o instanceof Timestamp ts) return ts.toLocalDateTime().format(DATE_TIME_FORMATTER);
+      if (o instanceof java.sql.Date d) return d.toLocalDate().atStartOfDay().format(DATE_TIME_FORMATTER);
+      String s = String.valueOf(o).trim();
+      if (s.isEmpty()) return "";
+      try { return LocalDateTime.parse(s, DATE_TIME_FORMATTER).format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      try { return LocalDate.parse(s).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      try { return LocalDateTime.parse(s, DMY_DATE_TIME).format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      try { return LocalDate.parse(s, DMY_DATE).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      try { return LocalDate.parse(s.replace('-', '/'), DMY_DATE).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      return s;
+    } catch (Exception e) {
+      return "";
+    }
+  }
+
+  // ===== ResultSet en memoria (una fila fija) =====
+
+  private static int indice(String columna) {
+    for (int i = 0; i < COLUMNAS.length; i++) {
+      if (COLUMNAS[i].equals(columna)) return i;
+    }
+    throw new IllegalArgumentException(columna);
+  }
+
+  private static void set(Object[] fila, int[] tipos, String columna, Object valor, int tipo) {
+    int i = indice(columna);
+    fila[i] = valor;
+    tipos[i] = tipo;
+  }
+
+  private static ResultSet resultSet(Object[] fila, int[] tipos) {
+    ResultSetMetaData md = (ResultSetMetaData) Proxy.newProxyInstance(
+        ResultSetMetaData.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, (p, m, args) -> switch (m.getName()) {
+          case "getColumnCount" -> COLUMNAS.length;
+          case "getColumnLabel", "getColumnName" -> COLUMNAS[(Integer) args[0] - 1];
+          case "getColumnType" -> tipos[(Integer) args[0] - 1];
+          default -> throw new UnsupportedOperationException(m.getName());
+        });
+    return (ResultSet) Proxy.newProxyInstance(
+        ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (p, m, args) -> {
+          if (m.getName().equals("getMetaData")) return md;
+          int i = args[0] instanceof Integer n ? n - 1 : indice((String) args[0]);
+          Object v = fila[i];
+          return switch (m.getName()) {
+            case "getObject", "getTimestamp", "getDate" -> v;
+            case "getString" -> v == null ? null : v.toString();
+            default -> throw new UnsupportedOperationException(m.getName());
+          };
+        });
+  }
+}
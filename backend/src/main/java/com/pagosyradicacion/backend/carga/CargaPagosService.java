@@ -19,13 +19,17 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
 
+import com.pagosyradicacion.backend.listatareas.ListaTareasSnapshot;
+
 @Service
 public class CargaPagosService {
 
   private final JdbcTemplate jdbc;
+  private final ListaTareasSnapshot listaTareas;
 
-  public CargaPagosService(JdbcTemplate jdbc) {
+  public CargaPagosService(JdbcTemplate jdbc, ListaTareasSnapshot listaTareas) {
     this.jdbc = jdbc;
+    this.listaTareas = listaTareas;
   }
 
   @Transactional
@@ -46,6 +50,7 @@ public class CargaPagosService {
       validarDatosCriticos();
       validarDuplicados(tablaDestino);
       insertarDefinitivo(tablaDestino);
+      listaTareas.invalidar(ListaTareasSnapshot.Parte.PAGOS);
       dropStaging();
       return "Archivo cargado correctamente a " + (tipo.equals("capita") ? "Pagos Cápita" : "Pagos");
     } catch (RuntimeException  ex) {
@@ -21,6 +21,8 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.pagosyradicacion.backend.listatareas.ListaTareasSnapshot;
+
 @Service
 public class CargaRadicacionCapitaService {
 
@@ -30,8 +32,12 @@ public class CargaRadicacionCapitaService {
   private static final String STAGING_TABLE = "radicacion_capita_staging_app";
 
   private final JdbcTemplate jdbc;
+  private final ListaTareasSnapshot listaTareas;
 
-  public CargaRadicacionCapitaService(JdbcTemplate jdbc) { this.jdbc = jdbc; }
+  public CargaRadicacionCapitaService(JdbcTemplate jdbc, ListaTareasSnapshot listaTareas) {
+    this.jdbc = jdbc;
+    this.listaTareas = listaTareas;
+  }
 
   @Transactional
   public String cargarCsvReemplazando(MultipartFile archivo) {
@@ -165,6 +171,7 @@ public class CargaRadicacionCapitaService {
     for (int i = 0; i < common.size(); i++) { if (i>0) ins.append(','); ins.append('[').append(common.get(i)).append(']'); }
     ins.append(" FROM ").append(STAGING_SCHEMA).append('.').append(STAGING_TABLE);
     jdbc.execute(ins.toString());
+    listaTareas.invalidar(ListaTareasSnapshot.Parte.PAGOS);
 
     return "Registros cargados en staging: " + rows.size() + ". Reemplazo total de " + FINAL_TABLE + " completado.";
   }
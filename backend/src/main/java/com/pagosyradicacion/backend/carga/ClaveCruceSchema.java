@@ -0,0 +1,116 @@
+package com.pagosyradicacion.backend.carga;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Clave de cruce MODALIDAD|ID|NIT persistida e indexada en pagos y radicacion3.
+ * Es una columna calculada PERSISTED: SQL Server la mantiene en cada INSERT/UPDATE de las cargas,
+ * así el rebuild de radicacion_filtrada hace un seek-join en lugar de concatenar en cada fila.
+ * El separador '|' evita los falsos cruces de la concatenación directa (p.ej. ID 12 + NIT 3 vs ID 1 + NIT 23).
+ * La columna y su índice se crean con db/migracion/004_clave_cruce.sql (una sola vez, fuera de las cargas y
+ * del rebuild). Al arrancar solo se revisa el catálogo; con radicacion.schema.auto-migrar=true se aplica aquí
+ * lo que falte.
+ */
+@Component
+public class ClaveCruceSchema {
+
+  private static final Logger log = LoggerFactory.getLogger(ClaveCruceSchema.class);
+
+  public static final String COLUMNA = "clave_cruce";
+
+  // Tabla -> columna de la modalidad con la que se arma la clave
+  private static final Map<String, String> TABLAS = new LinkedHashMap<>();
+  static {
+    TABLAS.put("pagos", "modalidad");
+    TABLAS.put("radicacion3", "modalidad_pago");
+  }
+
+  // Tablas existentes a las que les falta la columna o su índice; una consulta al catálogo, sin DDL
+  private static final String PENDIENTES_SQL = """
+      SELECT v.t
+      FROM (VALUES %s) v(t)
+      WHERE OBJECT_ID('dbo.' + v.t, 'U') IS NOT NULL
+        AND (COL_LENGTH('dbo.' + v.t, '%s') IS NULL
+             OR NOT EXISTS (SELECT 1 FROM sys.indexes i
+                            WHERE i.object_id = OBJECT_ID('dbo.' + v.t) AND i.name = 'IX_' + v.t + '_%2$s'))
+      """;
+
+  private final JdbcTemplate jdbc;
+  private final boolean autoMigrar;
+  private final AtomicBoolean verificado = new AtomicBoolean(false);
+  private volatile boolean listo = false;
+
+  public ClaveCruceSchema(JdbcTemplate jdbc,
+      @Value("${radicacion.schema.auto-migrar:false}") boolean autoMigrar) {
+    this.jdbc = jdbc;
+    this.autoMigrar = autoMigrar;
+  }
+
+  /**
+   * Revisa el catálogo una vez por proceso; las llamadas siguientes no van a la base. Si falta la columna o
+   * el índice los crea solo con auto-migrar; si no, avisa qué script correr (y hay que reiniciar después).
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void asegurar() {
+    if (verificado.get()) return;
+    synchronized (this) {
+      if (verificado.get()) return;
+      try {
+        List<String> pendientes = pendientes();
+        if (!pendientes.isEmpty() && autoMigrar) {
+          log.info("Creando {} en {} (radicacion.schema.auto-migrar=true)", COLUMNA, pendientes);
+          for (String tabla : pendientes) {
+            asegurarTabla(tabla, TABLAS.get(tabla));
+          }
+          pendientes = pendientes();
+        }
+        if (pendientes.isEmpty()) {
+          listo = true;
+        } else {
+          log.error("Falta la columna {} o su índice en {}: ejecutar db/migracion/004_clave_cruce.sql y reiniciar",
+              COLUMNA, pendientes);
+        }
+        verificado.set(true);
+      } catch (Exception ex) {
+        // Sin marcar como revisado: la próxima llamada vuelve a intentarlo (p. ej. la base no respondía)
+        log.warn("No se pudo revisar la columna {}: {}", COLUMNA, ex.getMessage());
+      }
+    }
+  }
+
+  /** true si la última revisión encontró la columna e índice en pagos y radicacion3. */
+  public boolean listo() {
+    return listo;
+  }
+
+  private List<String> pendientes() {
+    String valores = TABLAS.keySet().stream().map(t -> "('" + t + "')").collect(Collectors.joining(", "));
+    return jdbc.queryForList(PENDIENTES_SQL.formatted(valores, COLUMNA), String.class);
+  }
+
+  private void asegurarTabla(String tabla, String columnaModalidad) {
+    jdbc.execute("""
+      IF OBJECT_ID('dbo.%1$s','U') IS NOT NULL AND COL_LENGTH('dbo.%1$s', '%3$s') IS NULL
+        ALTER TABLE dbo.%1$s ADD %3$s AS (
+          CAST(%2$s AS VARCHAR(100)) + '|' + CAST(id AS VARCHAR(50)) + '|' + CAST(nit AS VARCHAR(50))
+        ) PERSISTED;
+    """.formatted(tabla, columnaModalidad, COLUMNA));
+    jdbc.execute("""
+      IF OBJECT_ID('dbo.%1$s','U') IS NOT NULL
+         AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_%1$s_%2$s' AND object_id = OBJECT_ID('dbo.%1$s'))
+        CREATE INDEX IX_%1$s_%2$s ON dbo.%1$s (%2$s);
+    """.formatted(tabla, COLUMNA));
+  }
+}
@@ -20,6 +20,8 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.pagosyradicacion.backend.listatareas.ListaTareasSnapshot;
+
 @Service
 public class CorreccionPagosService {
 
@@ -27,9 +29,11 @@ public class CorreccionPagosService {
   private static final DateTimeFormatter DMY_SLASH = DateTimeFormatter.ofPattern("d/M/uuuu");
 
   private final JdbcTemplate jdbc;
+  private final ListaTareasSnapshot listaTareas;
 
-  public CorreccionPagosService(JdbcTemplate jdbc) {
+  public CorreccionPagosService(JdbcTemplate jdbc, ListaTareasSnapshot listaTareas) {
     this.jdbc = jdbc;
+    this.listaTareas = listaTareas;
   }
 
   public String cargarCorreccionCsv(MultipartFile archivo, String usuario, String tipo) {
@@ -101,6 +105,7 @@ public class CorreccionPagosService {
         }
       }
       int affected = ejecutarUpdate(tablaDestino, loteId);
+      if (affected > 0) listaTareas.invalidar(ListaTareasSnapshot.Parte.PAGOS);
       int noEncontrados = jdbc.queryForObject(("SELECT COUNT(*) FROM CorreccionPagosTmp tmp " +
           "LEFT JOIN %s p ON LTRIM(RTRIM(CAST(p.id_fomag AS NVARCHAR(50)))) = LTRIM(RTRIM(CAST(tmp.id_fomag AS NVARCHAR(50)))) " +
           "WHERE p.id_fomag IS NULL AND tmp.lote_id = ?").formatted(tablaDestino), Integer.class, loteId);
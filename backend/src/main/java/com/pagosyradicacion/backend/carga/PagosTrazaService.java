@@ -20,10 +20,13 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.pagosyradicacion.backend.listatareas.ListaTareasSnapshot;
+
 @Service
 public class PagosTrazaService {
   private final JdbcTemplate jdbc;
-  public PagosTrazaService(JdbcTemplate jdbc){ this.jdbc = jdbc; }
+  private final ListaTareasSnapshot listaTareas;
+  public PagosTrazaService(JdbcTemplate jdbc, ListaTareasSnapshot listaTareas){ this.jdbc = jdbc; this.listaTareas = listaTareas; }
 
   @Transactional
   public String cargarCsv(MultipartFile archivo) {
@@ -46,6 +49,7 @@ public class PagosTrazaService {
 
     insertStaging(model.rows, fuente);
     moveStagingToFinal(fuente);
+    listaTareas.invalidar(ListaTareasSnapshot.Parte.TRAZA);
     // Limpieza staging de esta fuente
     jdbc.update("DELETE FROM dbo.pagos_traza_staging WHERE fuente_archivo = ?", fuente);
     return "Reporte reemplazado: pagos_traza limpiada e insertada desde staging.";
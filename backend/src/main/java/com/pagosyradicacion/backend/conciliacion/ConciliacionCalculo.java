@@ -0,0 +1,193 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Columnas calculadas de la conciliación, una sola implementación para el CSV y el XLSX:
+ * AG En_tramite, AM Estado_Saldo, AN Saldo_Sin_Glosas, AO Estado de Auditoría, AP Estado Aplicación Pagos
+ * y AQ % Pagos Aplicado. Los dos formatos no usan las mismas fórmulas y se conserva esa diferencia:
+ *
+ * Formulas.XLSX, las que lleva el libro (Excel las recalcula al abrirlo):
+ *   AG = P - AD - AE - AF   (valor_factura - Valor_actual_aceptado - valor_actual_reconocido - valor_final_ratificado)
+ *   AM = P - AH - AD - AF   (valor_factura - valor_pagado - Valor_actual_aceptado - valor_final_ratificado)
+ *   AN = AE - AH            (valor_actual_reconocido - valor_pagado)
+ *   AQ = SUMIF(I:I,I2,AH:AH)/SUMIF(I:I,I2,P:P), factura sin distinguir mayúsculas
+ *
+ * Formulas.CSV, las que el CSV ha entregado siempre (AC = valor_ratificado_conciliacion):
+ *   En_tramite       = P - AC - AD - AE
+ *   Estado_Saldo     = P - AF - AC - AE
+ *   Saldo_Sin_Glosas = AD - AF
+ *   Porc_Pagos_Aplicado por factura exacta (distingue mayúsculas)
+ *
+ * Los montos se operan como centavos en long (ConciliacionFila.centavos), sin BigDecimal por fila. Una
+ * instancia se reutiliza fila a fila dentro de una exportación: grupo() fija los totales por factura del
+ * grupo y calcular() deja los resultados de la fila en los campos.
+ */
+final class ConciliacionCalculo {
+
+  static final String EN_TRAMITE_AUDITORIA = "En tr\u00E1mite de Auditor\u00EDa";
+  static final String AUDITORIA_TERMINADA = "Auditor\u00EDa Terminada";
+  static final String POSTULACION_GIRO_PREVIO = "Postulacion en Giro Previo";
+  static final String NO_PAGADO = "No Pagado";
+  static final String LEGALIZADO_100 = "Legalizado 100%";
+  static final String LEGALIZADO_PARCIAL = "Legalizado Parcial";
+
+  // porcentaje_pago = 100.00
+  private static final long CIEN_POR_CIENTO = 100_00L;
+
+  /** Juego de fórmulas: el de cada formato (ver arriba). */
+  enum Formulas { CSV, XLSX }
+
+  private final Formulas formulas;
+
+  // Resultados de la última fila calculada (centavos)
+  long enTramite;
+  long estadoSaldo;
+  long saldoSinGlosas;
+  String auditoria;
+  String aplicacion;
+  // SUMIF de la factura de la fila: valor_pagado y valor_factura (centavos)
+  long totalPagado;
+  long totalFactura;
+
+  // Totales del grupo por factura sin distinguir mayúsculas (como SUMIF); casi siempre hay una sola
+  private String[] claves = new String[4];
+  private long[] pagados = new long[4];
+  private long[] facturas = new long[4];
+  private int distintas;
+
+  ConciliacionCalculo(Formulas formulas) {
+    this.formulas = formulas;
+  }
+
+  /** Acumula los totales por factura de las filas de un grupo (las que llegan juntas por el ORDER BY). */
+  void grupo(List<ConciliacionFila> filas) {
+    distintas = 0;
+    for (ConciliacionFila r : filas) {
+      String clave = clave(r);
+      int i = indice(clave);
+      if (i < 0) i = agregar(clave);
+      pagados[i] += r.centavos(ConciliacionFila.VALOR_PAGADO);
+      facturas[i] += r.centavos(ConciliacionFila.VALOR_FACTURA);
+    }
+  }
+
+  /** Calcula las columnas de una fila del último grupo. */
+  void calcular(ConciliacionFila r) {
+    long p = r.centavos(ConciliacionFila.VALOR_FACTURA);
+    long ad = r.centavos(ConciliacionFila.VALOR_ACTUAL_ACEPTADO);
+    long ae = r.centavos(ConciliacionFila.VALOR_ACTUAL_RECONOCIDO);
+    long af = r.centavos(ConciliacionFila.VALOR_FINAL_RATIFICADO);
+    long ah = r.centavos(ConciliacionFila.VALOR_PAGADO);
+    if (formulas == Formulas.XLSX) {
+      enTramite = p - ad - ae - af;
+      estadoSaldo = p - ah - ad - af;
+      saldoSinGlosas = ae - ah;
+    } else {
+      long ac = r.centavos(ConciliacionFila.VALOR_RATIFICADO_CONCILIACION);
+      enTramite = p - ac - ad - ae;
+      estadoSaldo = p - af - ac - ae;
+      saldoSinGlosas = ad - af;
+    }
+    auditoria = estadoAuditoria(r.texto(ConciliacionFila.ESTADO_APLICACION));
+    aplicacion = estadoAplicacionPagos(auditoria, ah, r.centavos(ConciliacionFila.PORCENTAJE_PAGO));
+    int i = indice(clave(r));
+    totalPagado = i < 0 ? 0L : pagados[i];
+    totalFactura = i < 0 ? 0L : facturas[i];
+  }
+
+  /** AQ como fracción (celda con formato %); NaN si la factura suma 0, que en Excel es #DIV/0!. */
+  double porcAplicado() {
+    return totalFactura == 0 ? Double.NaN : (double) totalPagado / (double) totalFactura;
+  }
+
+  /**
+   * AQ como porcentaje en centésimas (45.67% = 4567) para el CSV: la fracción se redondea a 6 decimales
+   * y el porcentaje a 2, ambos HALF_UP. 0 si la factura suma 0.
+   */
+  long porcAplicadoCentesimas() {
+    if (totalFactura == 0) return 0L;
+    long millonesimas;
+    try {
+      millonesimas = dividirRedondeando(Math.multiplyExact(totalPagado, 1_000_000L), totalFactura);
+    } catch (ArithmeticException desborde) {
+      millonesimas = BigDecimal.valueOf(totalPagado).multiply(BigDecimal.valueOf(1_000_000L))
+          .divide(BigDecimal.valueOf(totalFactura), 0, RoundingMode.HALF_UP).longValueExact();
+    }
+    return dividirRedondeando(millonesimas, 100L);
+  }
+
+  static String estadoAuditoria(String estadoAplicacion) {
+    if (estadoAplicacion == null) return EN_TRAMITE_AUDITORIA;
+    String s = estadoAplicacion.trim().toLowerCase(Locale.ROOT);
+    if (s.contains("auditado")) return AUDITORIA_TERMINADA; // incluye "Auditado" y "Auditado con Glosas"
+    return EN_TRAMITE_AUDITORIA;
+  }
+
+  // Fórmula de AP (Estado Aplicación Pagos); valorPagado y porcentajePago en centavos
+  static String estadoAplicacionPagos(String estadoAuditoria, long valorPagado, long porcentajePago) {
+    boolean pagadoPos = valorPagado > 0;
+    if (EN_TRAMITE_AUDITORIA.equals(estadoAuditoria)) {
+      return pagadoPos ? POSTULACION_GIRO_PREVIO : NO_PAGADO;
+    }
+    if (!pagadoPos) return NO_PAGADO;
+    if (AUDITORIA_TERMINADA.equals(estadoAuditoria)) {
+      return porcentajePago == CIEN_POR_CIENTO ? LEGALIZADO_100 : LEGALIZADO_PARCIAL;
+    }
+    return NO_PAGADO;
+  }
+
+  /**
+   * Texto de un valor con 2 decimales (centavos o centésimas), igual al del BigDecimal de escala 2 que
+   * armaba el CSV. Es la única instancia por columna: el toString de un BigDecimal compacto ya es barato.
+   */
+  static String texto(long centavos) {
+    return BigDecimal.valueOf(centavos, 2).toString();
+  }
+
+  /** Centavos a double para las celdas numéricas del XLSX. */
+  static double valor(long centavos) {
+    return centavos / 100d;
+  }
+
+  // a / b redondeando HALF_UP (lejos de cero en el empate), igual que BigDecimal
+  private static long dividirRedondeando(long a, long b) {
+    long q = a / b;
+    long resto = a % b;
+    if (resto == 0) return q;
+    // |resto| * 2 >= |b| sin desbordar
+    if (Math.abs(resto) >= Math.abs(b) - Math.abs(resto)) {
+      return (a < 0) == (b < 0) ? q + 1 : q - 1;
+    }
+    return q;
+  }
+
+  // SUMIF del XLSX no distingue mayúsculas; el CSV agrupa por la factura tal cual
+  private String clave(ConciliacionFila r) {
+    String factura = r.texto(ConciliacionFila.FACTURA);
+    return formulas == Formulas.XLSX ? factura.toLowerCase(Locale.ROOT) : factura;
+  }
+
+  private int indice(String clave) {
+    for (int i = 0; i < distintas; i++) {
+      if (claves[i].equals(clave)) return i;
+    }
+    return -1;
+  }
+
+  private int agregar(String clave) {
+    if (distintas == claves.length) {
+      claves = Arrays.copyOf(claves, distintas * 2);
+      pagados = Arrays.copyOf(pagados, distintas * 2);
+      facturas = Arrays.copyOf(facturas, distintas * 2);
+    }
+    claves[distintas] = clave;
+    pagados[distintas] = 0L;
+    facturas[distintas] = 0L;
+    return distintas++;
+  }
+}
@@ -7,23 +7,40 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping("/api/v1/conciliacion")
 public class ConciliacionController {
 
   private final ConciliacionService service;
+  private final ConciliacionLoteService loteService;
+  private final ConciliacionExportCache cache;
   private final com.pagosyradicacion.backend.listatareas.ListaTareasService listaService;
 
-  public ConciliacionController(ConciliacionService service, com.pagosyradicacion.backend.listatareas.ListaTareasService listaService) {
-    this.service = service; this.listaService = listaService; }
+  public ConciliacionController(ConciliacionService service, ConciliacionLoteService loteService,
+      ConciliacionExportCache cache, com.pagosyradicacion.backend.listatareas.ListaTareasService listaService) {
+    this.service = service; this.loteService = loteService; this.cache = cache; this.listaService = listaService; }
 
+  // El XLSX se escribe directo sobre la respuesta mientras llegan las filas (sin byte[] intermedio);
+  // una descarga repetida del mismo NIT sale de ConciliacionExportCache.
+  // estadoCuenta (formulas | valores | ambos) reemplaza conciliacion.xlsx.estado-cuenta para esta descarga.
   @GetMapping(value = "/export")
-  public ResponseEntity<byte[]> export(@RequestParam String nit) {
-    byte[] xlsx = service.exportXlsxPorNit(nit);
+  public ResponseEntity<StreamingResponseBody> export(@RequestParam String nit,
+      @RequestParam(required = false) String estadoCuenta) {
+    ConciliacionService.EstadoCuentaModo modo;
+    try {
+      modo = ConciliacionService.EstadoCuentaModo.desde(estadoCuenta, service.estadoCuentaModo());
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().build();
+    }
+    StreamingResponseBody xlsx = out -> cache.escribir(nit, ConciliacionExportCache.formatoXlsx(modo), out,
+        o -> service.exportXlsxPorNit(nit, o, modo));
     String filename = "conciliacion_" + URLEncoder.encode(nit, StandardCharsets.UTF_8) + ".xlsx";
     HttpHeaders headers = new HttpHeaders();
     headers.setContentDisposition(ContentDisposition.attachment().filename(filename).build());
@@ -31,6 +48,82 @@ public class ConciliacionController {
     return ResponseEntity.ok().headers(headers).body(xlsx);
   }
 
+  // CSV (;) escrito sobre la respuesta a medida que se procesa cada factura
+  @GetMapping(value = "/export-csv")
+  public ResponseEntity<StreamingResponseBody> exportCsv(@RequestParam String nit) {
+    StreamingResponseBody body = out -> cache.escribir(nit, "csv", out, o -> {
+      java.io.Writer writer = new java.io.BufferedWriter(new java.io.OutputStreamWriter(o, StandardCharsets.UTF_8), 64 * 1024);
+      service.exportCsvPorNit(nit, writer);
+    });
+    String filename = "conciliacion_" + URLEncoder.encode(nit, StandardCharsets.UTF_8) + ".csv";
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentDisposition(ContentDisposition.attachment().filename(filename).build());
+    headers.set(HttpHeaders.CONTENT_TYPE, "text/csv; charset=UTF-8");
+    return ResponseEntity.ok().headers(headers).body(body);
+  }
+
+  // Lote de NIT en un ZIP (un XLSX por NIT) escrito sobre la respuesta a medida que terminan los libros.
+  // X-Lote-Id permite consultar el avance en /export/lote/status mientras corre la descarga.
+  @PostMapping(value = "/export/lote")
+  public ResponseEntity<StreamingResponseBody> exportLote(@RequestBody ConciliacionLoteRequest request) {
+    ConciliacionLoteService.Seleccion seleccion = loteService.seleccionar(request);
+    ConciliacionLoteService.Lote lote = loteService.registrar(seleccion);
+    StreamingResponseBody zip = out -> loteService.escribirZip(lote, seleccion, out);
+    HttpHeaders headers = zipHeaders("conciliacion_lote.zip");
+    headers.set("X-Lote-Id", lote.id);
+    headers.set("X-Lote-Nits", String.valueOf(lote.total));
+    return ResponseEntity.ok().headers(headers).body(zip);
+  }
+
+  // Mismo lote como job: el ZIP queda en el servidor y se descarga con /export/lote/descarga al terminar
+  @PostMapping(value = "/export/lote/start")
+  public ResponseEntity<java.util.Map<String, Object>> startLote(@RequestBody ConciliacionLoteRequest request) {
+    ConciliacionLoteService.Lote lote = loteService.iniciarJob(loteService.seleccionar(request));
+    return ResponseEntity.ok(java.util.Map.of("loteId", lote.id, "total", lote.total, "status", lote.status.name()));
+  }
+
+  @GetMapping(value = "/export/lote/status")
+  public ResponseEntity<?> statusLote(@RequestParam String loteId) {
+    ConciliacionLoteService.Lote lote = loteService.get(loteId);
+    if (lote == null) return ResponseEntity.status(404).body(java.util.Map.of("error", "lote no encontrado"));
+    // LinkedHashMap: finishedAt es null mientras el lote corre (Map.of no admite nulls)
+    java.util.Map<String, Object> body = new java.util.LinkedHashMap<>();
+    body.put("loteId", lote.id);
+    body.put("status", lote.status.name());
+    body.put("fase", lote.fase);
+    body.put("total", lote.total);
+    body.put("generados", lote.generados.get());
+    body.put("fallidos", lote.errores.size());
+    body.put("errores", lote.errores);
+    body.put("enServidor", lote.enServidor);
+    body.put("bytes", lote.bytes);
+    body.put("startedAt", lote.startedAt.toString());
+    body.put("finishedAt", lote.finishedAt == null ? null : lote.finishedAt.toString());
+    body.put("message", lote.message);
+    return ResponseEntity.ok(body);
+  }
+
+  @GetMapping(value = "/export/lote/descarga")
+  public ResponseEntity<?> descargarLote(@RequestParam String loteId) {
+    ConciliacionLoteService.Lote lote = loteService.get(loteId);
+    if (lote == null) return ResponseEntity.status(404).body(java.util.Map.of("error", "lote no encontrado"));
+    java.nio.file.Path archivo = loteService.archivo(lote);
+    if (archivo == null) {
+      return ResponseEntity.status(409).body(java.util.Map.of("error", "el lote no tiene un archivo listo", "status", lote.status.name()));
+    }
+    StreamingResponseBody zip = out -> java.nio.file.Files.copy(archivo, out);
+    HttpHeaders headers = zipHeaders("conciliacion_lote.zip");
+    headers.setContentLength(lote.bytes);
+    return ResponseEntity.ok().headers(headers).body(zip);
+  }
+
+  private static HttpHeaders zipHeaders(String filename) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentDisposition(ContentDisposition.attachment().filename(filename).build());
+    headers.set(HttpHeaders.CONTENT_TYPE, "application/zip");
+    return headers;
+  }
+
   // Prechequeo: indica en cuáles listas de tarea aparece el NIT (si aplica)
   @GetMapping(value = "/precheck")
   public ResponseEntity<java.util.Map<String, Object>> precheck(@RequestParam String nit) {
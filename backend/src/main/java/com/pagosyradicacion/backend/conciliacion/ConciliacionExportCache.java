@@ -0,0 +1,244 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.pagosyradicacion.backend.radicacion.NitNormalizadoSchema;
+import com.pagosyradicacion.backend.radicacion.RadicacionFiltradaUpdateService;
+
+/**
+ * Caché en disco de las exportaciones de conciliación, con clave (nit, formato, versión de plantilla,
+ * generación de radicacion_filtrada). La primera descarga se escribe a la respuesta y a la vez a un
+ * archivo de la caché; las siguientes con la misma clave se sirven desde el archivo con
+ * FileChannel.transferTo, sin repetir la consulta ni el armado del libro.
+ *
+ * La generación la sube RadicacionFiltradaUpdateService tras cada actualización confirmada, así que una
+ * entrada nunca sobrevive a un cambio de datos; mientras una actualización corre no se lee ni se guarda
+ * nada. El tamaño total se acota con conciliacion.cache.max-mb sacando primero lo menos usado (LRU).
+ * Como la generación vive en memoria, al arrancar se borran las entradas de un proceso anterior; solo los
+ * archivos con los nombres que arma la caché, el resto del directorio (configurable) no se toca.
+ */
+@Component
+public class ConciliacionExportCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ConciliacionExportCache.class);
+
+  /** Escribe la exportación completa sobre out. */
+  @FunctionalInterface
+  public interface Generador {
+    void escribir(OutputStream out) throws IOException;
+  }
+
+  // <16 bytes de SHA-256 en hex>.csv|.xlsx (ver clave) y los parcial_*.tmp de generarYGuardar
+  private static final Pattern ARCHIVO_PROPIO = Pattern.compile("[0-9a-f]{32}\\.(csv|xlsx)|parcial_.*\\.tmp");
+
+  private record Entrada(Path archivo, long bytes, long generacion) {}
+
+  private final RadicacionFiltradaUpdateService radicacionFiltrada;
+  private final ConciliacionPlantillaCache plantillas;
+  private final boolean habilitada;
+  private final Path directorio;
+  private final long maxBytes;
+  // Orden de acceso: el primero es el menos usado
+  private final LinkedHashMap<String, Entrada> entradas = new LinkedHashMap<>(64, 0.75f, true);
+  private long totalBytes;
+
+  public ConciliacionExportCache(
+      RadicacionFiltradaUpdateService radicacionFiltrada,
+      ConciliacionPlantillaCache plantillas,
+      @Value("${conciliacion.cache.enabled:true}") boolean habilitada,
+      @Value("${conciliacion.cache.dir:}") String directorio,
+      @Value("${conciliacion.cache.max-mb:512}") long maxMb) {
+    this.radicacionFiltrada = radicacionFiltrada;
+    this.plantillas = plantillas;
+    this.directorio = directorio == null || directorio.isBlank()
+        ? Path.of(System.getProperty("java.io.tmpdir"), "conciliacion_cache")
+        : Path.of(directorio);
+    this.maxBytes = Math.max(1, maxMb) * 1024 * 1024;
+    this.habilitada = habilitada && prepararDirectorio();
+  }
+
+  /** Formato de la clave para el XLSX: el modo de Estado_Cuenta cambia el contenido del libro. */
+  public static String formatoXlsx(ConciliacionService.EstadoCuentaModo modo) {
+    return "xlsx-" + modo.name().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Escribe la exportación de nit en formato (p. ej. "csv", "xlsx-formulas") sobre out: desde la caché si
+   * está, o con generador guardando una copia para la próxima vez.
+   */
+  public void escribir(String nit, String formato, OutputStream out, Generador generador) throws IOException {
+    long generacion = habilitada ? radicacionFiltrada.generacion() : -1;
+    if (generacion < 0) {
+      generador.escribir(out);
+      return;
+    }
+    String clave = clave(nit, formato, generacion);
+    FileChannel canal = abrir(clave, generacion);
+    if (canal != null) {
+      try (canal) {
+        transferir(canal, out);
+      }
+      return;
+    }
+    generarYGuardar(clave, formato, generacion, out, generador);
+  }
+
+  // Abre el archivo bajo el lock: si después lo saca el LRU, el canal abierto lo sigue leyendo
+  private synchronized FileChannel abrir(String clave, long generacion) {
+    descartarGeneracionesAnteriores(generacion);
+    Entrada e = entradas.get(clave);
+    if (e == null) return null;
+    try {
+      return FileChannel.open(e.archivo(), StandardOpenOption.READ);
+    } catch (IOException ex) {
+      entradas.remove(clave);
+      totalBytes -= e.bytes();
+      return null;
+    }
+  }
+
+  private static void transferir(FileChannel canal, OutputStream out) throws IOException {
+    WritableByteChannel destino = Channels.newChannel(out);
+    long tamano = canal.size();
+    long pos = 0;
+    while (pos < tamano) {
+      pos += canal.transferTo(pos, tamano - pos, destino);
+    }
+    out.flush();
+  }
+
+  private void generarYGuardar(String clave, String formato, long generacion, OutputStream out, Generador generador)
+      throws IOException {
+    Path tmp = Files.createTempFile(directorio, "parcial_", ".tmp");
+    boolean completo = false;
+    try {
+      try (OutputStream copia = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+        generador.escribir(new Duplicado(out, copia));
+      }
+      completo = true;
+    } finally {
+      if (!completo) eliminar(tmp);
+    }
+    // Si la tabla cambió mientras se generaba, la copia ya no corresponde a ninguna generación vigente
+    if (radicacionFiltrada.generacion() != generacion) {
+      eliminar(tmp);
+      return;
+    }
+    Path archivo = directorio.resolve(clave + (formato.startsWith("csv") ? ".csv" : ".xlsx"));
+    Files.move(tmp, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    registrar(clave, new Entrada(archivo, Files.size(archivo), generacion));
+  }
+
+  private synchronized void registrar(String clave, Entrada nueva) {
+    Entrada anterior = entradas.put(clave, nueva);
+    if (anterior != null) totalBytes -= anterior.bytes();
+    totalBytes += nueva.bytes();
+    Iterator<Map.Entry<String, Entrada>> it = entradas.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Entrada> menosUsada = it.next();
+      if (menosUsada.getKey().equals(clave)) continue;
+      it.remove();
+      totalBytes -= menosUsada.getValue().bytes();
+      eliminar(menosUsada.getValue().archivo());
+    }
+  }
+
+  private void descartarGeneracionesAnteriores(long generacion) {
+    Iterator<Entrada> it = entradas.values().iterator();
+    while (it.hasNext()) {
+      Entrada e = it.next();
+      if (e.generacion() < generacion) {
+        it.remove();
+        totalBytes -= e.bytes();
+        eliminar(e.archivo());
+      }
+    }
+  }
+
+  private String clave(String nit, String formato, long generacion) {
+    String texto = NitNormalizadoSchema.normalizar(nit) + '|' + formato + '|' + plantillas.version() + '|' + generacion;
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(texto.getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(hash, 0, 16);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private boolean prepararDirectorio() {
+    try {
+      Files.createDirectories(directorio);
+      try (Stream<Path> viejos = Files.list(directorio)) {
+        viejos.filter(f -> Files.isRegularFile(f) && ARCHIVO_PROPIO.matcher(f.getFileName().toString()).matches())
+            .forEach(ConciliacionExportCache::eliminar);
+      }
+      log.info("Caché de exportaciones de conciliación en {} (máx. {} MB)", directorio, maxBytes / (1024 * 1024));
+      return true;
+    } catch (IOException ex) {
+      log.warn("Caché de exportaciones de conciliación deshabilitada ({}): {}", directorio, ex.getMessage());
+      return false;
+    }
+  }
+
+  private static void eliminar(Path archivo) {
+    try { Files.deleteIfExists(archivo); } catch (IOException ignore) {}
+  }
+
+  /** Escribe a la respuesta y a la copia de la caché. */
+  private static final class Duplicado extends OutputStream {
+    private final OutputStream principal;
+    private final OutputStream copia;
+
+    Duplicado(OutputStream principal, OutputStream copia) {
+      this.principal = principal;
+      this.copia = copia;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      principal.write(b);
+      copia.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      principal.write(b, off, len);
+      copia.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      principal.flush();
+    }
+
+    // El generador no cierra la respuesta: la cierra el contenedor
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
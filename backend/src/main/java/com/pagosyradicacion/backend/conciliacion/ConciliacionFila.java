@@ -0,0 +1,187 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Fila de radicacion_filtrada para las exportaciones de conciliación (CSV y XLSX). Reemplaza el
+ * HashMap&lt;String,Object&gt; por fila: los textos van en un String[] y los montos en un long[] con el valor
+ * sin escala (centavos en las columnas DECIMAL(x,2)), más un bitmask de nulos. La escala de cada monto es
+ * la de su columna y la guarda el Lector, así que no se repite por fila. Un monto que no cabe en long o
+ * que llega con otra escala se guarda aparte como BigDecimal.
+ */
+final class ConciliacionFila {
+
+  // Textos: A..O y luego estado, voucher, feccha_pago
+  static final String[] TEXTOS = {
+      "id","modalidad_pago","nit","nom_prestador","tipo_red","departamento","municipio",
+      "prefijo","factura","prefijo_factura","mes_radicacion","estado_aplicacion","fecha_radicacion","rango_dias","fecha_factura",
+      "estado","voucher","feccha_pago"};
+  static final int ID = 0;
+  static final int NIT = 2;
+  static final int NOM_PRESTADOR = 3;
+  static final int FACTURA = 8;
+  static final int ESTADO_APLICACION = 11;
+  static final int FECHA_RADICACION = 12;
+  static final int FECHA_FACTURA = 14;
+  /** Cantidad de textos que van antes de los montos (A..O). */
+  static final int TEXTOS_INICIO = 15;
+
+  // Montos: P..AE y luego valor_final_ratificado, valor_pagado, porcentaje_pago
+  static final String[] MONTOS = {
+      "valor_factura","valor_iva","nota_credito","valor_glosa_inicial","valor_no_glosado_inicial",
+      "valor_aceptado_primera_respuesta","valor_levantado_primera_respuesta","valor_ratificado_primera_respuesta",
+      "valor_aceptado_segunda_respuesta","valor_levantado_segunda_respuesta","valor_ratificado_segunda_respuesta",
+      "valor_aceptado_conciliacion","valor_levantado_conciliacion","valor_ratificado_conciliacion",
+      "Valor_actual_aceptado","valor_actual_reconocido",
+      "valor_final_ratificado","valor_pagado","porcentaje_pago"};
+  static final int VALOR_FACTURA = 0;
+  static final int VALOR_RATIFICADO_CONCILIACION = 13;
+  static final int VALOR_ACTUAL_ACEPTADO = 14;
+  static final int VALOR_ACTUAL_RECONOCIDO = 15;
+  static final int VALOR_FINAL_RATIFICADO = 16;
+  static final int VALOR_PAGADO = 17;
+  static final int PORCENTAJE_PAGO = 18;
+  /** Cantidad de montos P..AE (los que van seguidos en ambas salidas). */
+  static final int MONTOS_DETALLE = 16;
+
+  // |v| < 2^53: el long se convierte a double sin pérdida y la división queda bien redondeada
+  private static final long MAX_DOUBLE_EXACTO = 1L << 53;
+  private static final double[] POTENCIAS_10 = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private final String[] textos;
+  private final long[] montos;
+  private final int[] escalas;
+  private final long nulos;
+  private final BigDecimal[] fueraDeRango;
+
+  private ConciliacionFila(String[] textos, long[] montos, int[] escalas, long nulos, BigDecimal[] fueraDeRango) {
+    this.textos = textos;
+    this.montos = montos;
+    this.escalas = escalas;
+    this.nulos = nulos;
+    this.fueraDeRango = fueraDeRango;
+  }
+
+  /** Texto ya normalizado; "" si venía null. */
+  String texto(int i) {
+    return textos[i];
+  }
+
+  boolean esNulo(int monto) {
+    return (nulos & (1L << monto)) != 0;
+  }
+
+  /** Monto tal cual llegó (misma escala, mismo toString); null si venía null. */
+  BigDecimal monto(int i) {
+    if (esNulo(i)) return null;
+    if (fueraDeRango != null && fueraDeRango[i] != null) return fueraDeRango[i];
+    return BigDecimal.valueOf(montos[i], escalas[i]);
+  }
+
+  /**
+   * Monto en centavos (escala 2) para ConciliacionCalculo; 0 si es null. Las columnas de monto son
+   * DECIMAL(x,2) y este es el valor sin escala tal cual; con otra escala se lleva a 2 decimales HALF_UP.
+   */
+  long centavos(int i) {
+    if (esNulo(i)) return 0L;
+    if (fueraDeRango == null || fueraDeRango[i] == null) {
+      if (escalas[i] == 2) return montos[i];
+      if (escalas[i] == 1) return Math.multiplyExact(montos[i], 10L);
+      if (escalas[i] == 0) return Math.multiplyExact(montos[i], 100L);
+    }
+    return monto(i).setScale(2, RoundingMode.HALF_UP).longValueExact();
+  }
+
+  /** Monto como double (0 si es null), sin crear el BigDecimal en el caso común. */
+  double montoDouble(int i) {
+    return dividido(i, 0);
+  }
+
+  /** Monto / 100 como double (0 si es null): porcentaje como fracción para celdas con formato %. */
+  double fraccion(int i) {
+    return dividido(i, 2);
+  }
+
+  private double dividido(int i, int escalaExtra) {
+    if (esNulo(i)) return 0d;
+    int escala = escalas[i] + escalaExtra;
+    long v = montos[i];
+    boolean exacto = (fueraDeRango == null || fueraDeRango[i] == null)
+        && escala >= 0 && escala < POTENCIAS_10.length && v > -MAX_DOUBLE_EXACTO && v < MAX_DOUBLE_EXACTO;
+    if (exacto) return v / POTENCIAS_10[escala];
+    return monto(i).movePointLeft(escalaExtra).doubleValue();
+  }
+
+  /**
+   * Lee filas del SELECT de conciliación. Los índices y escalas se resuelven con el metadata de la
+   * primera fila y se reutilizan en las siguientes.
+   */
+  static final class Lector {
+    private int[] indicesTexto;
+    private int[] indicesMonto;
+    private int[] escalas;
+
+    ConciliacionFila leer(ResultSet rs) throws SQLException {
+      if (indicesTexto == null) compilar(rs.getMetaData());
+
+      String[] textos = new String[TEXTOS.length];
+      for (int i = 0; i < TEXTOS.length; i++) {
+        int idx = indicesTexto[i];
+        // id y nit se toman como objeto (pueden ser numéricos); el resto es texto normalizado
+        String v = (i == ID || i == NIT) ? asStr(rs.getObject(idx)) : ConciliacionService.normalizeText(rs.getString(idx));
+        textos[i] = v == null ? "" : v;
+      }
+
+      long[] montos = new long[MONTOS.length];
+      long nulos = 0L;
+      BigDecimal[] fueraDeRango = null;
+      for (int i = 0; i < MONTOS.length; i++) {
+        BigDecimal v = rs.getBigDecimal(indicesMonto[i]);
+        if (v == null) {
+          nulos |= 1L << i;
+        } else if (v.scale() == escalas[i] && v.precision() <= 18) {
+          montos[i] = v.unscaledValue().longValue();
+        } else {
+          if (fueraDeRango == null) fueraDeRango = new BigDecimal[MONTOS.length];
+          fueraDeRango[i] = v;
+        }
+      }
+      return new ConciliacionFila(textos, montos, escalas, nulos, fueraDeRango);
+    }
+
+    private void compilar(ResultSetMetaData md) throws SQLException {
+      Map<String, Integer> porNombre = new HashMap<>();
+      for (int i = 1; i <= md.getColumnCount(); i++) {
+        porNombre.putIfAbsent(md.getColumnLabel(i).toLowerCase(Locale.ROOT), i);
+      }
+      int[] textos = new int[TEXTOS.length];
+      for (int i = 0; i < TEXTOS.length; i++) textos[i] = indice(porNombre, TEXTOS[i]);
+      int[] montos = new int[MONTOS.length];
+      int[] escalas = new int[MONTOS.length];
+      for (int i = 0; i < MONTOS.length; i++) {
+        montos[i] = indice(porNombre, MONTOS[i]);
+        escalas[i] = md.getScale(montos[i]);
+      }
+      this.indicesMonto = montos;
+      this.escalas = escalas;
+      this.indicesTexto = textos;
+    }
+
+    private static int indice(Map<String, Integer> porNombre, String columna) throws SQLException {
+      Integer idx = porNombre.get(columna.toLowerCase(Locale.ROOT));
+      if (idx == null) throw new SQLException("Columna no encontrada en el resultado: " + columna);
+      return idx;
+    }
+
+    private static String asStr(Object v) { return v == null ? "" : String.valueOf(v); }
+  }
+}
@@ -0,0 +1,14 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import java.util.List;
+
+/**
+ * Lote de conciliación: los NIT indicados o, si no se envían, todos los que tienen radicaciones entre
+ * fechaInicio y fechaFin (AAAA-MM-DD, ambas incluidas). estadoCuenta es opcional (formulas | valores | ambos).
+ */
+public record ConciliacionLoteRequest(
+    List<String> nits,
+    String fechaInicio,
+    String fechaFin,
+    String estadoCuenta) {
+}
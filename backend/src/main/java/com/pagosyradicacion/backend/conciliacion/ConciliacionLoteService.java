@@ -0,0 +1,366 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.pagosyradicacion.backend.radicacion.NitNormalizadoSchema;
+
+/**
+ * Exportación de conciliación para muchos NIT en un solo ZIP (un XLSX por NIT). Los libros se generan en
+ * paralelo sobre conciliacionLoteExecutor, cada uno en un archivo temporal, y se agregan al ZIP en el orden
+ * en que terminan; cada lote deja a lo sumo 2 x hilos libros en vuelo, así que ni la memoria ni el disco
+ * temporal crecen con la cantidad de NIT. La plantilla ya viene cacheada (ConciliacionPlantillaCache).
+ *
+ * El ZIP puede ir directo a la respuesta o quedar como archivo en el servidor (job). En ambos casos el
+ * lote se registra con su avance; los terminados se descartan tras el TTL junto con su archivo. Un lote
+ * directo cuya respuesta nunca empezó a escribirse (cliente que se fue antes del dispatch) pasa a FAILED
+ * al cumplir el TTL sin arrancar, y se descarta como cualquier otro terminado.
+ */
+@Service
+public class ConciliacionLoteService {
+
+  private static final Logger log = LoggerFactory.getLogger(ConciliacionLoteService.class);
+
+  private static final String NITS_CON_ACTIVIDAD = """
+      SELECT DISTINCT nit_norm
+      FROM dbo.radicacion_filtrada
+      WHERE fecha_radicacion >= ? AND fecha_radicacion < ? AND nit_norm IS NOT NULL AND nit_norm <> ''
+      ORDER BY nit_norm
+    """;
+
+  public enum Status { RUNNING, COMPLETED, FAILED }
+
+  public static class Lote {
+    public final String id;
+    public final Instant startedAt = Instant.now();
+    public final int total;
+    /** true si el ZIP queda en el servidor (job) en lugar de ir directo a la respuesta. */
+    public final boolean enServidor;
+    public final AtomicInteger generados = new AtomicInteger();
+    // NIT -> mensaje de error; el lote sigue con los demás NIT
+    public final Map<String, String> errores = new ConcurrentHashMap<>();
+    public volatile Status status = Status.RUNNING;
+    public volatile String fase = "en cola";
+    public volatile String message = "";
+    public volatile Instant finishedAt = null;
+    public volatile long bytes = 0;
+    volatile Path archivo;
+
+    Lote(String id, int total, boolean enServidor) {
+      this.id = id;
+      this.total = total;
+      this.enServidor = enServidor;
+    }
+  }
+
+  /** NIT resueltos del request y el modo de la hoja Estado_Cuenta para todos los libros del lote. */
+  public record Seleccion(List<String> nits, ConciliacionService.EstadoCuentaModo modo) {}
+
+  private record Parte(String nit, Path archivo, String error) {}
+
+  private final ConciliacionService conciliacion;
+  private final ConciliacionExportCache cache;
+  private final JdbcTemplate jdbc;
+  private final ThreadPoolTaskExecutor workers;
+  private final TaskExecutor jobs;
+  private final Duration ttl;
+  private final Map<String, Lote> lotes = new ConcurrentHashMap<>();
+
+  public ConciliacionLoteService(
+      ConciliacionService conciliacion,
+      ConciliacionExportCache cache,
+      JdbcTemplate jdbc,
+      @Qualifier("conciliacionLoteExecutor") ThreadPoolTaskExecutor workers,
+      @Qualifier("conciliacionLoteJobExecutor") TaskExecutor jobs,
+      @Value("${conciliacion.lote.ttl-minutes:60}") long ttlMinutes) {
+    this.conciliacion = conciliacion;
+    this.cache = cache;
+    this.jdbc = jdbc;
+    this.workers = workers;
+    this.jobs = jobs;
+    this.ttl = Duration.ofMinutes(ttlMinutes > 0 ? ttlMinutes : 60);
+  }
+
+  /** Valida el request y resuelve la lista de NIT (sin duplicados, en el orden recibido). */
+  public Seleccion seleccionar(ConciliacionLoteRequest request) {
+    if (request == null) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes enviar nits o un rango de fechas");
+    }
+    ConciliacionService.EstadoCuentaModo modo;
+    try {
+      modo = ConciliacionService.EstadoCuentaModo.desde(request.estadoCuenta(), conciliacion.estadoCuentaModo());
+    } catch (IllegalArgumentException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "estadoCuenta debe ser formulas, valores o ambos");
+    }
+
+    LinkedHashSet<String> nits = new LinkedHashSet<>();
+    if (request.nits() != null) {
+      for (String nit : request.nits()) {
+        String n = NitNormalizadoSchema.normalizar(nit);
+        if (!n.isEmpty()) nits.add(n);
+      }
+    }
+    if (nits.isEmpty()) {
+      LocalDate inicio = parseDate(request.fechaInicio(), "fechaInicio");
+      LocalDate fin = parseDate(request.fechaFin(), "fechaFin");
+      if (inicio == null || fin == null) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes enviar nits o fechaInicio y fechaFin");
+      }
+      if (fin.isBefore(inicio)) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "La fecha fin no puede ser anterior a la fecha inicio");
+      }
+      nits.addAll(jdbc.queryForList(NITS_CON_ACTIVIDAD, String.class,
+          Timestamp.valueOf(inicio.atStartOfDay()), Timestamp.valueOf(fin.plusDays(1).atStartOfDay())));
+      if (nits.isEmpty()) {
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No hay NIT con radicaciones en el rango indicado");
+      }
+    }
+    return new Seleccion(new ArrayList<>(nits), modo);
+  }
+
+  /** Registra un lote que se escribirá directo sobre la respuesta (queda "en cola" hasta escribirZip). */
+  public Lote registrar(Seleccion seleccion) {
+    evictExpirados();
+    Lote lote = new Lote(UUID.randomUUID().toString(), seleccion.nits().size(), false);
+    lotes.put(lote.id, lote);
+    return lote;
+  }
+
+  /** Genera el ZIP del lote sobre out (la respuesta HTTP o el archivo del job). */
+  public void escribirZip(Lote lote, Seleccion seleccion, OutputStream out) throws IOException {
+    long t0 = System.nanoTime();
+    lote.fase = "generando";
+    try {
+      generar(lote, seleccion, out);
+      lote.fase = "terminado";
+      lote.finishedAt = Instant.now();
+      lote.status = Status.COMPLETED;
+      log.info("Lote de conciliación {}: {} libros, {} con error, {} ms", lote.id, lote.generados.get(),
+          lote.errores.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+    } catch (IOException | RuntimeException ex) {
+      lote.message = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+      lote.finishedAt = Instant.now();
+      lote.status = Status.FAILED;
+      throw ex;
+    }
+  }
+
+  /** Lanza el lote como job: el ZIP queda en un archivo temporal que se descarga con archivo(lote). */
+  public Lote iniciarJob(Seleccion seleccion) {
+    evictExpirados();
+    Lote lote = new Lote(UUID.randomUUID().toString(), seleccion.nits().size(), true);
+    lotes.put(lote.id, lote);
+    try {
+      jobs.execute(() -> correrJob(lote, seleccion));
+    } catch (RejectedExecutionException ex) {
+      lote.message = "Pool de lotes saturado, intenta más tarde";
+      lote.finishedAt = Instant.now();
+      lote.status = Status.FAILED;
+    }
+    return lote;
+  }
+
+  public Lote get(String id) {
+    evictExpirados();
+    return lotes.get(id);
+  }
+
+  /** Archivo del ZIP de un job terminado; null si el lote no existe, no es un job o aún no termina. */
+  public Path archivo(Lote lote) {
+    if (lote == null || !lote.enServidor || lote.status != Status.COMPLETED) return null;
+    Path archivo = lote.archivo;
+    return archivo != null && Files.exists(archivo) ? archivo : null;
+  }
+
+  private void correrJob(Lote lote, Seleccion seleccion) {
+    Path archivo = null;
+    try {
+      archivo = Files.createTempFile("conciliacion_lote_", ".zip");
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(archivo), 64 * 1024)) {
+        escribirZip(lote, seleccion, out);
+      }
+      // Se publica el archivo solo ya cerrado: antes de esto archivo(lote) devuelve null
+      lote.bytes = Files.size(archivo);
+      lote.archivo = archivo;
+    } catch (Exception ex) {
+      log.error("Lote de conciliación {} falló: {}", lote.id, ex.getMessage(), ex);
+      if (lote.status == Status.RUNNING) {
+        lote.message = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+        lote.finishedAt = Instant.now();
+        lote.status = Status.FAILED;
+      }
+      lote.archivo = null;
+      eliminar(archivo);
+    }
+  }
+
+  private void generar(Lote lote, Seleccion seleccion, OutputStream out) throws IOException {
+    ExecutorCompletionService<Parte> terminados = new ExecutorCompletionService<>(workers);
+    int ventana = Math.max(1, workers.getMaxPoolSize() * 2);
+    AtomicBoolean cancelado = new AtomicBoolean(false);
+    Iterator<String> pendientes = seleccion.nits().iterator();
+    int enVuelo = 0;
+    Set<String> nombres = new HashSet<>();
+    ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+    // Los XLSX ya vienen comprimidos: se guardan sin volver a comprimir
+    zip.setLevel(Deflater.NO_COMPRESSION);
+    try {
+      while (pendientes.hasNext() || enVuelo > 0) {
+        while (enVuelo < ventana && pendientes.hasNext()) {
+          String nit = pendientes.next();
+          terminados.submit(() -> generarLibro(nit, seleccion.modo(), cancelado));
+          enVuelo++;
+        }
+        Parte parte = tomar(terminados);
+        enVuelo--;
+        if (parte.error() != null) {
+          lote.errores.put(parte.nit(), parte.error());
+          continue;
+        }
+        try {
+          zip.putNextEntry(new ZipEntry(nombreArchivo(parte.nit(), nombres)));
+          Files.copy(parte.archivo(), zip);
+          zip.closeEntry();
+        } finally {
+          eliminar(parte.archivo());
+        }
+        lote.generados.incrementAndGet();
+      }
+      if (!lote.errores.isEmpty()) {
+        zip.putNextEntry(new ZipEntry("errores.txt"));
+        StringBuilder sb = new StringBuilder();
+        lote.errores.forEach((nit, error) -> sb.append(nit).append(": ").append(error).append('\n'));
+        zip.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+      }
+      zip.finish();
+      zip.flush();
+    } finally {
+      // Si el cliente se desconectó o algo falló: los pendientes no arrancan y se borran los temporales
+      cancelado.set(true);
+      try {
+        while (enVuelo > 0) {
+          Parte parte = tomar(terminados);
+          enVuelo--;
+          eliminar(parte.archivo());
+        }
+      } catch (IllegalStateException ignore) {
+        // interrumpido mientras se esperaban los pendientes: no hay más que limpiar desde aquí
+      }
+    }
+  }
+
+  private Parte generarLibro(String nit, ConciliacionService.EstadoCuentaModo modo, AtomicBoolean cancelado) {
+    if (cancelado.get()) return new Parte(nit, null, "Lote cancelado");
+    Path archivo = null;
+    try {
+      archivo = Files.createTempFile("conciliacion_", ".xlsx");
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(archivo), 64 * 1024)) {
+        cache.escribir(nit, ConciliacionExportCache.formatoXlsx(modo), out, o -> conciliacion.exportXlsxPorNit(nit, o, modo));
+      }
+      return new Parte(nit, archivo, null);
+    } catch (Exception ex) {
+      log.warn("Lote de conciliación: NIT {} falló: {}", nit, ex.getMessage());
+      eliminar(archivo);
+      return new Parte(nit, null, ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage());
+    }
+  }
+
+  private static Parte tomar(ExecutorCompletionService<Parte> terminados) {
+    try {
+      return terminados.take().get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Lote interrumpido", ex);
+    } catch (ExecutionException ex) {
+      // generarLibro no lanza: cualquier error ya viene dentro de la Parte
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
+
+  // El saneo puede llevar dos NIT al mismo nombre (p. ej. "A/B" y "A_B") y ZipOutputStream rechaza
+  // entradas repetidas: a partir de la segunda se agrega un sufijo
+  static String nombreArchivo(String nit, Set<String> usados) {
+    String base = "conciliacion_" + nit.replaceAll("[^A-Za-z0-9_-]", "_");
+    String nombre = base + ".xlsx";
+    for (int i = 2; !usados.add(nombre); i++) {
+      nombre = base + "_" + i + ".xlsx";
+    }
+    return nombre;
+  }
+
+  @Scheduled(fixedDelay = 10, initialDelay = 10, timeUnit = TimeUnit.MINUTES)
+  public void barrerExpirados() {
+    evictExpirados();
+  }
+
+  private void evictExpirados() {
+    Instant limite = Instant.now().minus(ttl);
+    // Directos que nunca arrancaron: su respuesta ya no va a correr
+    lotes.values().forEach(l -> {
+      if (!l.enServidor && l.status == Status.RUNNING && "en cola".equals(l.fase) && l.startedAt.isBefore(limite)) {
+        l.message = "La descarga no comenzó";
+        l.finishedAt = Instant.now();
+        l.status = Status.FAILED;
+      }
+    });
+    lotes.values().removeIf(l -> {
+      boolean expirado = l.finishedAt != null && l.finishedAt.isBefore(limite);
+      if (expirado) eliminar(l.archivo);
+      return expirado;
+    });
+  }
+
+  private static void eliminar(Path archivo) {
+    if (archivo == null) return;
+    try { Files.deleteIfExists(archivo); } catch (IOException ignore) {}
+  }
+
+  private static LocalDate parseDate(String value, String fieldName) {
+    if (value == null || value.isBlank()) return null;
+    try {
+      return LocalDate.parse(value.trim());
+    } catch (DateTimeParseException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Formato invalido para " + fieldName + ". Usa AAAA-MM-DD");
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Locale;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Plantilla opcional del XLSX de conciliación (hoja Estado_Cuenta, estilos, encabezados del detalle).
+ * - Usa CONCILIACION_XLSX_TEMPLATE (ruta absoluta) si está definida.
+ * - Si no, la busca en el classpath: conciliacion/estado_cuenta_template.xlsx o estado_cuenta_template.xlsx
+ *
+ * La plantilla se lee y se limpia una sola vez (hojas Detalle_Radicacion duplicadas, celdas combinadas y
+ * filas de datos fuera; encabezado en la fila 0) y se guarda serializada. Cada exportación parte de una
+ * copia de ese esqueleto ya limpio. Si el archivo cambia (mtime o tamaño), se vuelve a cargar.
+ */
+@Component
+public class ConciliacionPlantillaCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ConciliacionPlantillaCache.class);
+
+  static final String HOJA_DETALLE = "Detalle_Radicacion";
+
+  /** Workbook listo para la exportación y la posición de la hoja de detalle. */
+  record Base(XSSFWorkbook workbook, int keepIdx, boolean sheetFromTemplate, boolean usingTemplate) {}
+
+  private record Origen(String descripcion, URL url, File archivo) {
+    // Marca de versión: los recursos dentro del jar no cambian mientras corre la aplicación
+    String version() {
+      return archivo == null ? descripcion : descripcion + "@" + archivo.lastModified() + ":" + archivo.length();
+    }
+  }
+
+  private record Esqueleto(String version, byte[] bytes, int keepIdx, boolean sheetFromTemplate) {}
+
+  private volatile Esqueleto esqueleto;
+
+  Base abrir() throws IOException {
+    Origen origen = resolverOrigen();
+    if (origen == null) {
+      XSSFWorkbook wb = new XSSFWorkbook();
+      wb.createSheet(HOJA_DETALLE);
+      return new Base(wb, wb.getSheetIndex(HOJA_DETALLE), false, false);
+    }
+    Esqueleto e = vigente(origen);
+    return new Base(new XSSFWorkbook(new ByteArrayInputStream(e.bytes())), e.keepIdx(), e.sheetFromTemplate(), true);
+  }
+
+  /** Versión de la plantilla vigente (ruta + mtime/tamaño); "sin-plantilla" si no hay. */
+  String version() {
+    Origen origen = resolverOrigen();
+    return origen == null ? "sin-plantilla" : origen.version();
+  }
+
+  private Esqueleto vigente(Origen origen) throws IOException {
+    String version = origen.version();
+    Esqueleto e = esqueleto;
+    if (e != null && e.version().equals(version)) return e;
+    synchronized (this) {
+      e = esqueleto;
+      if (e == null || !e.version().equals(version)) {
+        e = cargar(origen, version);
+        esqueleto = e;
+      }
+      return e;
+    }
+  }
+
+  private static Esqueleto cargar(Origen origen, String version) throws IOException {
+    long t0 = System.nanoTime();
+    try (InputStream in = origen.url().openStream(); XSSFWorkbook base = new XSSFWorkbook(in)) {
+      // Limpiar la hoja objetivo una sola vez: dejar solo la primera Detalle_Radicacion
+      int keepIdx = -1;
+      for (int i = 0; i < base.getNumberOfSheets(); i++) {
+        String norm = base.getSheetName(i).toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "");
+        if (norm.equals("detalleradicacion")) {
+          if (keepIdx == -1) keepIdx = i; else { base.removeSheetAt(i); i--; }
+        }
+      }
+      boolean sheetFromTemplate;
+      if (keepIdx == -1) {
+        base.createSheet(HOJA_DETALLE);
+        keepIdx = base.getSheetIndex(HOJA_DETALLE);
+        sheetFromTemplate = false;
+      } else {
+        sheetFromTemplate = true;
+        XSSFSheet sheet = base.getSheetAt(keepIdx);
+        for (int i = sheet.getNumMergedRegions() - 1; i >= 0; i--) sheet.removeMergedRegion(i);
+        // Conservar encabezados de la fila 0, borrar contenido desde fila 1
+        for (int i = sheet.getLastRowNum(); i >= 1; i--) {
+          Row row = sheet.getRow(i);
+          if (row != null) sheet.removeRow(row);
+        }
+      }
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      base.write(bos);
+      log.info("Plantilla de conciliación cargada desde {} ({} bytes limpios, {} ms)",
+          origen.descripcion(), bos.size(), (System.nanoTime() - t0) / 1_000_000);
+      return new Esqueleto(version, bos.toByteArray(), keepIdx, sheetFromTemplate);
+    }
+  }
+
+  private Origen resolverOrigen() {
+    try {
+      String path = System.getenv("CONCILIACION_XLSX_TEMPLATE");
+      if (path != null && !path.isBlank()) {
+        File f = new File(path);
+        if (f.exists() && f.isFile()) return new Origen(f.getAbsolutePath(), f.toURI().toURL(), f);
+      }
+    } catch (Exception ignore) {}
+    try {
+      ClassLoader cl = this.getClass().getClassLoader();
+      URL url = cl.getResource("conciliacion/estado_cuenta_template.xlsx");
+      if (url == null) url = cl.getResource("estado_cuenta_template.xlsx");
+      if (url == null) return null;
+      // En desarrollo el recurso es un archivo (target/classes) y también se vigila su mtime
+      File archivo = "file".equals(url.getProtocol()) ? new File(url.toURI()) : null;
+      return new Origen(url.toString(), url, archivo);
+    } catch (Exception ignore) {}
+    return null;
+  }
+}
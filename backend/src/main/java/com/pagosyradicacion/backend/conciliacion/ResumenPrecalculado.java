@@ -0,0 +1,637 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.LocaleUtil;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellFormulaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Totales de las hojas de resumen del XLSX de conciliación (Estado_Cuenta generada o la hoja Resumen de la
+ * plantilla) calculados en Java en el mismo recorrido que escribe el detalle, para que Excel no tenga que
+ * recorrer columnas completas de 300k filas al abrir el archivo.
+ *
+ * Antes de escribir filas se leen las fórmulas de las hojas que no son el detalle y se reconocen las
+ * agregaciones sobre columnas completas del detalle: SUMIFS, SUMIF, COUNTIFS, COUNTIF, COUNTA y
+ * COUNTA(_xlfn.UNIQUE(..)), además de referencias a una celda suelta del detalle. Cada fila escrita
+ * alimenta esos acumuladores. Al final cada agregación se reemplaza por su número y el resto de la fórmula
+ * (sumas entre celdas del resumen, TEXT, CONCATENATE) lo evalúa POI. Una hoja que usa el detalle de otra
+ * forma se deja solo con fórmulas.
+ */
+final class ResumenPrecalculado {
+
+  private static final Logger log = LoggerFactory.getLogger(ResumenPrecalculado.class);
+
+  /** Columnas del detalle (A..AQ). */
+  static final int COLUMNAS = 43;
+
+  private static final Locale ES_CO = new Locale("es", "CO");
+  // Los criterios de fecha de la plantilla vienen como ">=01/01/2025" (configuración regional es-CO)
+  private static final DateTimeFormatter FECHA_CRITERIO = DateTimeFormatter.ofPattern("d/M/uuuu");
+
+  private static final Pattern HOJA = Pattern.compile("(?:'((?:[^']|'')+)'|([A-Za-z_][A-Za-z0-9_.]*))!");
+  private static final Pattern COLUMNA_COMPLETA = Pattern.compile("\\$?([A-Za-z]{1,3}):\\$?([A-Za-z]{1,3})");
+  private static final Pattern CELDA = Pattern.compile("\\$?([A-Za-z]{1,3})\\$?([0-9]+)(?![0-9A-Za-z_(:!])");
+  private static final Pattern FUNCION = Pattern.compile("([A-Za-z_][A-Za-z0-9_.]*)\\s*\\(");
+  private static final Pattern UNICOS = Pattern.compile("(?is)_xlfn\\.UNIQUE\\s*\\((.*)\\)");
+  private static final Pattern NUMERO = Pattern.compile("[-+]?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+
+  /** Valores de una fila del detalle tal como quedan en sus celdas: número, texto, error o vacía. */
+  static final class Celdas {
+    private final double[] numeros = new double[COLUMNAS];
+    private final String[] textos = new String[COLUMNAS];
+    private final boolean[] esNumero = new boolean[COLUMNAS];
+    private final FormulaError[] errores = new FormulaError[COLUMNAS];
+
+    void numero(int col, double v) { numeros[col] = v; esNumero[col] = true; textos[col] = null; errores[col] = null; }
+    void texto(int col, String v) { textos[col] = v; esNumero[col] = false; errores[col] = null; }
+    void error(int col, FormulaError e) { errores[col] = e; esNumero[col] = false; textos[col] = null; }
+    void vacia(int col) { textos[col] = null; esNumero[col] = false; errores[col] = null; }
+
+    private boolean esVacia(int col) { return !esNumero[col] && textos[col] == null && errores[col] == null; }
+  }
+
+  /** Parte de una fórmula que se calcula recorriendo el detalle y termina como un literal. */
+  private interface Fuente {
+    void agregar(Celdas f, int fila);
+    String literal();
+  }
+
+  private record Tramo(int desde, int hasta, Fuente fuente) {}
+
+  private record FormulaResumen(XSSFCell celda, String original, List<Tramo> tramos) {
+    String sustituida() {
+      StringBuilder sb = new StringBuilder(original);
+      for (int i = tramos.size() - 1; i >= 0; i--) {
+        Tramo t = tramos.get(i);
+        sb.replace(t.desde(), t.hasta(), t.fuente().literal());
+      }
+      return sb.toString();
+    }
+  }
+
+  private record HojaResumen(String nombre, List<FormulaResumen> formulas, boolean completa) {}
+
+  private final XSSFWorkbook base;
+  private final List<HojaResumen> hojas;
+  private final Fuente[] fuentes;
+  private int fila;
+
+  private ResumenPrecalculado(XSSFWorkbook base, List<HojaResumen> hojas, Fuente[] fuentes) {
+    this.base = base;
+    this.hojas = hojas;
+    this.fuentes = fuentes;
+  }
+
+  /** Lee las fórmulas de las hojas de resumen; se llama antes de escribir la primera fila del detalle. */
+  static ResumenPrecalculado preparar(XSSFWorkbook base, int detalleIdx) {
+    String detalle = base.getSheetName(detalleIdx);
+    // La misma agregación suele repetirse (p. ej. en varias celdas): se acumula una sola vez
+    Map<String, Fuente> porTexto = new LinkedHashMap<>();
+    List<HojaResumen> hojas = new ArrayList<>();
+    for (int s = 0; s < base.getNumberOfSheets(); s++) {
+      if (s == detalleIdx) continue;
+      XSSFSheet hoja = base.getSheetAt(s);
+      List<FormulaResumen> formulas = new ArrayList<>();
+      boolean completa = true;
+      for (Row row : hoja) {
+        for (Cell c : row) {
+          if (c.getCellType() != CellType.FORMULA) continue;
+          XSSFCell celda = (XSSFCell) c;
+          String original = celda.getCellFormula();
+          List<Tramo> tramos = reconocer(original, detalle, porTexto);
+          boolean usaDetalle = !tramos.isEmpty() || usaHoja(original, detalle, List.of());
+          if (usaDetalle) {
+            // En fórmulas compartidas o de matriz el texto no vive en la celda: no se reemplaza
+            boolean simple = !celda.isPartOfArrayFormulaGroup()
+                && celda.getCTCell().getF().getT() != STCellFormulaType.SHARED;
+            if (!simple || usaHoja(original, detalle, tramos)) {
+              completa = false;
+              log.info("Hoja {}: {} usa el detalle de una forma no reconocida, la hoja queda con fórmulas",
+                  hoja.getSheetName(), celda.getReference());
+            }
+          }
+          formulas.add(new FormulaResumen(celda, original, tramos));
+        }
+      }
+      if (!formulas.isEmpty()) hojas.add(new HojaResumen(hoja.getSheetName(), formulas, completa));
+    }
+    return new ResumenPrecalculado(base, hojas, porTexto.values().toArray(new Fuente[0]));
+  }
+
+  /** Fila 1 del detalle cuando sus encabezados vienen de la plantilla. */
+  void encabezado(Row encabezado, Celdas celdas) {
+    for (int c = 0; c < COLUMNAS; c++) {
+      Cell cell = encabezado == null ? null : encabezado.getCell(c);
+      if (cell == null || cell.getCellType() == CellType.BLANK) celdas.vacia(c);
+      else if (cell.getCellType() == CellType.NUMERIC) celdas.numero(c, cell.getNumericCellValue());
+      else celdas.texto(c, cell.toString());
+    }
+    fila(celdas);
+  }
+
+  /** Fila 1 del detalle cuando se escriben los encabezados propios. */
+  void encabezado(String[] encabezados, Celdas celdas) {
+    for (int c = 0; c < COLUMNAS; c++) {
+      if (c < encabezados.length) celdas.texto(c, encabezados[c]); else celdas.vacia(c);
+    }
+    fila(celdas);
+  }
+
+  /** Siguiente fila del detalle, en el mismo orden en que se escribe. */
+  void fila(Celdas celdas) {
+    fila++;
+    for (Fuente f : fuentes) f.agregar(celdas, fila);
+  }
+
+  /**
+   * Deja en cada fórmula del resumen su resultado: como valor (conservarFormulas=false) o como resultado
+   * en caché de la fórmula original. Devuelve true si todas quedaron con resultado, es decir, si el libro
+   * ya no necesita recalcularse al abrir.
+   */
+  boolean aplicar(boolean conservarFormulas) {
+    boolean completo = true;
+    LocaleUtil.setUserLocale(ES_CO); // TEXT(..., "dd-mmmm-yyyy") con los meses en español, como en Excel
+    try {
+      for (HojaResumen h : hojas) {
+        if (!h.completa()) { completo = false; continue; }
+        List<FormulaResumen> formulas = h.formulas();
+        // El texto se cambia directo en el XML: setCellFormula volvería a parsear (y _xlfn.UNIQUE no lo conoce)
+        for (FormulaResumen f : formulas) {
+          if (!f.tramos().isEmpty()) f.celda().getCTCell().getF().setStringValue(f.sustituida());
+        }
+        FormulaEvaluator ev = base.getCreationHelper().createFormulaEvaluator();
+        CellValue[] valores = new CellValue[formulas.size()];
+        for (int i = 0; i < valores.length; i++) {
+          try {
+            valores[i] = ev.evaluate(formulas.get(i).celda());
+          } catch (RuntimeException e) {
+            log.info("Hoja {}: no se pudo evaluar {} ({}), queda con fórmula",
+                h.nombre(), formulas.get(i).celda().getReference(), e.getMessage());
+          }
+        }
+        for (int i = 0; i < valores.length; i++) {
+          FormulaResumen f = formulas.get(i);
+          f.celda().getCTCell().getF().setStringValue(f.original());
+          if (valores[i] == null) { completo = false; continue; }
+          if (!conservarFormulas) f.celda().removeFormula();
+          escribir(f.celda(), valores[i]);
+        }
+      }
+    } finally {
+      LocaleUtil.resetUserLocale();
+    }
+    return completo;
+  }
+
+  // Sobre una celda de fórmula XSSF estos setters solo cambian el resultado en caché
+  private static void escribir(XSSFCell celda, CellValue v) {
+    switch (v.getCellType()) {
+      case NUMERIC -> celda.setCellValue(v.getNumberValue());
+      case STRING -> celda.setCellValue(v.getStringValue());
+      case BOOLEAN -> celda.setCellValue(v.getBooleanValue());
+      case ERROR -> celda.setCellErrorValue(FormulaError.forInt(v.getErrorValue()));
+      default -> celda.setCellValue(0d);
+    }
+  }
+
+  // ===================== Reconocimiento de fórmulas =====================
+
+  private static List<Tramo> reconocer(String formula, String detalle, Map<String, Fuente> porTexto) {
+    List<Tramo> tramos = new ArrayList<>();
+    int n = formula.length();
+    int i = 0;
+    while (i < n) {
+      char ch = formula.charAt(i);
+      if (ch == '"') { i = finCadena(formula, i); continue; }
+      boolean inicio = ch == '\'' || ((Character.isLetter(ch) || ch == '_') && (i == 0 || !esIdentificador(formula.charAt(i - 1))));
+      if (!inicio) { i++; continue; }
+
+      Matcher h = HOJA.matcher(formula).region(i, n);
+      if (h.lookingAt()) {
+        if (esHoja(h, detalle)) {
+          // Celda suelta del detalle, p. ej. 'Detalle_ Radicacion'!C2
+          Matcher c = CELDA.matcher(formula).region(h.end(), n);
+          if (c.lookingAt()) {
+            int col = CellReference.convertColStringToIndex(c.group(1));
+            int numFila = Integer.parseInt(c.group(2));
+            if (col < COLUMNAS) {
+              String clave = "celda:" + col + ":" + numFila;
+              tramos.add(new Tramo(i, c.end(), porTexto.computeIfAbsent(clave, k -> new ValorCelda(col, numFila))));
+            }
+            i = c.end();
+            continue;
+          }
+        }
+        i = h.end();
+        continue;
+      }
+
+      Matcher f = FUNCION.matcher(formula).region(i, n);
+      if (f.lookingAt()) {
+        int abre = f.end() - 1;
+        int cierra = cierre(formula, abre);
+        if (cierra < 0) return tramos;
+        String nombre = f.group(1).toUpperCase(Locale.ROOT);
+        List<String> args = argumentos(formula, abre + 1, cierra);
+        Fuente fuente = agregado(nombre, args, detalle);
+        if (fuente != null) {
+          String clave = nombre + "(" + String.join(",", args) + ")";
+          tramos.add(new Tramo(i, cierra + 1, porTexto.computeIfAbsent(clave, k -> fuente)));
+          i = cierra + 1;
+        } else {
+          i = f.end(); // seguir dentro de los argumentos (SUM(SUMIFS(...)), etc.)
+        }
+        continue;
+      }
+      i++;
+    }
+    return tramos;
+  }
+
+  private static Fuente agregado(String nombre, List<String> args, String detalle) {
+    int k = args.size();
+    switch (nombre) {
+      case "SUMIFS": {
+        if (k < 3 || k % 2 == 0) return null;
+        int suma = columna(args.get(0), detalle);
+        Criterio[] criterios = criterios(args, 1, detalle);
+        return suma < 0 || criterios == null ? null : new Suma(suma, criterios);
+      }
+      case "SUMIF": {
+        if (k != 2 && k != 3) return null;
+        int rango = columna(args.get(0), detalle);
+        int suma = k == 3 ? columna(args.get(2), detalle) : rango;
+        Criterio[] criterios = criterios(args.subList(0, 2), 0, detalle);
+        return rango < 0 || suma < 0 || criterios == null ? null : new Suma(suma, criterios);
+      }
+      case "COUNTIFS":
+      case "COUNTIF": {
+        if (k < 2 || k % 2 != 0 || (nombre.equals("COUNTIF") && k != 2)) return null;
+        Criterio[] criterios = criterios(args, 0, detalle);
+        return criterios == null ? null : new Conteo(criterios);
+      }
+      case "COUNTA": {
+        if (k != 1) return null;
+        Matcher u = UNICOS.matcher(args.get(0));
+        if (u.matches()) {
+          int col = columna(u.group(1).trim(), detalle);
+          return col < 0 ? null : new Unicos(col);
+        }
+        int col = columna(args.get(0), detalle);
+        return col < 0 ? null : new NoVacias(col);
+      }
+      default:
+        return null;
+    }
+  }
+
+  private static Criterio[] criterios(List<String> args, int desde, String detalle) {
+    Criterio[] criterios = new Criterio[(args.size() - desde) / 2];
+    for (int j = 0; j < criterios.length; j++) {
+      int col = columna(args.get(desde + 2 * j), detalle);
+      String texto = literal(args.get(desde + 2 * j + 1));
+      if (col < 0 || texto == null) return null;
+      criterios[j] = Criterio.de(col, texto);
+    }
+    return criterios;
+  }
+
+  /** Índice de la columna si el argumento es 'Detalle'!X:X; -1 si no. */
+  private static int columna(String arg, String detalle) {
+    Matcher h = HOJA.matcher(arg);
+    if (!h.lookingAt() || !esHoja(h, detalle)) return -1;
+    Matcher c = COLUMNA_COMPLETA.matcher(arg).region(h.end(), arg.length());
+    if (!c.matches() || !c.group(1).equalsIgnoreCase(c.group(2))) return -1;
+    int col = CellReference.convertColStringToIndex(c.group(1));
+    return col < COLUMNAS ? col : -1;
+  }
+
+  /** Texto del criterio si el argumento es un literal ("..." o número); null si es una referencia u otra fórmula. */
+  private static String literal(String arg) {
+    if (arg.length() >= 2 && arg.charAt(0) == '"' && finCadena(arg, 0) == arg.length()) {
+      return arg.substring(1, arg.length() - 1).replace("\"\"", "\"");
+    }
+    return NUMERO.matcher(arg).matches() ? arg : null;
+  }
+
+  private static boolean esHoja(Matcher h, String detalle) {
+    String nombre = h.group(1) != null ? h.group(1).replace("''", "'") : h.group(2);
+    return nombre.equalsIgnoreCase(detalle);
+  }
+
+  /** ¿Queda alguna referencia al detalle fuera de los tramos reconocidos? */
+  private static boolean usaHoja(String formula, String detalle, List<Tramo> tramos) {
+    int n = formula.length();
+    int t = 0;
+    int i = 0;
+    while (i < n) {
+      if (t < tramos.size() && i == tramos.get(t).desde()) { i = tramos.get(t++).hasta(); continue; }
+      char ch = formula.charAt(i);
+      if (ch == '"') { i = finCadena(formula, i); continue; }
+      if (ch == '\'' || ((Character.isLetter(ch) || ch == '_') && (i == 0 || !esIdentificador(formula.charAt(i - 1))))) {
+        Matcher h = HOJA.matcher(formula).region(i, n);
+        if (h.lookingAt()) {
+          if (esHoja(h, detalle)) return true;
+          i = h.end();
+          continue;
+        }
+      }
+      i++;
+    }
+    return false;
+  }
+
+  private static boolean esIdentificador(char ch) {
+    return Character.isLetterOrDigit(ch) || ch == '_' || ch == '.';
+  }
+
+  /** Posición siguiente a la comilla que cierra la cadena que abre en i. */
+  private static int finCadena(String s, int i) {
+    int j = i + 1;
+    while (j < s.length()) {
+      if (s.charAt(j) == '"') {
+        if (j + 1 < s.length() && s.charAt(j + 1) == '"') { j += 2; continue; }
+        return j + 1;
+      }
+      j++;
+    }
+    return s.length();
+  }
+
+  /** Posición siguiente a la comilla que cierra el nombre de hoja 'entre comillas' que abre en i. */
+  private static int finNombreHoja(String s, int i) {
+    int j = i + 1;
+    while (j < s.length()) {
+      if (s.charAt(j) == '\'') {
+        if (j + 1 < s.length() && s.charAt(j + 1) == '\'') { j += 2; continue; }
+        return j + 1;
+      }
+      j++;
+    }
+    return s.length();
+  }
+
+  /** Posición del paréntesis que cierra el que abre en i; -1 si no cierra. */
+  private static int cierre(String s, int i) {
+    int nivel = 0;
+    int j = i;
+    while (j < s.length()) {
+      char ch = s.charAt(j);
+      if (ch == '"') { j = finCadena(s, j); continue; }
+      if (ch == '\'') { j = finNombreHoja(s, j); continue; }
+      if (ch == '(') nivel++;
+      else if (ch == ')' && --nivel == 0) return j;
+      j++;
+    }
+    return -1;
+  }
+
+  private static List<String> argumentos(String s, int desde, int hasta) {
+    List<String> args = new ArrayList<>();
+    int nivel = 0;
+    int inicio = desde;
+    int j = desde;
+    while (j < hasta) {
+      char ch = s.charAt(j);
+      if (ch == '"') { j = finCadena(s, j); continue; }
+      if (ch == '\'') { j = finNombreHoja(s, j); continue; }
+      if (ch == '(' || ch == '{') nivel++;
+      else if (ch == ')' || ch == '}') nivel--;
+      else if (ch == ',' && nivel == 0) { args.add(s.substring(inicio, j).trim()); inicio = j + 1; }
+      j++;
+    }
+    args.add(s.substring(inicio, hasta).trim());
+    return args;
+  }
+
+  private static String numeroLiteral(double v) {
+    String s = BigDecimal.valueOf(v).toPlainString();
+    return v < 0 ? "(" + s + ")" : s;
+  }
+
+  // ===================== Criterios (semántica de SUMIFS/COUNTIFS) =====================
+
+  private static final class Criterio {
+    private final int columna;
+    private final String op;
+    private final Double numero;
+    private final String texto;
+    private final Pattern comodines;
+
+    private Criterio(int columna, String op, Double numero, String texto, Pattern comodines) {
+      this.columna = columna;
+      this.op = op;
+      this.numero = numero;
+      this.texto = texto;
+      this.comodines = comodines;
+    }
+
+    static Criterio de(int columna, String criterio) {
+      String op = "=";
+      String resto = criterio;
+      for (String o : new String[] { ">=", "<=", "<>", ">", "<", "=" }) {
+        if (criterio.startsWith(o)) { op = o; resto = criterio.substring(o.length()); break; }
+      }
+      Double numero = numeroCriterio(resto.trim());
+      Pattern comodines = null;
+      if (numero == null && (resto.indexOf('*') >= 0 || resto.indexOf('?') >= 0 || resto.indexOf('~') >= 0)) {
+        comodines = Pattern.compile(comoRegex(resto), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+      }
+      return new Criterio(columna, op, numero, resto, comodines);
+    }
+
+    boolean cumple(Celdas f) {
+      int c = columna;
+      if (numero != null) {
+        if (!f.esNumero[c]) return op.equals("<>");
+        int cmp = Double.compare(f.numeros[c], numero);
+        return compara(cmp);
+      }
+      if (texto.isEmpty()) {
+        // "" cuenta las vacías y los textos vacíos; "<>" todo lo que no sea una celda vacía, texto vacío incluido
+        if (op.equals("<>")) return !f.esVacia(c);
+        return op.equals("=") && (f.esVacia(c) || "".equals(f.textos[c]));
+      }
+      String v = f.textos[c];
+      if (op.equals("=") || op.equals("<>")) {
+        boolean igual = v != null && (comodines != null ? comodines.matcher(v).matches() : v.equalsIgnoreCase(texto));
+        return op.equals("=") == igual;
+      }
+      return v != null && compara(v.compareToIgnoreCase(texto));
+    }
+
+    private boolean compara(int cmp) {
+      return switch (op) {
+        case ">=" -> cmp >= 0;
+        case "<=" -> cmp <= 0;
+        case ">" -> cmp > 0;
+        case "<" -> cmp < 0;
+        case "<>" -> cmp != 0;
+        default -> cmp == 0;
+      };
+    }
+
+    private static Double numeroCriterio(String s) {
+      if (NUMERO.matcher(s).matches()) return Double.valueOf(s);
+      try {
+        return DateUtil.getExcelDate(LocalDate.parse(s, FECHA_CRITERIO));
+      } catch (DateTimeParseException e) {
+        return null;
+      }
+    }
+
+    private static String comoRegex(String s) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < s.length(); i++) {
+        char ch = s.charAt(i);
+        if (ch == '~' && i + 1 < s.length()) sb.append(Pattern.quote(String.valueOf(s.charAt(++i))));
+        else if (ch == '*') sb.append(".*");
+        else if (ch == '?') sb.append('.');
+        else sb.append(Pattern.quote(String.valueOf(ch)));
+      }
+      return sb.toString();
+    }
+  }
+
+  private static boolean cumpleTodos(Criterio[] criterios, Celdas f) {
+    for (Criterio c : criterios) {
+      if (!c.cumple(f)) return false;
+    }
+    return true;
+  }
+
+  // ===================== Acumuladores =====================
+
+  private static final class Suma implements Fuente {
+    private final int columna;
+    private final Criterio[] criterios;
+    private double total;
+    private FormulaError error;
+
+    Suma(int columna, Criterio[] criterios) {
+      this.columna = columna;
+      this.criterios = criterios;
+    }
+
+    @Override
+    public void agregar(Celdas f, int fila) {
+      if (!cumpleTodos(criterios, f)) return;
+      if (f.esNumero[columna]) total += f.numeros[columna];
+      else if (f.errores[columna] != null && error == null) error = f.errores[columna];
+    }
+
+    @Override
+    public String literal() {
+      return error != null ? error.getString() : numeroLiteral(total);
+    }
+  }
+
+  private static final class Conteo implements Fuente {
+    private final Criterio[] criterios;
+    private long total;
+
+    Conteo(Criterio[] criterios) {
+      this.criterios = criterios;
+    }
+
+    @Override
+    public void agregar(Celdas f, int fila) {
+      if (cumpleTodos(criterios, f)) total++;
+    }
+
+    @Override
+    public String literal() {
+      return Long.toString(total);
+    }
+  }
+
+  private static final class NoVacias implements Fuente {
+    private final int columna;
+    private long total;
+
+    NoVacias(int columna) {
+      this.columna = columna;
+    }
+
+    @Override
+    public void agregar(Celdas f, int fila) {
+      if (!f.esVacia(columna)) total++;
+    }
+
+    @Override
+    public String literal() {
+      return Long.toString(total);
+    }
+  }
+
+  /** COUNTA(UNIQUE(X:X)): valores distintos sin distinguir mayúsculas, más el vacío del resto de la columna. */
+  private static final class Unicos implements Fuente {
+    private final int columna;
+    private final Set<String> vistos = new HashSet<>();
+
+    Unicos(int columna) {
+      this.columna = columna;
+    }
+
+    @Override
+    public void agregar(Celdas f, int fila) {
+      if (f.esNumero[columna]) vistos.add("n" + f.numeros[columna]);
+      else if (f.textos[columna] != null) vistos.add("t" + f.textos[columna].toLowerCase(Locale.ROOT));
+      else if (f.errores[columna] != null) vistos.add("e" + f.errores[columna].getCode());
+    }
+
+    @Override
+    public String literal() {
+      return Long.toString(vistos.size() + 1L);
+    }
+  }
+
+  private static final class ValorCelda implements Fuente {
+    private final int columna;
+    private final int numFila;
+    private String literal = "0"; // una celda vacía vale 0 en la fórmula
+
+    ValorCelda(int columna, int numFila) {
+      this.columna = columna;
+      this.numFila = numFila;
+    }
+
+    @Override
+    public void agregar(Celdas f, int fila) {
+      if (fila != numFila) return;
+      if (f.esNumero[columna]) literal = numeroLiteral(f.numeros[columna]);
+      else if (f.textos[columna] != null) literal = '"' + f.textos[columna].replace("\"", "\"\"") + '"';
+      else if (f.errores[columna] != null) literal = f.errores[columna].getString();
+    }
+
+    @Override
+    public String literal() {
+      return literal;
+    }
+  }
+}
@@ -1,9 +1,119 @@
 package com.pagosyradicacion.backend.config;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 @Configuration
 @EnableAsync
-public class AsyncConfig {}
+@EnableScheduling
+public class AsyncConfig {
 
+  /**
+   * Pool acotado para los jobs de actualización de radicacion_filtrada. Los jobs son pocos y
+   * pesados en BD: no deben competir con el ForkJoin común ni crecer sin límite.
+   */
+  @Bean(name = "radicacionJobExecutor")
+  public ThreadPoolTaskExecutor radicacionJobExecutor(
+      @Value("${radicacion.jobs.threads:1}") int threads,
+      @Value("${radicacion.jobs.queue:2}") int queue) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(Math.max(1, threads));
+    executor.setMaxPoolSize(Math.max(1, threads));
+    executor.setQueueCapacity(Math.max(0, queue));
+    executor.setThreadNamePrefix("radicacion-job-");
+    executor.setWaitForTasksToCompleteOnShutdown(false);
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Exportación TXT multi-NIT: un archivo temporal por NIT. Compartido entre todas las exportaciones
+   * simultáneas, así radicacion.export.multi.threads acota las conexiones de todo el servidor y no las de
+   * cada request; se limita además a la mitad del pool de Hikari. La cola no se limita: cada NIT es una tarea.
+   */
+  @Bean(name = "radicacionExportExecutor")
+  public ThreadPoolTaskExecutor radicacionExportExecutor(
+      @Value("${radicacion.export.multi.threads:4}") int threads,
+      @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize) {
+    int hilos = Math.max(1, Math.min(threads, poolSize / 2));
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(hilos);
+    executor.setMaxPoolSize(hilos);
+    executor.setThreadNamePrefix("radicacion-export-");
+    executor.setWaitForTasksToCompleteOnShutdown(false);
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Hilos que generan los XLSX de un lote de conciliación. Es compartido entre lotes simultáneos: cada
+   * hilo abre una conexión y arma un libro, así que el total queda acotado sin importar cuántos lotes
+   * haya. La cola no se limita porque cada lote solo deja en ella una ventana de 2 x hilos tareas.
+   */
+  @Bean(name = "conciliacionLoteExecutor")
+  public ThreadPoolTaskExecutor conciliacionLoteExecutor(
+      @Value("${conciliacion.lote.threads:4}") int threads) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(Math.max(1, threads));
+    executor.setMaxPoolSize(Math.max(1, threads));
+    executor.setThreadNamePrefix("conciliacion-lote-");
+    executor.setWaitForTasksToCompleteOnShutdown(false);
+    executor.initialize();
+    return executor;
+  }
+
+  /** Coordina los lotes que se generan como archivo en el servidor (uno a la vez, dos en cola). */
+  @Bean(name = "conciliacionLoteJobExecutor")
+  public ThreadPoolTaskExecutor conciliacionLoteJobExecutor(
+      @Value("${conciliacion.lote.jobs.threads:1}") int threads,
+      @Value("${conciliacion.lote.jobs.queue:2}") int queue) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(Math.max(1, threads));
+    executor.setMaxPoolSize(Math.max(1, threads));
+    executor.setQueueCapacity(Math.max(0, queue));
+    executor.setThreadNamePrefix("conciliacion-lote-job-");
+    executor.setWaitForTasksToCompleteOnShutdown(false);
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Consultas de métricas de Lista de Tareas: recargas en segundo plano de entradas vencidas y el refresh
+   * paralelo de todos los tipos. Cada tarea ocupa una conexión, así que se acota a la mitad del pool de
+   * Hikari para no dejar sin conexiones al resto de la aplicación.
+   */
+  @Bean(name = "listaTareasExecutor")
+  public ThreadPoolTaskExecutor listaTareasExecutor(
+      @Value("${listatareas.threads:4}") int threads,
+      @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize) {
+    int hilos = Math.max(1, Math.min(threads, poolSize / 2));
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(hilos);
+    executor.setMaxPoolSize(hilos);
+    executor.setQueueCapacity(16);
+    executor.setThreadNamePrefix("lista-tareas-");
+    executor.setWaitForTasksToCompleteOnShutdown(false);
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Reconstruye el snapshot de Lista de Tareas en segundo plano. Un solo hilo: las partes se arman una a
+   * la vez y cada tarea procesa todo lo pendiente, así que la cola nunca tiene más de una.
+   */
+  @Bean(name = "listaTareasSnapshotExecutor")
+  public ThreadPoolTaskExecutor listaTareasSnapshotExecutor() {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(1);
+    executor.setMaxPoolSize(1);
+    executor.setQueueCapacity(1);
+    executor.setThreadNamePrefix("lista-tareas-snapshot-");
+    executor.setWaitForTasksToCompleteOnShutdown(false);
+    executor.initialize();
+    return executor;
+  }
+}
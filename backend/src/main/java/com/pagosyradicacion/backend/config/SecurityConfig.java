@@ -53,6 +53,14 @@ public class SecurityConfig {
     ));
     configuration.setAllowedMethods(List.of("GET", "POST", "PUT", "DELETE", "PATCH", "OPTIONS"));
     configuration.setAllowedHeaders(List.of("*"));
+    configuration.setExposedHeaders(List.of(
+        "Content-Disposition",
+        "X-Export-Total-Ms",
+        "X-Export-Nits",
+        "X-Export-Nits-Con-Registros",
+        "X-Export-Nit-Timings",
+        "X-Export-Nit-Timings-Truncated"
+    ));
     configuration.setAllowCredentials(true);
 
     UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
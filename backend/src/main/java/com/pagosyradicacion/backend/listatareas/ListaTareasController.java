@@ -1,7 +1,10 @@
 package com.pagosyradicacion.backend.listatareas;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -9,7 +12,12 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.ContentDisposition;
@@ -21,6 +29,8 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping("/api/v1/lista-tareas")
@@ -39,9 +49,11 @@ public class ListaTareasController {
   }
 
   private final ListaTareasService service;
+  private final ObjectMapper json;
 
-  public ListaTareasController(ListaTareasService service) {
+  public ListaTareasController(ListaTareasService service, ObjectMapper json) {
     this.service = service;
+    this.json = json;
   }
 
   private static boolean isValidType(String type) {
@@ -74,18 +86,20 @@ public class ListaTareasController {
     }
   }
 
+  private static List<String> tiposPedidos(String types) {
+    if (types == null || types.isBlank()) {
+      return new java.util.ArrayList<>(REPORTS.keySet());
+    }
+    return java.util.Arrays.stream(types.split(","))
+        .map(String::trim)
+        .filter(REPORTS::containsKey)
+        .toList();
+  }
+
   @GetMapping("/metrics/refresh")
   public ResponseEntity<?> refresh(@RequestParam(name = "types", required = false) String types) {
     try {
-      List<String> list;
-      if (types == null || types.isBlank()) {
-        list = new java.util.ArrayList<>(REPORTS.keySet());
-      } else {
-        list = java.util.Arrays.stream(types.split(","))
-            .map(String::trim)
-            .filter(REPORTS::containsKey)
-            .toList();
-      }
+      List<String> list = tiposPedidos(types);
       Map<String, Map<String, Object>> data = service.refreshAll(list);
       return ResponseEntity.ok(Map.of(
           "ok", true,
@@ -98,6 +112,57 @@ public class ListaTareasController {
     }
   }
 
+  // Igual que /metrics/refresh, pero cada tipo se escribe apenas termina su consulta (NDJSON: una línea
+  // JSON por tipo y una final con done), para que la UI llene las tarjetas a medida que llegan.
+  @GetMapping(value = "/metrics/refresh/stream", produces = "application/x-ndjson")
+  public ResponseEntity<StreamingResponseBody> refreshStream(@RequestParam(name = "types", required = false) String types) {
+    Map<String, CompletableFuture<Map<String, Object>>> futuros = service.refreshAllAsync(tiposPedidos(types));
+    BlockingQueue<String> listos = new LinkedBlockingQueue<>();
+    futuros.forEach((t, futuro) -> futuro.whenComplete((m, ex) -> listos.add(t)));
+
+    StreamingResponseBody body = out -> {
+      for (int i = 0; i < futuros.size(); i++) {
+        String type;
+        try {
+          type = listos.take();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new java.io.InterruptedIOException("refresh interrumpido");
+        }
+        Map<String, Object> linea = new LinkedHashMap<>();
+        linea.put("type", type);
+        linea.put("label", REPORTS.get(type));
+        try {
+          linea.put("metrics", futuros.get(type).join());
+          linea.put("ok", true);
+        } catch (CompletionException e) {
+          log.error("metrics refresh failed: type={}, msg={}", type, e.getCause().getMessage(), e.getCause());
+          linea.put("ok", false);
+          linea.put("error", "Error al consultar métricas");
+        }
+        out.write(json.writeValueAsBytes(linea));
+        out.write('\n');
+        out.flush();
+      }
+      out.write(json.writeValueAsBytes(Map.of("done", true, "ts", java.time.Instant.now().toString())));
+      out.write('\n');
+      out.flush();
+    };
+    return ResponseEntity.ok()
+        .header(HttpHeaders.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0")
+        // Sin buffer en proxies (nginx) para que cada línea llegue al terminar
+        .header("X-Accel-Buffering", "no")
+        .contentType(MediaType.parseMediaType("application/x-ndjson"))
+        .body(body);
+  }
+
+  @GetMapping("/metrics/cache-stats")
+  public ResponseEntity<?> cacheStats() {
+    return ResponseEntity.ok()
+        .header(HttpHeaders.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0")
+        .body(Map.of("ok", true, "cache", service.metricsCacheStats()));
+  }
+
   @GetMapping("/data/{type}")
   public ResponseEntity<?> data(@PathVariable("type") String type, @RequestParam(name = "limit", defaultValue = "200") int limit) {
     if (!isValidType(type)) {
@@ -124,8 +189,47 @@ public class ListaTareasController {
     }
   }
 
+  // Página por cursor del reporte, leída del snapshot, con filtros y orden del lado del servidor.
+  // token es el nextToken de la página anterior y solo vale con los mismos filtros y orden.
+  @GetMapping("/data/{type}/page")
+  public ResponseEntity<?> page(
+      @PathVariable("type") String type,
+      @RequestParam(name = "nit", required = false) String nit,
+      @RequestParam(name = "voucher", required = false) String voucherPrefix,
+      @RequestParam(name = "valorCampo", required = false) String valorCampo,
+      @RequestParam(name = "valorMin", required = false) BigDecimal valorMin,
+      @RequestParam(name = "valorMax", required = false) BigDecimal valorMax,
+      @RequestParam(name = "sort", defaultValue = "nit") String sort,
+      @RequestParam(name = "dir", defaultValue = "asc") String dir,
+      @RequestParam(name = "token", required = false) String token,
+      @RequestParam(name = "size", required = false) Integer size,
+      @RequestParam(name = "total", defaultValue = "false") boolean total) {
+    if (!isValidType(type)) {
+      return ResponseEntity.badRequest().body(Map.of("ok", false, "error", "Tipo no válido"));
+    }
+    String trace = "page_" + java.util.UUID.randomUUID();
+    try {
+      ListaTareasService.FiltroPagina filtro =
+          new ListaTareasService.FiltroPagina(nit, voucherPrefix, valorCampo, valorMin, valorMax);
+      ListaTareasPageResponse pagina = service.pageFor(type, filtro, sort, "desc".equalsIgnoreCase(dir), token, size, total);
+      return ResponseEntity.ok()
+          .header(HttpHeaders.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0")
+          .body(pagina);
+    } catch (ResponseStatusException e) {
+      return ResponseEntity.status(e.getStatusCode()).body(Map.of("ok", false, "error", e.getReason()));
+    } catch (Exception e) {
+      log.error("page failed: type={}, trace={}, msg={}", type, trace, e.getMessage(), e);
+      return ResponseEntity.internalServerError().body(Map.of(
+          "ok", false,
+          "error", "No se pudo cargar la página",
+          "trace_id", trace));
+    }
+  }
+
+  // CSV escrito sobre la respuesta a medida que llegan las filas (general pasa de 2M de líneas):
+  // el BOM y el encabezado salen antes de que la consulta devuelva la primera fila
   @GetMapping(value = "/download", produces = "text/csv")
-  public ResponseEntity<byte[]> download(@RequestParam(name = "type", defaultValue = "general") String type) {
+  public ResponseEntity<StreamingResponseBody> download(@RequestParam(name = "type", defaultValue = "general") String type) {
     if (!isValidType(type)) {
       return ResponseEntity.badRequest().build();
     }
@@ -133,26 +237,22 @@ public class ListaTareasController {
     String ts = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss", Locale.ROOT).format(LocalDateTime.now());
     String filename = String.format("reporte_%s_%s.csv", type, ts);
 
-    try {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
-      // Write UTF-8 BOM
-      baos.write(0xEF);
-      baos.write(0xBB);
-      baos.write(0xBF);
-
-      try (OutputStreamWriter writer = new OutputStreamWriter(baos, StandardCharsets.UTF_8)) {
+    StreamingResponseBody body = out -> {
+      try {
+        // UTF-8 BOM para Excel
+        out.write(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF });
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
         service.writeCsv(type, writer);
         writer.flush();
+      } catch (IOException | RuntimeException e) {
+        log.error("download failed: type={}, filename={}, msg={}", type, filename, e.getMessage(), e);
+        throw e;
       }
+    };
 
-      HttpHeaders headers = new HttpHeaders();
-      headers.setContentType(new MediaType("text", "csv", StandardCharsets.UTF_8));
-      headers.setContentDisposition(ContentDisposition.attachment().filename(filename).build());
-      return ResponseEntity.ok().headers(headers).body(baos.toByteArray());
-
-    } catch (Exception e) {
-      log.error("download failed: type={}, filename={}, msg={}", type, filename, e.getMessage(), e);
-      return ResponseEntity.internalServerError().build();
-    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(new MediaType("text", "csv", StandardCharsets.UTF_8));
+    headers.setContentDisposition(ContentDisposition.attachment().filename(filename).build());
+    return ResponseEntity.ok().headers(headers).body(body);
   }
 }
@@ -0,0 +1,17 @@
+package com.pagosyradicacion.backend.listatareas;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Página por cursor (keyset) de un reporte de Lista de Tareas: nextToken es opaco y se envía tal cual,
+ * con los mismos filtros y orden, para pedir la siguiente página. totalElements solo viene si se pidió
+ * (total=true) y puede salir de caché.
+ */
+public record ListaTareasPageResponse(
+    String type,
+    List<Map<String, Object>> content,
+    String nextToken,
+    boolean hasMore,
+    int pageSize,
+    Long totalElements) {}
@@ -3,19 +3,29 @@ package com.pagosyradicacion.backend.listatareas;
 import java.io.IOException;
 import java.io.Writer;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.HttpStatus;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
+import com.pagosyradicacion.backend.radicacion.NitNormalizadoSchema;
+
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
@@ -23,71 +33,42 @@ import java.util.concurrent.TimeUnit;
 public class ListaTareasService {
 
   private final JdbcTemplate jdbc;
+  private final ListaTareasSnapshot snapshot;
   private static final long METRICS_TTL_MS = TimeUnit.MINUTES.toMillis(10);
-  private final ConcurrentHashMap<String, CacheEntry> metricsCache = new ConcurrentHashMap<>();
-
-  private static final class CacheEntry {
-    final long ts;
-    final Map<String, Object> data;
-    CacheEntry(long ts, Map<String, Object> data) { this.ts = ts; this.data = data; }
-  }
-
-  public ListaTareasService(JdbcTemplate jdbc) {
+  private static final int CSV_FETCH_SIZE = 1000;
+  private static final int PAGE_SIZE_DEFAULT = 100;
+  private static final int PAGE_SIZE_MAX = 1000;
+  private static final int CONTEOS_MAX = 256;
+  private static final char SEP_CURSOR = '\u001F';
+  // Totales de pageFor por reporte y filtros, válidos mientras no cambie la versión del snapshot
+  private final ConcurrentHashMap<String, Long> conteos = new ConcurrentHashMap<>();
+  private final MetricasCache metricas;
+  private final TaskExecutor executor;
+
+  public ListaTareasService(JdbcTemplate jdbc, ListaTareasSnapshot snapshot,
+      @Qualifier("listaTareasExecutor") TaskExecutor executor) {
     this.jdbc = jdbc;
+    this.snapshot = snapshot;
+    this.executor = executor;
+    // La versión del snapshot invalida las métricas cuando una carga o un rebuild lo reemplaza
+    this.metricas = new MetricasCache(this::metricsGrupo, ListaTareasService::grupoDe, snapshot::version,
+        executor, METRICS_TTL_MS);
   }
 
-  /* ===================== SQL Builders ===================== */
+  // Tipos cuyas métricas salen de una sola pasada sobre traza ⟗ radicación (combinedMetricsSql)
+  private static final String GRUPO_TRAZA_RADICACION = "traza_radicacion";
+  private static final List<String> TIPOS_TRAZA_RADICACION = List.of(
+      "general", "faltantes", "pagado_mayor", "no_en_traza", "nit_no_en_traza");
 
-  private String baseCTE() {
-    return """
-        ;WITH pagos_traza_agrupado AS (
-            SELECT 
-                nit     = LTRIM(RTRIM(REPLACE(REPLACE(CAST(pt.identificacion AS VARCHAR(30)),'.',''),'-',''))),
-                voucher = LTRIM(RTRIM(CAST(pt.voucher AS VARCHAR(50)))),
-                valor_causado = SUM(TRY_CONVERT(DECIMAL(18,2), pt.valor_causado))
-            FROM fomagf.dbo.pagos_traza pt WITH (NOLOCK)
-            WHERE pt.identificacion IS NOT NULL
-              AND pt.voucher IS NOT NULL AND pt.voucher <> ''
-            GROUP BY
-                LTRIM(RTRIM(REPLACE(REPLACE(CAST(pt.identificacion AS VARCHAR(30)),'.',''),'-',''))),
-                LTRIM(RTRIM(CAST(pt.voucher AS VARCHAR(50))))
-        ),
-        rad_union_base AS (
-            SELECT 
-                nit     = LTRIM(RTRIM(REPLACE(REPLACE(CAST(rf.nit AS VARCHAR(30)),'.',''),'-',''))),
-                voucher = LTRIM(RTRIM(CAST(rf.voucher AS VARCHAR(50)))),
-                valor_factura = TRY_CONVERT(DECIMAL(18,2), rf.valor_factura),
-                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), rf.valor_pagado)
-            FROM fomagf.dbo.radicacion_filtrada rf WITH (NOLOCK)
-            WHERE rf.voucher IS NOT NULL AND rf.voucher <> ''
-
-            UNION ALL
-
-            SELECT 
-                nit     = LTRIM(RTRIM(REPLACE(REPLACE(CAST(rfc.nit AS VARCHAR(30)),'.',''),'-',''))),
-                voucher = LTRIM(RTRIM(CAST(rfc.voucher AS VARCHAR(50)))),
-                valor_factura = TRY_CONVERT(DECIMAL(18,2), rfc.valor_factura),
-                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), rfc.valor_pagado)
-            FROM fomagf.dbo.radicacion_filtrada_capita rfc WITH (NOLOCK)
-            WHERE rfc.voucher IS NOT NULL AND rfc.voucher <> ''
-        ),
-        rad_union_agrupado AS (
-            SELECT
-                nit,
-                voucher,
-                valor_factura_radicado = SUM(valor_factura),
-                valor_pagado_pagos     = SUM(valor_pagado)
-            FROM rad_union_base
-            GROUP BY nit, voucher
-        )
-        """;
-  }
+  /* ===================== SQL Builders ===================== */
 
+  // Todas las consultas leen el snapshot (ListaTareasSnapshot): lista_tareas_traza y
+  // lista_tareas_radicacion ya vienen normalizadas y agrupadas por (nit, voucher).
   private String fromJoin() {
     return """
-        FROM pagos_traza_agrupado pt
-        LEFT JOIN rad_union_agrupado r 
-          ON r.nit = pt.nit 
+        FROM dbo.lista_tareas_traza pt WITH (NOLOCK)
+        LEFT JOIN dbo.lista_tareas_radicacion r WITH (NOLOCK)
+          ON r.nit = pt.nit
          AND r.voucher = pt.voucher
         """;
   }
@@ -102,183 +83,133 @@ public class ListaTareasService {
   }
 
   private String selectFor(String type) {
+    return fuenteFor(type, false) + "\n" + switch (type) {
+      case "pagos_no_cruzan" -> "ORDER BY modalidad, nit, id";
+      case "no_en_traza" -> "ORDER BY r.nit, r.voucher";
+      case "nit_no_en_traza" -> "ORDER BY r.nit";
+      case "pagado_mayor_fact" -> "ORDER BY nit, voucher";
+      default -> "ORDER BY pt.nit, pt.voucher";
+    };
+  }
+
+  // Filas del reporte sin ORDER BY (se puede envolver en una tabla derivada). conFila agrega la columna
+  // fila de las tablas que pueden repetir (nit, voucher), para desempatar el cursor de pageFor.
+  private String fuenteFor(String type, boolean conFila) {
+    String fila = conFila ? ",\n    fila" : "";
     if ("pagos_no_cruzan".equals(type)) {
       return """
-          ;WITH pagos_clean AS (
-              SELECT 
-                  modalidad = UPPER(LTRIM(RTRIM(p.modalidad))),
-                  id        = LTRIM(RTRIM(CAST(p.id AS VARCHAR(50)))),
-                  nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(p.nit AS VARCHAR(30)),'.',''),'-',''))),
-                  voucher   = LTRIM(RTRIM(CAST(p.voucher AS VARCHAR(50)))),
-                  valor_pagado = TRY_CONVERT(DECIMAL(18,2), p.valor_pagado)
-              FROM dbo.pagos p WITH (NOLOCK)
-
-              UNION ALL
-
-              SELECT 
-                  modalidad = UPPER(LTRIM(RTRIM(pc.modalidad))),
-                  id        = LTRIM(RTRIM(CAST(pc.id AS VARCHAR(50)))),
-                  nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(pc.nit AS VARCHAR(30)),'.',''),'-',''))),
-                  voucher   = LTRIM(RTRIM(CAST(pc.voucher AS VARCHAR(50)))),
-                  valor_pagado = TRY_CONVERT(DECIMAL(18,2), pc.valor_pagado)
-              FROM dbo.pagos_capita pc WITH (NOLOCK)
-          ),
-          rad_clean AS (
-              SELECT
-                  modalidad = UPPER(LTRIM(RTRIM(r.modalidad_pago))),
-                  id        = LTRIM(RTRIM(CAST(r.id AS VARCHAR(50)))),
-                  nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(r.nit AS VARCHAR(30)),'.',''),'-','')))
-              FROM dbo.radicacion3 r WITH (NOLOCK)
-
-              UNION ALL
-
-              SELECT
-                  modalidad = UPPER(LTRIM(RTRIM(rc.[Modalidad Pago]))),
-                  id        = LTRIM(RTRIM(CAST(rc.[ID] AS VARCHAR(50)))),
-                  nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(rc.[NIT] AS VARCHAR(30)),'.',''),'-','')))
-              FROM dbo.radicacion_capita rc WITH (NOLOCK)
-          )
-          SELECT
-              modalidad = p.modalidad,
-              id        = p.id,
-              nit       = p.nit,
-              voucher   = p.voucher,
-              valor_pagado = p.valor_pagado
-          FROM pagos_clean p
-          LEFT JOIN rad_clean r
-                 ON r.modalidad = p.modalidad
-                AND r.id        = p.id
-                AND r.nit       = p.nit
-          WHERE r.id IS NULL
-            AND p.modalidad IS NOT NULL
-            AND p.modalidad <> '0'
-            AND p.id IS NOT NULL
-            AND p.nit IS NOT NULL
-          ORDER BY p.modalidad, p.nit, p.id
-          """;
+          SELECT modalidad, id, nit, voucher, valor_pagado%s
+          FROM dbo.lista_tareas_pagos_no_cruzan WITH (NOLOCK)
+          """.formatted(fila);
     }
 
-    String cte = baseCTE();
-
     if ("no_en_traza".equals(type)) {
-      return cte + """
+      return """
           SELECT 
               r.nit,
               voucher = r.voucher,
               valor_causado = NULL,
               valor_factura_radicado = r.valor_factura_radicado,
               valor_pagado_pagos     = r.valor_pagado_pagos
-          FROM rad_union_agrupado r
+          FROM dbo.lista_tareas_radicacion r WITH (NOLOCK)
           WHERE r.voucher IS NOT NULL AND r.voucher <> ''
             AND NOT EXISTS (
                   SELECT 1
-                  FROM pagos_traza_agrupado pt
+                  FROM dbo.lista_tareas_traza pt WITH (NOLOCK)
                   WHERE pt.nit = r.nit
                     AND pt.voucher = r.voucher
             )
-          ORDER BY r.nit, r.voucher
           """;
     }
 
     if ("nit_no_en_traza".equals(type)) {
-      return cte + """
+      return """
           SELECT 
               r.nit,
               voucher = NULL,
               valor_causado = NULL,
               valor_factura_radicado = NULL,
               valor_pagado_pagos = NULL
-          FROM rad_union_agrupado r
+          FROM dbo.lista_tareas_radicacion r WITH (NOLOCK)
           WHERE NOT EXISTS (
               SELECT 1
-              FROM pagos_traza_agrupado pt
+              FROM dbo.lista_tareas_traza pt WITH (NOLOCK)
               WHERE pt.nit = r.nit
           )
           GROUP BY r.nit
-          ORDER BY r.nit
           """;
     }
 
     if ("pagado_mayor_fact".equals(type)) {
       return """
-          SELECT
-              nit = LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))),
-              TRY_CONVERT(DECIMAL(18,2), valor_factura) AS valor_factura,
-              TRY_CONVERT(DECIMAL(18,2), valor_pagado)  AS valor_pagado,
-              voucher = LTRIM(RTRIM(CAST(voucher AS VARCHAR(50))))
-          FROM fomagf.dbo.radicacion_filtrada WITH (NOLOCK)
+          SELECT nit, valor_factura, valor_pagado, voucher%s
+          FROM dbo.lista_tareas_pagado_mayor_fact WITH (NOLOCK)
           WHERE voucher IS NOT NULL AND voucher <> ''
-            AND TRY_CONVERT(DECIMAL(18,2), valor_factura) IS NOT NULL
-            AND TRY_CONVERT(DECIMAL(18,2), valor_pagado)  IS NOT NULL
-            AND TRY_CONVERT(DECIMAL(18,2), valor_factura) <> 0
-            AND TRY_CONVERT(DECIMAL(18,2), valor_pagado)  > TRY_CONVERT(DECIMAL(18,2), valor_factura)
-
-          UNION ALL
-
-          SELECT
-              nit = LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))),
-              TRY_CONVERT(DECIMAL(18,2), valor_factura) AS valor_factura,
-              TRY_CONVERT(DECIMAL(18,2), valor_pagado)  AS valor_pagado,
-              voucher = LTRIM(RTRIM(CAST(voucher AS VARCHAR(50))))
-          FROM fomagf.dbo.radicacion_filtrada_capita WITH (NOLOCK)
-          WHERE voucher IS NOT NULL AND voucher <> ''
-            AND TRY_CONVERT(DECIMAL(18,2), valor_factura) IS NOT NULL
-            AND TRY_CONVERT(DECIMAL(18,2), valor_pagado)  IS NOT NULL
-            AND TRY_CONVERT(DECIMAL(18,2), valor_factura) <> 0
-            AND TRY_CONVERT(DECIMAL(18,2), valor_pagado)  > TRY_CONVERT(DECIMAL(18,2), valor_factura)
-          """;
+          """.formatted(fila);
     }
 
     // general, faltantes, pagado_mayor
     String from = fromJoin();
     String where = whereFor(type);
-    return cte + """
+    return """
         SELECT 
             pt.nit,
             voucher = pt.voucher,
             pt.valor_causado,
             r.valor_factura_radicado,
             r.valor_pagado_pagos
-        """ + from + "\n" + where + "\nORDER BY pt.nit, pt.voucher";
+        """ + from + "\n" + where;
   }
 
   /* ===================== Public API ===================== */
 
   public Map<String, Object> metricsCached(String type, boolean fresh) {
-    if (!fresh) {
-      CacheEntry ce = metricsCache.get(type);
-      if (ce != null && (System.currentTimeMillis() - ce.ts) < METRICS_TTL_MS) {
-        return ce.data;
-      }
-    }
-    Map<String, Object> data = metricsFor(type);
-    metricsCache.put(type, new CacheEntry(System.currentTimeMillis(), data));
-    return data;
+    snapshot.asegurar();
+    return metricas.obtener(type, fresh);
+  }
+
+  /** Contadores de la caché de métricas (hits, vencidas servidas, misses, cargas y su duración). */
+  public Map<String, Object> metricsCacheStats() {
+    return metricas.estadisticas();
   }
 
   public Map<String, Map<String, Object>> refreshAll(List<String> types) {
     Map<String, Map<String, Object>> out = new LinkedHashMap<>();
+    refreshAllAsync(types).forEach((t, futuro) -> out.put(t, MetricasCache.esperar(futuro)));
+    return out;
+  }
+
+  /**
+   * Recalcula las métricas de types en paralelo sobre listaTareasExecutor (acotado por el pool de
+   * conexiones). Devuelve un futuro por tipo, en el orden pedido; cada uno completa apenas termina su
+   * consulta. Un tipo que ya se está cargando no se consulta dos veces.
+   */
+  public Map<String, CompletableFuture<Map<String, Object>>> refreshAllAsync(List<String> types) {
+    snapshot.asegurar();
+    Map<String, CompletableFuture<Map<String, Object>>> out = new LinkedHashMap<>();
     for (String t : types) {
-      Map<String, Object> m = metricsFor(t);
-      metricsCache.put(t, new CacheEntry(System.currentTimeMillis(), m));
-      out.put(t, m);
+      out.put(t, metricas.cargar(t, executor));
     }
     return out;
   }
 
+  private static final List<String> MEMBERSHIP_TYPES = List.of(
+      "faltantes", "pagado_mayor", "no_en_traza", "nit_no_en_traza", "pagado_mayor_fact", "pagos_no_cruzan");
+
   /**
    * Verifica en qué consultas de "Lista de Tareas" aparece un NIT.
    * No bloquea descarga; solo informa los tipos coincidentes.
+   * Los seis tipos salen de una sola consulta (membershipSql) con el NIT filtrado en cada tabla.
    */
   public Map<String, Object> checkNitMembership(String nitRaw) {
+    snapshot.asegurar();
     String nit = normalizeNit(nitRaw);
-    List<String> tipos = List.of(
-      "faltantes", "pagado_mayor", "no_en_traza", "nit_no_en_traza", "pagado_mayor_fact", "pagos_no_cruzan"
-    );
     List<String> matches = new ArrayList<>();
-    for (String t : tipos) {
-      if (existsIn(t, nit)) matches.add(t);
-    }
+    jdbc.query(membershipSql(), ps -> ps.setString(1, nit), (RowCallbackHandler) rs -> {
+      for (String t : MEMBERSHIP_TYPES) {
+        if (rs.getInt(t) == 1) matches.add(t);
+      }
+    });
     Map<String, Object> out = new LinkedHashMap<>();
     out.put("nit", nitRaw);
     out.put("nitNorm", nit);
@@ -287,226 +218,187 @@ public class ListaTareasService {
     return out;
   }
 
-  private boolean existsIn(String type, String nitNorm) {
-    String sql = existsSqlFor(type);
-    List<Integer> rows = jdbc.query(sql, ps -> { ps.setString(1, nitNorm); }, (rs, i) -> 1);
-    return !rows.isEmpty();
+  /*
+   * Una fila con un 0/1 por tipo, leyendo solo las filas del NIT: todas las tablas del snapshot tienen
+   * el nit como primera columna de un índice. @nit es VARCHAR(30) como la columna, para que el parámetro
+   * (NVARCHAR desde JDBC) no obligue a convertir la columna.
+   */
+  private static String membershipSql() {
+    return """
+        SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 10000;
+        DECLARE @nit VARCHAR(30) = ?;
+        SELECT
+            faltantes = CASE WHEN EXISTS (
+                SELECT 1
+                FROM dbo.lista_tareas_traza pt WITH (NOLOCK)
+                LEFT JOIN dbo.lista_tareas_radicacion r WITH (NOLOCK) ON r.nit = pt.nit AND r.voucher = pt.voucher
+                WHERE pt.nit = @nit
+                  AND r.valor_factura_radicado IS NULL
+            ) THEN 1 ELSE 0 END,
+            pagado_mayor = CASE WHEN EXISTS (
+                SELECT 1
+                FROM dbo.lista_tareas_traza pt WITH (NOLOCK)
+                JOIN dbo.lista_tareas_radicacion r WITH (NOLOCK) ON r.nit = pt.nit AND r.voucher = pt.voucher
+                WHERE pt.nit = @nit
+                  AND r.valor_pagado_pagos > pt.valor_causado
+            ) THEN 1 ELSE 0 END,
+            no_en_traza = CASE WHEN EXISTS (
+                SELECT 1
+                FROM dbo.lista_tareas_radicacion r WITH (NOLOCK)
+                WHERE r.nit = @nit
+                  AND r.voucher IS NOT NULL AND r.voucher <> ''
+                  AND NOT EXISTS (
+                      SELECT 1 FROM dbo.lista_tareas_traza pt WITH (NOLOCK) WHERE pt.nit = r.nit AND pt.voucher = r.voucher
+                  )
+            ) THEN 1 ELSE 0 END,
+            nit_no_en_traza = CASE WHEN EXISTS (SELECT 1 FROM dbo.lista_tareas_radicacion WITH (NOLOCK) WHERE nit = @nit)
+                AND NOT EXISTS (SELECT 1 FROM dbo.lista_tareas_traza WITH (NOLOCK) WHERE nit = @nit) THEN 1 ELSE 0 END,
+            pagado_mayor_fact = CASE WHEN EXISTS (
+                SELECT 1
+                FROM dbo.lista_tareas_pagado_mayor_fact WITH (NOLOCK)
+                WHERE nit = @nit AND voucher IS NOT NULL AND voucher <> ''
+            ) THEN 1 ELSE 0 END,
+            pagos_no_cruzan = CASE WHEN EXISTS (
+                SELECT 1 FROM dbo.lista_tareas_pagos_no_cruzan WITH (NOLOCK) WHERE nit = @nit
+            ) THEN 1 ELSE 0 END;
+        """;
+  }
+
+  // Misma regla que la columna nit_norm de las tablas consultadas
+  private static String normalizeNit(String nit) {
+    return NitNormalizadoSchema.normalizar(nit);
+  }
+
+  private static String grupoDe(String type) {
+    return TIPOS_TRAZA_RADICACION.contains(type) ? GRUPO_TRAZA_RADICACION : type;
+  }
+
+  private Map<String, Map<String, Object>> metricsGrupo(String grupo) {
+    if (GRUPO_TRAZA_RADICACION.equals(grupo)) return combinedMetrics();
+    Map<String, Map<String, Object>> out = new HashMap<>();
+    out.put(grupo, metricsFor(grupo));
+    return out;
+  }
+
+  /**
+   * Métricas de general, faltantes, pagado_mayor, no_en_traza y nit_no_en_traza en una sola consulta:
+   * cada reporte es un filtro distinto sobre el mismo cruce, así que se cuentan y suman juntos con
+   * agregación condicional.
+   */
+  private Map<String, Map<String, Object>> combinedMetrics() {
+    Map<String, Object> row = jdbc.queryForMap(combinedMetricsSql());
+    Map<String, Map<String, Object>> out = new LinkedHashMap<>();
+    // causado/pagado de pagos_traza y la suma de cápita los deja calculados el snapshot
+    out.put("general", metrica(row.get("general_rows"),
+        row.get("traza_suma_causado"), row.get("traza_suma_pagado"),
+        toDouble(row.get("general_factura")) + toDouble(row.get("capita_suma_factura"))));
+    out.put("faltantes", metrica(row.get("faltantes_rows"),
+        row.get("faltantes_causado"), row.get("faltantes_pagado"), row.get("faltantes_factura")));
+    out.put("pagado_mayor", metrica(row.get("pagado_mayor_rows"),
+        row.get("pagado_mayor_causado"), row.get("pagado_mayor_pagado"), row.get("pagado_mayor_factura")));
+    out.put("no_en_traza", metrica(row.get("no_en_traza_rows"),
+        null, row.get("no_en_traza_pagado"), row.get("no_en_traza_factura")));
+    out.put("nit_no_en_traza", metrica(row.get("nit_no_en_traza_rows"), null, null, null));
+    return out;
   }
 
-  // Construye una consulta TOP 1 sin ORDER BY y con filtro por NIT, evitando anidar CTEs
-  private String existsSqlFor(String type) {
-    switch (type) {
-      case "faltantes":
-      case "pagado_mayor": {
-        String cte = baseCTE();
-        String where = whereFor(type);
-        String from = fromJoin();
-        return "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 10000; " +
-               cte + "\nSELECT TOP 1 1\n" + from + "\n" + where + " AND pt.nit = ?";
-      }
-      case "no_en_traza": {
-        String cte = baseCTE();
-        return "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 10000; " +
-               cte + "\nSELECT TOP 1 1\nFROM rad_union_agrupado r\nWHERE r.voucher IS NOT NULL AND r.voucher <> ''\n  AND NOT EXISTS (\n        SELECT 1 FROM pagos_traza_agrupado pt WHERE pt.nit = r.nit AND pt.voucher = r.voucher\n  )\n  AND r.nit = ?";
-      }
-      case "nit_no_en_traza": {
-        String cte = baseCTE();
-        return "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 10000; " +
-               cte + "\nSELECT TOP 1 1\nFROM rad_union_agrupado r\nWHERE NOT EXISTS ( SELECT 1 FROM pagos_traza_agrupado pt WHERE pt.nit = r.nit )\n  AND r.nit = ?";
-      }
-      case "pagado_mayor_fact": {
-        String union = """
+  /*
+   * FULL OUTER JOIN de lista_tareas_traza y lista_tareas_radicacion por (nit, voucher): una fila de traza
+   * sin radicación es faltante, una de radicación sin traza es no_en_traza. Los dos índices clustered van
+   * por (nit, voucher), así que el cruce sale ordenado por nit y el paso por_nit (para saber si el NIT
+   * tiene alguna fila en traza) no necesita ordenar. El voucher nunca es NULL en el snapshot: marca de
+   * qué lado viene la fila.
+   */
+  private static String combinedMetricsSql() {
+    return """
+        SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000;
+        ;WITH j AS (
             SELECT
-                nit = LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))),
-                TRY_CONVERT(DECIMAL(18,2), valor_factura) AS valor_factura,
-                TRY_CONVERT(DECIMAL(18,2), valor_pagado)  AS valor_pagado,
-                voucher = LTRIM(RTRIM(CAST(voucher AS VARCHAR(50))))
-            FROM fomagf.dbo.radicacion_filtrada WITH (NOLOCK)
-            WHERE voucher IS NOT NULL AND voucher <> ''
-              AND TRY_CONVERT(DECIMAL(18,2), valor_factura) IS NOT NULL
-              AND TRY_CONVERT(DECIMAL(18,2), valor_pagado)  IS NOT NULL
-              AND TRY_CONVERT(DECIMAL(18,2), valor_factura) <> 0
-              AND TRY_CONVERT(DECIMAL(18,2), valor_pagado)  > TRY_CONVERT(DECIMAL(18,2), valor_factura)
-
-            UNION ALL
-
+                nit      = COALESCE(pt.nit, r.nit),
+                en_traza = CASE WHEN pt.voucher IS NOT NULL THEN 1 ELSE 0 END,
+                causado  = pt.valor_causado,
+                factura  = r.valor_factura_radicado,
+                pagado   = r.valor_pagado_pagos
+            FROM dbo.lista_tareas_traza pt WITH (NOLOCK)
+            FULL OUTER JOIN dbo.lista_tareas_radicacion r WITH (NOLOCK)
+              ON r.nit = pt.nit
+             AND r.voucher = pt.voucher
+        ),
+        f AS (
             SELECT
-                nit = LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))),
-                TRY_CONVERT(DECIMAL(18,2), valor_factura) AS valor_factura,
-                TRY_CONVERT(DECIMAL(18,2), valor_pagado)  AS valor_pagado,
-                voucher = LTRIM(RTRIM(CAST(voucher AS VARCHAR(50))))
-            FROM fomagf.dbo.radicacion_filtrada_capita WITH (NOLOCK)
-            WHERE voucher IS NOT NULL AND voucher <> ''
-              AND TRY_CONVERT(DECIMAL(18,2), valor_factura) IS NOT NULL
-              AND TRY_CONVERT(DECIMAL(18,2), valor_pagado)  IS NOT NULL
-              AND TRY_CONVERT(DECIMAL(18,2), valor_factura) <> 0
-              AND TRY_CONVERT(DECIMAL(18,2), valor_pagado)  > TRY_CONVERT(DECIMAL(18,2), valor_factura)
-            """;
-        return "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 10000; SELECT TOP 1 1 FROM (" + union + ") q WHERE q.nit = ?";
-      }
-      case "pagos_no_cruzan": {
-        String sql = """
-            ;WITH pagos_clean AS (
-                SELECT 
-                    modalidad = UPPER(LTRIM(RTRIM(p.modalidad))),
-                    id        = LTRIM(RTRIM(CAST(p.id AS VARCHAR(50)))),
-                    nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(p.nit AS VARCHAR(30)),'.',''),'-',''))),
-                    voucher   = LTRIM(RTRIM(CAST(p.voucher AS VARCHAR(50)))),
-                    valor_pagado = TRY_CONVERT(DECIMAL(18,2), p.valor_pagado)
-                FROM dbo.pagos p WITH (NOLOCK)
-
-                UNION ALL
-
-                SELECT 
-                    modalidad = UPPER(LTRIM(RTRIM(pc.modalidad))),
-                    id        = LTRIM(RTRIM(CAST(pc.id AS VARCHAR(50)))),
-                    nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(pc.nit AS VARCHAR(30)),'.',''),'-',''))),
-                    voucher   = LTRIM(RTRIM(CAST(pc.voucher AS VARCHAR(50)))),
-                    valor_pagado = TRY_CONVERT(DECIMAL(18,2), pc.valor_pagado)
-                FROM dbo.pagos_capita pc WITH (NOLOCK)
-            ),
-            rad_clean AS (
-                SELECT
-                    modalidad = UPPER(LTRIM(RTRIM(r.modalidad_pago))),
-                    id        = LTRIM(RTRIM(CAST(r.id AS VARCHAR(50)))),
-                    nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(r.nit AS VARCHAR(30)),'.',''),'-','')))
-                FROM dbo.radicacion3 r WITH (NOLOCK)
-                UNION ALL
-                SELECT
-                    modalidad = UPPER(LTRIM(RTRIM(rc.[Modalidad Pago]))),
-                    id        = LTRIM(RTRIM(CAST(rc.[ID] AS VARCHAR(50)))),
-                    nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(rc.[NIT] AS VARCHAR(30)),'.',''),'-','')))
-                FROM dbo.radicacion_capita rc WITH (NOLOCK)
-            )
-            SELECT TOP 1 1
-            FROM pagos_clean p
-            LEFT JOIN rad_clean r
-                   ON r.modalidad = p.modalidad
-                  AND r.id        = p.id
-                  AND r.nit       = p.nit
-            WHERE r.id IS NULL
-              AND p.modalidad IS NOT NULL
-              AND p.modalidad <> '0'
-              AND p.id IS NOT NULL
-              AND p.nit IS NOT NULL
-              AND p.nit = ?
-            """;
-        return "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 10000; " + sql;
-      }
-      default:
-        // por defecto, usar la variante 'faltantes'
-        String cte = baseCTE();
-        String where = whereFor("faltantes");
-        String from = fromJoin();
-        return "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 10000; " +
-               cte + "\nSELECT TOP 1 1\n" + from + "\n" + where + " AND pt.nit = ?";
-    }
+                nit, en_traza, causado, factura, pagado,
+                es_general      = CASE WHEN en_traza = 1 AND factura IS NOT NULL THEN 1 ELSE 0 END,
+                es_faltante     = CASE WHEN en_traza = 1 AND factura IS NULL THEN 1 ELSE 0 END,
+                es_pagado_mayor = CASE WHEN en_traza = 1 AND pagado > causado THEN 1 ELSE 0 END,
+                es_no_en_traza  = 1 - en_traza
+            FROM j
+        ),
+        por_nit AS (
+            SELECT
+                nit,
+                nit_en_traza         = MAX(en_traza),
+                general_rows         = SUM(es_general),
+                general_factura      = SUM(CASE WHEN es_general = 1 THEN COALESCE(factura,0) ELSE 0 END),
+                faltantes_rows       = SUM(es_faltante),
+                faltantes_causado    = SUM(CASE WHEN es_faltante = 1 THEN COALESCE(causado,0) ELSE 0 END),
+                faltantes_pagado     = SUM(CASE WHEN es_faltante = 1 THEN COALESCE(pagado,0) ELSE 0 END),
+                faltantes_factura    = SUM(CASE WHEN es_faltante = 1 THEN COALESCE(factura,0) ELSE 0 END),
+                pagado_mayor_rows    = SUM(es_pagado_mayor),
+                pagado_mayor_causado = SUM(CASE WHEN es_pagado_mayor = 1 THEN COALESCE(causado,0) ELSE 0 END),
+                pagado_mayor_pagado  = SUM(CASE WHEN es_pagado_mayor = 1 THEN COALESCE(pagado,0) ELSE 0 END),
+                pagado_mayor_factura = SUM(CASE WHEN es_pagado_mayor = 1 THEN COALESCE(factura,0) ELSE 0 END),
+                no_en_traza_rows     = SUM(es_no_en_traza),
+                no_en_traza_pagado   = SUM(CASE WHEN es_no_en_traza = 1 THEN COALESCE(pagado,0) ELSE 0 END),
+                no_en_traza_factura  = SUM(CASE WHEN es_no_en_traza = 1 THEN COALESCE(factura,0) ELSE 0 END)
+            FROM f
+            GROUP BY nit
+        ),
+        tot AS (
+            SELECT
+                general_rows         = SUM(general_rows),
+                general_factura      = SUM(general_factura),
+                faltantes_rows       = SUM(faltantes_rows),
+                faltantes_causado    = SUM(faltantes_causado),
+                faltantes_pagado     = SUM(faltantes_pagado),
+                faltantes_factura    = SUM(faltantes_factura),
+                pagado_mayor_rows    = SUM(pagado_mayor_rows),
+                pagado_mayor_causado = SUM(pagado_mayor_causado),
+                pagado_mayor_pagado  = SUM(pagado_mayor_pagado),
+                pagado_mayor_factura = SUM(pagado_mayor_factura),
+                no_en_traza_rows     = SUM(no_en_traza_rows),
+                no_en_traza_pagado   = SUM(no_en_traza_pagado),
+                no_en_traza_factura  = SUM(no_en_traza_factura),
+                nit_no_en_traza_rows = SUM(CASE WHEN nit IS NOT NULL AND nit_en_traza = 0 THEN 1 ELSE 0 END)
+            FROM por_nit
+        )
+        SELECT tot.*, c.traza_suma_causado, c.traza_suma_pagado, c.capita_suma_factura
+        FROM tot
+        LEFT JOIN dbo.lista_tareas_snapshot_control c WITH (NOLOCK) ON c.id = 1;
+        """;
   }
 
-  private static String normalizeNit(String nit) {
-    if (nit == null) return "";
-    String s = nit.trim();
-    s = s.replace(".", "").replace("-", "");
-    return s;
+  private static Map<String, Object> metrica(Object rows, Object causado, Object pagado, Object factura) {
+    Map<String, Object> out = new LinkedHashMap<>();
+    out.put("rows", toInt(rows));
+    out.put("causado", toDouble(causado));
+    out.put("pagado", toDouble(pagado));
+    out.put("factura", toDouble(factura));
+    return out;
   }
 
   public Map<String, Object> metricsFor(String type) {
-    if ("general".equals(type)) {
-      String sqlPT = """
-          SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000;
-          ;WITH pt AS (
-              SELECT
-                  voucher = LTRIM(RTRIM(CAST(voucher AS VARCHAR(50)))),
-                  valor_causado = TRY_CONVERT(DECIMAL(18,2), valor_causado),
-                  valor_pagado  = TRY_CONVERT(DECIMAL(18,2), valor_pagado)
-              FROM fomagf.dbo.pagos_traza WITH (NOLOCK)
-              WHERE voucher IS NOT NULL AND voucher <> ''
-          ),
-          pt_causado_por_voucher AS (
-              SELECT voucher, valor_causado_v = MAX(COALESCE(valor_causado,0))
-              FROM pt GROUP BY voucher
-          ),
-          agg_causado AS ( SELECT SUM(valor_causado_v) AS suma_causado FROM pt_causado_por_voucher ),
-          agg_pagado  AS ( SELECT SUM(COALESCE(valor_pagado,0)) AS suma_pagado  FROM pt )
-          SELECT c.suma_causado, p.suma_pagado
-          FROM agg_causado c CROSS JOIN agg_pagado p;
-          """;
-      Map<String, Object> pt = jdbc.queryForMap(sqlPT);
-      double sumCausadoPT = toDouble(pt.get("suma_causado"));
-      double sumPagadoPT = toDouble(pt.get("suma_pagado"));
-
-      String cte = baseCTE();
-      String from = fromJoin();
-      String sqlRF = cte + """
-          SELECT
-              rows         = COUNT(1),
-              suma_factura = SUM(COALESCE(r.valor_factura_radicado,0))
-          """ + from + "\nWHERE r.valor_factura_radicado IS NOT NULL;";
-
-      Map<String, Object> rf = jdbc.queryForMap(
-          "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000; " + sqlRF);
-      // Suma adicional de cápita desde dbo.radicacion_capita
-      String sqlCapita = """
-          SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000;
-          SELECT suma_capita = SUM(TRY_CONVERT(DECIMAL(18,2), [Valor Factura]))
-          FROM dbo.radicacion_capita WITH (NOLOCK);
-          """;
-      Map<String, Object> cap = jdbc.queryForMap(sqlCapita);
-      double sumaCapita = toDouble(cap.get("suma_capita"));
-      Map<String, Object> out = new LinkedHashMap<>();
-      out.put("rows", toInt(rf.get("rows")));
-      out.put("causado", sumCausadoPT);
-      out.put("pagado", sumPagadoPT);
-      out.put("factura", toDouble(rf.get("suma_factura")) + sumaCapita);
-      return out;
+    if (TIPOS_TRAZA_RADICACION.contains(type)) {
+      return combinedMetrics().get(type);
     }
 
     if ("pagos_no_cruzan".equals(type)) {
-      String sql = """
+      Map<String, Object> row = jdbc.queryForMap("""
           SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000;
-          ;WITH pagos_clean AS (
-              SELECT 
-                  modalidad = UPPER(LTRIM(RTRIM(p.modalidad))),
-                  id        = LTRIM(RTRIM(CAST(p.id AS VARCHAR(50)))),
-                  nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(p.nit AS VARCHAR(30)),'.',''),'-',''))),
-                  valor_pagado = TRY_CONVERT(DECIMAL(18,2), p.valor_pagado)
-              FROM dbo.pagos p WITH (NOLOCK)
-              UNION ALL
-              SELECT 
-                  modalidad = UPPER(LTRIM(RTRIM(pc.modalidad))),
-                  id        = LTRIM(RTRIM(CAST(pc.id AS VARCHAR(50)))),
-                  nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(pc.nit AS VARCHAR(30)),'.',''),'-',''))),
-                  valor_pagado = TRY_CONVERT(DECIMAL(18,2), pc.valor_pagado)
-              FROM dbo.pagos_capita pc WITH (NOLOCK)
-          ),
-          rad_clean AS (
-              SELECT
-                  modalidad = UPPER(LTRIM(RTRIM(r.modalidad_pago))),
-                  id        = LTRIM(RTRIM(CAST(r.id AS VARCHAR(50)))),
-                  nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(r.nit AS VARCHAR(30)),'.',''),'-','')))
-              FROM dbo.radicacion3 r WITH (NOLOCK)
-              UNION ALL
-              SELECT
-                  modalidad = UPPER(LTRIM(RTRIM(rc.[Modalidad Pago]))),
-                  id        = LTRIM(RTRIM(CAST(rc.[ID] AS VARCHAR(50)))),
-                  nit       = LTRIM(RTRIM(REPLACE(REPLACE(CAST(rc.[NIT] AS VARCHAR(30)),'.',''),'-','')))
-              FROM dbo.radicacion_capita rc WITH (NOLOCK)
-          )
           SELECT
               filas       = COUNT_BIG(1),
-              suma_pagado = SUM(COALESCE(p.valor_pagado,0))
-          FROM pagos_clean p
-          LEFT JOIN rad_clean r
-                 ON r.modalidad = p.modalidad
-                AND r.id        = p.id
-                AND r.nit       = p.nit
-          WHERE r.id IS NULL
-            AND p.modalidad IS NOT NULL
-            AND p.modalidad <> '0'
-            AND p.id IS NOT NULL
-            AND p.nit IS NOT NULL;
-          """;
-      Map<String, Object> row = jdbc.queryForMap(sql);
+              suma_pagado = SUM(COALESCE(valor_pagado,0))
+          FROM dbo.lista_tareas_pagos_no_cruzan WITH (NOLOCK);
+          """);
       Map<String, Object> out = new LinkedHashMap<>();
       out.put("rows", toInt(row.get("filas")));
       out.put("causado", 0.0);
@@ -515,68 +407,6 @@ public class ListaTareasService {
       return out;
     }
 
-    String cte = baseCTE();
-    String from = fromJoin();
-
-    if ("no_en_traza".equals(type)) {
-      String sql = cte + """
-          SELECT
-              rows         = COUNT(1),
-              suma_causado = 0.0,
-              suma_pagado  = SUM(COALESCE(r.valor_pagado_pagos,0)),
-              suma_factura = SUM(COALESCE(r.valor_factura_radicado,0))
-          FROM rad_union_agrupado r
-          WHERE r.voucher IS NOT NULL AND r.voucher <> ''
-            AND NOT EXISTS (
-                  SELECT 1 FROM pagos_traza_agrupado pt
-                  WHERE pt.nit = r.nit AND pt.voucher = r.voucher
-            )
-          """;
-      Map<String, Object> row = jdbc.queryForMap(
-          "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000; " + sql);
-      Map<String, Object> out = new LinkedHashMap<>();
-      out.put("rows", toInt(row.get("rows")));
-      out.put("causado", 0.0);
-      out.put("pagado", toDouble(row.get("suma_pagado")));
-      out.put("factura", toDouble(row.get("suma_factura")));
-      return out;
-    }
-
-    if ("nit_no_en_traza".equals(type)) {
-      String sql = cte + """
-          SELECT rows = COUNT(DISTINCT r.nit)
-          FROM rad_union_agrupado r
-          WHERE NOT EXISTS (SELECT 1 FROM pagos_traza_agrupado pt WHERE pt.nit = r.nit)
-          """;
-      Map<String, Object> row = jdbc.queryForMap(
-          "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000; " + sql);
-      Map<String, Object> out = new LinkedHashMap<>();
-      out.put("rows", toInt(row.get("rows")));
-      out.put("causado", 0.0);
-      out.put("pagado", 0.0);
-      out.put("factura", 0.0);
-      return out;
-    }
-
-    if ("faltantes".equals(type) || "pagado_mayor".equals(type)) {
-      String where = whereFor(type);
-      String sql = cte + """
-          SELECT
-              rows           = COUNT(1),
-              suma_causado   = SUM(COALESCE(pt.valor_causado,0)),
-              suma_pagado    = SUM(COALESCE(r.valor_pagado_pagos,0)),
-              suma_factura   = SUM(COALESCE(r.valor_factura_radicado,0))
-          """ + from + "\n" + where;
-      Map<String, Object> row = jdbc.queryForMap(
-          "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000; " + sql);
-      Map<String, Object> out = new LinkedHashMap<>();
-      out.put("rows", toInt(row.get("rows")));
-      out.put("causado", toDouble(row.get("suma_causado")));
-      out.put("pagado", toDouble(row.get("suma_pagado")));
-      out.put("factura", toDouble(row.get("suma_factura")));
-      return out;
-    }
-
     if ("pagado_mayor_fact".equals(type)) {
       Map<String, Object> row = jdbc.queryForMap(summaryForPagadoMayorFact_Originales());
       Map<String, Object> out = new LinkedHashMap<>();
@@ -594,83 +424,282 @@ public class ListaTareasService {
     return Map.of("rows", 0, "causado", 0.0, "pagado", 0.0, "factura", 0.0);
   }
 
-  public List<Map<String, Object>> rowsFor(String type, int limit) {
-    String sql = selectFor(type).trim();
-    String trimmed = sql.stripLeading();
-    boolean startsWithCTE = trimmed.startsWith(";WITH") || trimmed.startsWith("WITH");
-    String finalSql;
-    if (startsWithCTE) {
-      finalSql = String.format(Locale.ROOT, "SET ROWCOUNT %d; %s; SET ROWCOUNT 0;", limit, sql);
+  /** Filtros de pageFor; los null no filtran. valorCampo es la columna de monto a la que se aplica el rango. */
+  public record FiltroPagina(String nit, String voucherPrefix, String valorCampo, BigDecimal valorMin,
+      BigDecimal valorMax) {}
+
+  /**
+   * Página por cursor de un reporte, leída del snapshot: cada página sigue desde la última fila de la
+   * anterior (orden por sort y después por la clave del reporte), así que ni recalcula el reporte ni
+   * recorre las filas ya vistas como haría un OFFSET. El token lleva la versión del snapshot: si una parte
+   * se reconstruyó entre páginas, seguir podría saltar o repetir filas, así que se responde 409 y el
+   * cliente vuelve a la primera página.
+   */
+  public ListaTareasPageResponse pageFor(String type, FiltroPagina filtro, String sort, boolean desc,
+      String token, Integer size, boolean incluirTotal) {
+    if (filtro == null) filtro = new FiltroPagina(null, null, null, null, null);
+    List<String> columnas = csvHeaders(type);
+    String orden = sort == null || sort.isBlank() ? "nit" : sort.trim().toLowerCase(Locale.ROOT);
+    if (!columnas.contains(orden)) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Columna de orden no válida: " + sort);
+    }
+    int pageSize = size != null && size > 0 ? Math.min(size, PAGE_SIZE_MAX) : PAGE_SIZE_DEFAULT;
+
+    // Orden total: la columna pedida y después la clave del reporte, todo en la misma dirección
+    List<String> claves = new ArrayList<>();
+    claves.add(orden);
+    for (String k : clavesFor(type)) {
+      if (!claves.contains(k)) claves.add(k);
+    }
+
+    List<Object> params = new ArrayList<>();
+    String whereFiltros = filtrosPagina(columnas, filtro, params);
+    List<Object> paramsFiltros = List.copyOf(params);
+    String claveFiltros = type + "|" + filtro;
+    String firma = claveFiltros + "|" + orden + "|" + (desc ? "desc" : "asc");
+
+    snapshot.asegurar();
+    // Se toma antes de leer: si hay un swap durante la consulta, el token siguiente sale como viejo
+    long version = snapshot.version();
+    String where = whereFiltros;
+    List<Object> cursor = decodificarCursor(token, firma, version, claves.size());
+    if (cursor != null) {
+      where += "\n  AND " + despuesDe(claves, cursor, 0, desc, params);
+    }
+    StringBuilder orderBy = new StringBuilder();
+    for (String c : claves) {
+      if (orderBy.length() > 0) orderBy.append(", ");
+      orderBy.append("q.").append(c).append(desc ? " DESC" : "");
+    }
+    // Se pide una fila de más para saber si hay siguiente página sin contar
+    String sql = "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 12000;\n"
+        + "SELECT TOP (" + (pageSize + 1) + ") q.*\nFROM (\n" + fuenteFor(type, true) + ") q\n"
+        + where + "\nORDER BY " + orderBy;
+    List<Map<String, Object>> filas = jdbc.queryForList(sql, params.toArray());
+
+    boolean hasMore = filas.size() > pageSize;
+    List<Map<String, Object>> content = hasMore ? new ArrayList<>(filas.subList(0, pageSize)) : filas;
+    String nextToken = null;
+    if (hasMore) {
+      Map<String, Object> ultima = content.get(content.size() - 1);
+      nextToken = codificarCursor(firma, version, claves.stream().map(ultima::get).toList());
+    }
+    for (Map<String, Object> fila : content) fila.remove("fila");
+    Long total = incluirTotal ? contarPagina(type, claveFiltros, whereFiltros, paramsFiltros) : null;
+    return new ListaTareasPageResponse(type, content, nextToken, hasMore, pageSize, total);
+  }
+
+  // Columnas que identifican una fila de cada reporte; desempatan el orden del cursor
+  private static List<String> clavesFor(String type) {
+    return switch (type) {
+      case "nit_no_en_traza" -> List.of("nit");
+      case "pagos_no_cruzan", "pagado_mayor_fact" -> List.of("nit", "voucher", "fila");
+      default -> List.of("nit", "voucher");
+    };
+  }
+
+  // WHERE de los filtros sobre la tabla derivada q; las columnas ya se validaron contra las del reporte
+  private String filtrosPagina(List<String> columnas, FiltroPagina filtro, List<Object> params) {
+    StringBuilder where = new StringBuilder("WHERE 1 = 1");
+    if (filtro.nit() != null && !filtro.nit().isBlank()) {
+      // CAST: el parámetro llega como NVARCHAR y no debe obligar a convertir la columna
+      where.append("\n  AND q.nit = CAST(? AS VARCHAR(30))");
+      params.add(normalizeNit(filtro.nit()));
+    }
+    if (filtro.voucherPrefix() != null && !filtro.voucherPrefix().isBlank()) {
+      String prefijo = filtro.voucherPrefix().trim()
+          .replace("!", "!!").replace("%", "!%").replace("_", "!_").replace("[", "![");
+      where.append("\n  AND q.voucher LIKE CAST(? AS VARCHAR(120)) ESCAPE '!'");
+      params.add(prefijo + "%");
+    }
+    if (filtro.valorMin() != null || filtro.valorMax() != null) {
+      String campo = filtro.valorCampo() == null || filtro.valorCampo().isBlank()
+          ? columnas.stream().filter(c -> c.startsWith("valor_")).findFirst().orElseThrow()
+          : filtro.valorCampo().trim().toLowerCase(Locale.ROOT);
+      if (!campo.startsWith("valor_") || !columnas.contains(campo)) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Columna de valor no válida: " + filtro.valorCampo());
+      }
+      if (filtro.valorMin() != null) {
+        where.append("\n  AND q.").append(campo).append(" >= ?");
+        params.add(filtro.valorMin());
+      }
+      if (filtro.valorMax() != null) {
+        where.append("\n  AND q.").append(campo).append(" <= ?");
+        params.add(filtro.valorMax());
+      }
+    }
+    return where.toString();
+  }
+
+  /*
+   * Filas posteriores a la del cursor en ORDER BY claves (todas en la misma dirección), escrito como
+   * (c1 > v1) OR (c1 = v1 AND (...)) para que el optimizador pueda hacer seek. SQL Server deja los NULL
+   * primero en ASC y últimos en DESC, y con NULL no sirven > ni =, así que se comparan con IS NULL.
+   */
+  private static String despuesDe(List<String> claves, List<Object> valores, int i, boolean desc, List<Object> params) {
+    String c = "q." + claves.get(i);
+    Object v = valores.get(i);
+    String mayor;
+    if (v == null) {
+      mayor = desc ? "1 = 0" : c + " IS NOT NULL";
     } else {
-      finalSql = String.format(Locale.ROOT, "SELECT TOP %d * FROM ( %s ) AS data", limit, sql);
+      mayor = desc ? "(" + c + " < " + parametro(v, params) + " OR " + c + " IS NULL)" : c + " > " + parametro(v, params);
     }
+    if (i == claves.size() - 1) return mayor;
+    String igual = v == null ? c + " IS NULL" : c + " = " + parametro(v, params);
+    return "(" + mayor + " OR (" + igual + " AND " + despuesDe(claves, valores, i + 1, desc, params) + "))";
+  }
+
+  private static String parametro(Object v, List<Object> params) {
+    params.add(v);
+    return v instanceof String ? "CAST(? AS VARCHAR(120))" : "?";
+  }
+
+  private long contarPagina(String type, String claveFiltros, String where, List<Object> params) {
+    // La versión del snapshot en la clave descarta los conteos de datos anteriores
+    String clave = snapshot.version() + "|" + claveFiltros;
+    Long total = conteos.get(clave);
+    if (total != null) return total;
+    total = jdbc.queryForObject(
+        "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 12000;\n"
+            + "SELECT COUNT_BIG(1)\nFROM (\n" + fuenteFor(type, false) + ") q\n" + where,
+        Long.class, params.toArray());
+    if (conteos.size() >= CONTEOS_MAX) conteos.clear();
+    conteos.put(clave, total);
+    return total;
+  }
+
+  // Cursor opaco: base64url(firma + versión del snapshot + valores de la última fila); la firma ata el
+  // token al mismo reporte, filtros y orden. Cada valor lleva su tipo: n (NULL), s (texto), d (decimal), l (entero).
+  private static String codificarCursor(String firma, long version, List<Object> valores) {
+    StringBuilder raw = new StringBuilder(firma).append(SEP_CURSOR).append(version);
+    for (Object v : valores) {
+      raw.append(SEP_CURSOR);
+      if (v == null) raw.append('n');
+      else if (v instanceof String str) raw.append('s').append(str);
+      else if (v instanceof BigDecimal bd) raw.append('d').append(bd.toPlainString());
+      else if (v instanceof Number n) raw.append('l').append(n.longValue());
+      else raw.append('s').append(v);
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static List<Object> decodificarCursor(String token, String firma, long version, int n) {
+    if (token == null || token.isBlank()) {
+      return null;
+    }
+    try {
+      String raw = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+      String[] partes = raw.split(String.valueOf(SEP_CURSOR), -1);
+      if (partes.length != n + 2 || !partes[0].equals(firma)) {
+        throw new IllegalArgumentException("cursor de otra consulta");
+      }
+      if (Long.parseLong(partes[1]) != version) {
+        throw new ResponseStatusException(HttpStatus.CONFLICT,
+            "El reporte se actualizó desde la página anterior; vuelve a la primera página");
+      }
+      List<Object> valores = new ArrayList<>(n);
+      for (int i = 2; i < n + 2; i++) {
+        String p = partes[i];
+        if (p.isEmpty()) throw new IllegalArgumentException("valor vacío");
+        String v = p.substring(1);
+        valores.add(switch (p.charAt(0)) {
+          case 'n' -> null;
+          case 's' -> v;
+          case 'd' -> new BigDecimal(v);
+          case 'l' -> Long.parseLong(v);
+          default -> throw new IllegalArgumentException("tipo desconocido");
+        });
+      }
+      return valores;
+    } catch (IllegalArgumentException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Token de paginación inválido");
+    }
+  }
+
+  public List<Map<String, Object>> rowsFor(String type, int limit) {
+    snapshot.asegurar();
+    String sql = selectFor(type).trim();
+    // Todas las consultas traen ORDER BY, que no se puede envolver en una tabla derivada
+    String finalSql = String.format(Locale.ROOT, "SET ROWCOUNT %d; %s; SET ROWCOUNT 0;", limit, sql);
     finalSql = "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 12000; " + finalSql;
     return jdbc.queryForList(finalSql);
   }
 
+  /**
+   * Escribe el reporte completo como CSV (;) a medida que el driver entrega las filas: lectura
+   * forward-only con fetch size fijo y un único buffer de línea reutilizado, así que la memoria no crece
+   * con el tamaño del reporte. El encabezado se envía antes de asegurar el snapshot (que puede tener que
+   * reconstruir una parte) y de ejecutar la consulta, así la descarga arranca de inmediato.
+   */
   public void writeCsv(String type, Writer writer) throws IOException {
-    // Headers depend on report type
-    List<String> headers = new ArrayList<>();
-    if ("pagos_no_cruzan".equals(type)) {
-      headers = List.of("modalidad", "id", "nit", "voucher", "valor_pagado");
-    } else if ("pagado_mayor_fact".equals(type)) {
-      headers = List.of("nit", "valor_factura", "valor_pagado", "voucher");
-    } else {
-      headers = List.of("nit", "voucher", "valor_causado", "valor_factura_radicado", "valor_pagado_pagos");
-    }
-    writeCsvRow(writer, headers);
-
-    String sql = selectFor(type);
-    String finalSql = "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000; " + sql;
-
-    jdbc.query(finalSql, new RowCallbackHandler() {
-      @Override
-      public void processRow(ResultSet rs) throws SQLException {
-        try {
-          List<String> cols = new ArrayList<>();
-          if ("pagos_no_cruzan".equals(type)) {
-            cols.add(safe(rs.getString("modalidad")));
-            cols.add(safe(rs.getString("id")));
-            cols.add(safe(rs.getString("nit")));
-            cols.add(safe(rs.getString("voucher")));
-            cols.add(asString(rs.getObject("valor_pagado")));
-          } else if ("pagado_mayor_fact".equals(type)) {
-            cols.add(safe(rs.getString("nit")));
-            cols.add(asString(rs.getObject("valor_factura")));
-            cols.add(asString(rs.getObject("valor_pagado")));
-            cols.add(safe(rs.getString("voucher")));
-          } else {
-            cols.add(safe(rs.getString("nit")));
-            cols.add(safe(rs.getString("voucher")));
-            cols.add(asString(rs.getObject("valor_causado")));
-            cols.add(asString(rs.getObject("valor_factura_radicado")));
-            cols.add(asString(rs.getObject("valor_pagado_pagos")));
-          }
-          writeCsvRow(writer, cols);
-        } catch (IOException ioe) {
-          throw new SQLException("CSV write error", ioe);
-        }
+    List<String> headers = csvHeaders(type);
+    CsvLinea linea = new CsvLinea();
+    for (String h : headers) linea.valor(h);
+    linea.escribir(writer);
+    writer.flush();
+
+    snapshot.asegurar();
+
+    // Las columnas de selectFor(type) vienen en el mismo orden que los encabezados
+    int columnas = headers.size();
+    String sql = "SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 20000; "
+        + selectFor(type);
+    jdbc.query(con -> {
+      PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      ps.setFetchSize(CSV_FETCH_SIZE);
+      return ps;
+    }, (RowCallbackHandler) rs -> {
+      for (int i = 1; i <= columnas; i++) {
+        linea.valor(asString(rs.getObject(i)));
+      }
+      try {
+        linea.escribir(writer);
+      } catch (IOException ioe) {
+        throw new SQLException("CSV write error", ioe);
       }
     });
   }
 
+  private static List<String> csvHeaders(String type) {
+    if ("pagos_no_cruzan".equals(type)) {
+      return List.of("modalidad", "id", "nit", "voucher", "valor_pagado");
+    }
+    if ("pagado_mayor_fact".equals(type)) {
+      return List.of("nit", "valor_factura", "valor_pagado", "voucher");
+    }
+    return List.of("nit", "voucher", "valor_causado", "valor_factura_radicado", "valor_pagado_pagos");
+  }
+
   /* ===================== Helpers ===================== */
 
-  private static void writeCsvRow(Writer w, List<String> values) throws IOException {
-    // Semicolon-separated, values quoted with double quotes; double quotes escaped by doubling
-    StringBuilder sb = new StringBuilder();
-    for (int i = 0; i < values.size(); i++) {
-      if (i > 0) sb.append(';');
-      String v = values.get(i);
-      if (v == null) v = "";
-      sb.append('"').append(v.replace("\"", "\"\"")) .append('"');
+  /**
+   * Línea CSV reutilizable: valores separados por punto y coma, entre comillas dobles y con las comillas
+   * internas duplicadas. escribir() la pasa al writer y la deja vacía para la siguiente fila.
+   */
+  private static final class CsvLinea {
+    private final StringBuilder sb = new StringBuilder(256);
+    private char[] chars = new char[256];
+
+    void valor(String v) {
+      if (sb.length() > 0) sb.append(';');
+      sb.append('"');
+      for (int i = 0; i < v.length(); i++) {
+        char c = v.charAt(i);
+        if (c == '"') sb.append('"');
+        sb.append(c);
+      }
+      sb.append('"');
     }
-    sb.append('\n');
-    w.write(sb.toString());
-  }
 
-  private static String safe(String v) {
-    return v == null ? "" : v;
+    void escribir(Writer w) throws IOException {
+      sb.append('\n');
+      int n = sb.length();
+      if (chars.length < n) chars = new char[Math.max(n, chars.length * 2)];
+      sb.getChars(0, n, chars, 0);
+      w.write(chars, 0, n);
+      sb.setLength(0);
+    }
   }
 
   private static String asString(Object o) {
@@ -694,41 +723,13 @@ public class ListaTareasService {
   private String summaryForPagadoMayorFact_Originales() {
     return """
         SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; SET LOCK_TIMEOUT 8000;
-
-        ;WITH src AS (
-            SELECT 
-                nit           = LTRIM(RTRIM(REPLACE(REPLACE(CAST(rf.nit AS VARCHAR(30)),'.',''),'-',''))),
-                voucher       = LTRIM(RTRIM(CAST(rf.voucher AS VARCHAR(50)))),
-                valor_factura = TRY_CONVERT(DECIMAL(18,2), rf.valor_factura),
-                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), rf.valor_pagado)
-            FROM fomagf.dbo.radicacion_filtrada rf WITH (NOLOCK)
-            WHERE TRY_CONVERT(DECIMAL(18,2), rf.valor_factura) IS NOT NULL
-              AND TRY_CONVERT(DECIMAL(18,2), rf.valor_pagado)  IS NOT NULL
-
-            UNION ALL
-
-            SELECT 
-                nit           = LTRIM(RTRIM(REPLACE(REPLACE(CAST(rfc.nit AS VARCHAR(30)),'.',''),'-',''))),
-                voucher       = LTRIM(RTRIM(CAST(rfc.voucher AS VARCHAR(50)))),
-                valor_factura = TRY_CONVERT(DECIMAL(18,2), rfc.valor_factura),
-                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), rfc.valor_pagado)
-            FROM fomagf.dbo.radicacion_filtrada_capita rfc WITH (NOLOCK)
-            WHERE TRY_CONVERT(DECIMAL(18,2), rfc.valor_factura) IS NOT NULL
-              AND TRY_CONVERT(DECIMAL(18,2), rfc.valor_pagado)  IS NOT NULL
-        ),
-        filtrado AS (
-            SELECT *
-            FROM src
-            WHERE valor_factura <> 0
-              AND valor_pagado  > valor_factura
-        )
         SELECT
             vouchers     = COUNT(DISTINCT voucher),
             prestadores  = COUNT(DISTINCT nit),
             filas        = COUNT(1),
             suma_factura = SUM(valor_factura),
             suma_pagado  = SUM(valor_pagado)
-        FROM filtrado;
+        FROM dbo.lista_tareas_pagado_mayor_fact WITH (NOLOCK);
         """;
   }
 }
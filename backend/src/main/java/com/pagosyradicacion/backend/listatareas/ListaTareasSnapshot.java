@@ -0,0 +1,487 @@
+package com.pagosyradicacion.backend.listatareas;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.pagosyradicacion.backend.radicacion.NitNormalizadoSchema;
+import com.pagosyradicacion.backend.radicacion.RadicacionFiltradaUpdateService;
+
+/**
+ * Snapshot materializado de los agregados que usan los reportes de "Lista de Tareas". Antes cada métrica,
+ * listado, CSV o precheck volvía a normalizar (LTRIM/RTRIM/CAST, TRY_CONVERT) y agrupar las tablas de
+ * origen; ahora eso se hace una vez por carga y los reportes leen tablas chicas e indexadas:
+ *
+ *   TRAZA       pagos_traza                                  → lista_tareas_traza (nit, voucher)
+ *   RADICACION  radicacion_filtrada + radicacion_filtrada_capita → lista_tareas_radicacion (nit, voucher)
+ *                                                               y lista_tareas_pagado_mayor_fact
+ *   PAGOS       pagos + pagos_capita vs radicacion3 + radicacion_capita → lista_tareas_pagos_no_cruzan
+ *
+ * Los totales de la métrica "general" que no salen de esas tablas quedan en lista_tareas_snapshot_control.
+ * Cada parte se arma en tablas _next y se intercambia con sp_rename en una transacción corta, igual que la
+ * sombra de radicacion_filtrada: los lectores ven la versión anterior hasta el swap.
+ *
+ * Las cargas de este backend marcan su parte con invalidar() al confirmar y la reconstrucción corre en
+ * segundo plano; la lectura siguiente espera a que termine (lee lo recién cargado). Los cambios de
+ * radicacion_filtrada se detectan por su generación. Para cargas externas, una parte más vieja que
+ * listatareas.snapshot.max-age-minutes se sirve igual y se reconstruye en segundo plano.
+ *
+ * Todas las partes leen nit_norm: antes de armar nada se revisa NitNormalizadoSchema, que también escucha
+ * ApplicationReadyEvent y no hay orden garantizado entre los dos listeners.
+ */
+@Component
+public class ListaTareasSnapshot {
+
+  private static final Logger log = LoggerFactory.getLogger(ListaTareasSnapshot.class);
+
+  public enum Parte { TRAZA, RADICACION, PAGOS }
+
+  private static final String CONTROL = "dbo.lista_tareas_snapshot_control";
+
+  private final JdbcTemplate jdbc;
+  private final RadicacionFiltradaUpdateService radicacionFiltrada;
+  private final NitNormalizadoSchema nitNormalizado;
+  private final TaskExecutor executor;
+  private final Duration maxAge;
+
+  // Cuándo se armó cada parte (null = nunca); se lee de la tabla de control la primera vez
+  private final Map<Parte, Instant> construidas = new EnumMap<>(Parte.class);
+  // Marcadas por una carga: la lectura siguiente espera a que se reconstruyan
+  private final Set<Parte> pendientes = EnumSet.noneOf(Parte.class);
+  // Pasaron max-age: se reconstruyen en segundo plano y mientras tanto se leen igual
+  private final Set<Parte> vencidas = EnumSet.noneOf(Parte.class);
+  private volatile boolean controlLeido;
+  // Generación de radicacion_filtrada de la que sale la parte RADICACION; la 0 es la del arranque
+  private volatile long generacionRadicacion;
+  private final AtomicBoolean programado = new AtomicBoolean();
+  private final AtomicLong version = new AtomicLong();
+
+  public ListaTareasSnapshot(
+      JdbcTemplate jdbc,
+      RadicacionFiltradaUpdateService radicacionFiltrada,
+      NitNormalizadoSchema nitNormalizado,
+      @Qualifier("listaTareasSnapshotExecutor") TaskExecutor executor,
+      @Value("${listatareas.snapshot.max-age-minutes:60}") long maxAgeMinutes) {
+    this.jdbc = jdbc;
+    this.radicacionFiltrada = radicacionFiltrada;
+    this.nitNormalizado = nitNormalizado;
+    this.executor = executor;
+    this.maxAge = Duration.ofMinutes(Math.max(1, maxAgeMinutes));
+  }
+
+  /** Sube cada vez que una parte se reemplaza: lo calculado con una versión anterior ya no vale. */
+  public long version() {
+    return version.get();
+  }
+
+  /**
+   * Marca la parte como desactualizada por una carga. Dentro de una transacción cuenta recién al
+   * confirmarse; la reconstrucción se programa en segundo plano.
+   */
+  public void invalidar(Parte parte) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          marcarPendiente(parte);
+        }
+      });
+    } else {
+      marcarPendiente(parte);
+    }
+  }
+
+  // Arma en segundo plano lo que falte al arrancar, para que la primera consulta no lo pague
+  @EventListener(ApplicationReadyEvent.class)
+  public void iniciar() {
+    nitNormalizado.asegurar();
+    if (!nitNormalizado.listo()) {
+      log.warn("Snapshot de Lista de Tareas sin armar al arrancar: falta la columna {}", NitNormalizadoSchema.COLUMNA);
+      return;
+    }
+    try {
+      leerControl();
+      for (Parte p : Parte.values()) {
+        if (construida(p) == null) marcarPendiente(p);
+      }
+    } catch (Exception ex) {
+      log.warn("No se pudo leer el control del snapshot de Lista de Tareas: {}", ex.getMessage());
+    }
+  }
+
+  /**
+   * Deja el snapshot listo para leer: arma las partes que nunca se armaron o que una carga marcó (espera si
+   * ya se están armando) y programa en segundo plano las que pasaron max-age.
+   */
+  public void asegurar() {
+    leerControl();
+    long gen = radicacionFiltrada.generacion();
+    // Mientras radicacion_filtrada se reconstruye se sigue leyendo el snapshot anterior
+    if (gen >= 0 && gen != generacionRadicacion) {
+      generacionRadicacion = gen;
+      marcarPendiente(Parte.RADICACION);
+    }
+    boolean viejas = false;
+    for (Parte p : Parte.values()) {
+      Instant en = construida(p);
+      if (en == null || pendiente(p)) {
+        reconstruir(p, false);
+      } else if (en.plus(maxAge).isBefore(Instant.now())) {
+        synchronized (pendientes) { vencidas.add(p); }
+        viejas = true;
+      }
+    }
+    if (viejas) programar();
+  }
+
+  private void marcarPendiente(Parte parte) {
+    synchronized (pendientes) { pendientes.add(parte); }
+    programar();
+  }
+
+  private boolean pendiente(Parte parte) {
+    synchronized (pendientes) { return pendientes.contains(parte); }
+  }
+
+  private Instant construida(Parte parte) {
+    synchronized (construidas) { return construidas.get(parte); }
+  }
+
+  private void programar() {
+    if (!programado.compareAndSet(false, true)) return;
+    try {
+      executor.execute(this::procesarPendientes);
+    } catch (RuntimeException ex) {
+      programado.set(false);
+      log.warn("No se pudo programar la reconstrucción del snapshot de Lista de Tareas: {}", ex.getMessage());
+    }
+  }
+
+  private void procesarPendientes() {
+    Set<Parte> fallidas = EnumSet.noneOf(Parte.class);
+    try {
+      for (Parte p : Parte.values()) {
+        boolean hacer;
+        synchronized (pendientes) { hacer = pendientes.contains(p) || vencidas.contains(p); }
+        if (!hacer) continue;
+        try {
+          reconstruir(p, true);
+        } catch (Exception ex) {
+          fallidas.add(p);
+          log.warn("Falló la reconstrucción del snapshot {} de Lista de Tareas: {}", p, ex.getMessage());
+        }
+      }
+    } finally {
+      programado.set(false);
+    }
+    // Lo marcado mientras se procesaba (las fallidas esperan a la próxima lectura o carga)
+    boolean quedan;
+    synchronized (pendientes) {
+      Set<Parte> resto = EnumSet.noneOf(Parte.class);
+      resto.addAll(pendientes);
+      resto.addAll(vencidas);
+      resto.removeAll(fallidas);
+      quedan = !resto.isEmpty();
+    }
+    if (quedan) programar();
+  }
+
+  // Una reconstrucción a la vez. Quien llega mientras otro arma la misma parte espera y no la repite.
+  private synchronized void reconstruir(Parte parte, boolean enSegundoPlano) {
+    // Sin nit_norm la parte sigue pendiente y se reintenta en la próxima lectura o carga
+    nitNormalizado.asegurar();
+    if (!nitNormalizado.listo()) {
+      throw new IllegalStateException("Falta la columna " + NitNormalizadoSchema.COLUMNA
+          + ": ejecutar db/migracion/003_nit_norm.sql");
+    }
+    synchronized (pendientes) {
+      boolean marcada = pendientes.remove(parte) | vencidas.remove(parte);
+      if (!marcada && construida(parte) != null) return;
+    }
+    long t0 = System.nanoTime();
+    try {
+      switch (parte) {
+        case TRAZA -> construirTraza();
+        case RADICACION -> construirRadicacion();
+        case PAGOS -> construirPagos();
+      }
+    } catch (RuntimeException ex) {
+      // Queda pendiente para el próximo intento
+      synchronized (pendientes) { pendientes.add(parte); }
+      throw ex;
+    }
+    synchronized (construidas) { construidas.put(parte, Instant.now()); }
+    version.incrementAndGet();
+    log.info("Snapshot {} de Lista de Tareas reconstruido en {} ms{}", parte,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0), enSegundoPlano ? " (segundo plano)" : "");
+  }
+
+  /* ===================== Partes ===================== */
+
+  private void construirTraza() {
+    crearNext("dbo.lista_tareas_traza", """
+        SELECT
+            nit     = pt.nit_norm,
+            voucher = LTRIM(RTRIM(CAST(pt.voucher AS VARCHAR(50)))),
+            valor_causado = SUM(TRY_CONVERT(DECIMAL(18,2), pt.valor_causado))
+        INTO %s
+        FROM fomagf.dbo.pagos_traza pt WITH (NOLOCK)
+        WHERE pt.identificacion IS NOT NULL
+          AND pt.voucher IS NOT NULL AND pt.voucher <> ''
+        GROUP BY
+            pt.nit_norm,
+            LTRIM(RTRIM(CAST(pt.voucher AS VARCHAR(50))))
+        """, "CREATE CLUSTERED INDEX IX_lista_tareas_traza ON %s (nit, voucher)");
+
+    // Totales de la métrica "general": por voucher (MAX de valor_causado) y sin exigir identificación
+    Map<String, Object> totales = jdbc.queryForMap("""
+        SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED;
+        ;WITH pt AS (
+            SELECT
+                voucher = LTRIM(RTRIM(CAST(voucher AS VARCHAR(50)))),
+                valor_causado = TRY_CONVERT(DECIMAL(18,2), valor_causado),
+                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), valor_pagado)
+            FROM fomagf.dbo.pagos_traza WITH (NOLOCK)
+            WHERE voucher IS NOT NULL AND voucher <> ''
+        ),
+        pt_causado_por_voucher AS (
+            SELECT voucher, valor_causado_v = MAX(COALESCE(valor_causado,0))
+            FROM pt GROUP BY voucher
+        ),
+        agg_causado AS ( SELECT SUM(valor_causado_v) AS suma_causado FROM pt_causado_por_voucher ),
+        agg_pagado  AS ( SELECT SUM(COALESCE(valor_pagado,0)) AS suma_pagado  FROM pt )
+        SELECT c.suma_causado, p.suma_pagado
+        FROM agg_causado c CROSS JOIN agg_pagado p;
+        """);
+
+    intercambiar(List.of("dbo.lista_tareas_traza"),
+        "traza_en = GETDATE(), traza_suma_causado = ?, traza_suma_pagado = ?",
+        decimal(totales.get("suma_causado")), decimal(totales.get("suma_pagado")));
+  }
+
+  private void construirRadicacion() {
+    crearNext("dbo.lista_tareas_radicacion", """
+        SELECT
+            nit,
+            voucher,
+            valor_factura_radicado = SUM(valor_factura),
+            valor_pagado_pagos     = SUM(valor_pagado)
+        INTO %s
+        FROM (
+            SELECT
+                nit     = rf.nit_norm,
+                voucher = LTRIM(RTRIM(CAST(rf.voucher AS VARCHAR(50)))),
+                valor_factura = TRY_CONVERT(DECIMAL(18,2), rf.valor_factura),
+                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), rf.valor_pagado)
+            FROM fomagf.dbo.radicacion_filtrada rf WITH (NOLOCK)
+            WHERE rf.voucher IS NOT NULL AND rf.voucher <> ''
+
+            UNION ALL
+
+            SELECT
+                nit     = rfc.nit_norm,
+                voucher = LTRIM(RTRIM(CAST(rfc.voucher AS VARCHAR(50)))),
+                valor_factura = TRY_CONVERT(DECIMAL(18,2), rfc.valor_factura),
+                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), rfc.valor_pagado)
+            FROM fomagf.dbo.radicacion_filtrada_capita rfc WITH (NOLOCK)
+            WHERE rfc.voucher IS NOT NULL AND rfc.voucher <> ''
+        ) u
+        GROUP BY nit, voucher
+        """, "CREATE CLUSTERED INDEX IX_lista_tareas_radicacion ON %s (nit, voucher)");
+
+    // Filas con pagado > factura, sin exigir voucher: el resumen las cuenta todas y el listado solo las
+    // que tienen voucher
+    crearNext("dbo.lista_tareas_pagado_mayor_fact", """
+        SELECT nit, voucher, valor_factura, valor_pagado, fila = IDENTITY(BIGINT, 1, 1)
+        INTO %s
+        FROM (
+            SELECT
+                nit           = rf.nit_norm,
+                voucher       = LTRIM(RTRIM(CAST(rf.voucher AS VARCHAR(50)))),
+                valor_factura = TRY_CONVERT(DECIMAL(18,2), rf.valor_factura),
+                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), rf.valor_pagado)
+            FROM fomagf.dbo.radicacion_filtrada rf WITH (NOLOCK)
+
+            UNION ALL
+
+            SELECT
+                nit           = rfc.nit_norm,
+                voucher       = LTRIM(RTRIM(CAST(rfc.voucher AS VARCHAR(50)))),
+                valor_factura = TRY_CONVERT(DECIMAL(18,2), rfc.valor_factura),
+                valor_pagado  = TRY_CONVERT(DECIMAL(18,2), rfc.valor_pagado)
+            FROM fomagf.dbo.radicacion_filtrada_capita rfc WITH (NOLOCK)
+        ) src
+        WHERE valor_factura IS NOT NULL
+          AND valor_pagado  IS NOT NULL
+          AND valor_factura <> 0
+          AND valor_pagado  > valor_factura
+        """, "CREATE UNIQUE CLUSTERED INDEX IX_lista_tareas_pagado_mayor_fact ON %s (nit, voucher, fila)");
+
+    intercambiar(List.of("dbo.lista_tareas_radicacion", "dbo.lista_tareas_pagado_mayor_fact"), "radicacion_en = GETDATE()");
+  }
+
+  private void construirPagos() {
+    crearNext("dbo.lista_tareas_pagos_no_cruzan", """
+        ;WITH pagos_clean AS (
+            SELECT
+                modalidad = UPPER(LTRIM(RTRIM(p.modalidad))),
+                id        = LTRIM(RTRIM(CAST(p.id AS VARCHAR(50)))),
+                nit       = p.nit_norm,
+                voucher   = LTRIM(RTRIM(CAST(p.voucher AS VARCHAR(50)))),
+                valor_pagado = TRY_CONVERT(DECIMAL(18,2), p.valor_pagado)
+            FROM dbo.pagos p WITH (NOLOCK)
+
+            UNION ALL
+
+            SELECT
+                modalidad = UPPER(LTRIM(RTRIM(pc.modalidad))),
+                id        = LTRIM(RTRIM(CAST(pc.id AS VARCHAR(50)))),
+                nit       = pc.nit_norm,
+                voucher   = LTRIM(RTRIM(CAST(pc.voucher AS VARCHAR(50)))),
+                valor_pagado = TRY_CONVERT(DECIMAL(18,2), pc.valor_pagado)
+            FROM dbo.pagos_capita pc WITH (NOLOCK)
+        ),
+        rad_clean AS (
+            SELECT
+                modalidad = UPPER(LTRIM(RTRIM(r.modalidad_pago))),
+                id        = LTRIM(RTRIM(CAST(r.id AS VARCHAR(50)))),
+                nit       = r.nit_norm
+            FROM dbo.radicacion3 r WITH (NOLOCK)
+
+            UNION ALL
+
+            SELECT
+                modalidad = UPPER(LTRIM(RTRIM(rc.[Modalidad Pago]))),
+                id        = LTRIM(RTRIM(CAST(rc.[ID] AS VARCHAR(50)))),
+                nit       = rc.nit_norm
+            FROM dbo.radicacion_capita rc WITH (NOLOCK)
+        )
+        SELECT
+            modalidad = p.modalidad,
+            id        = p.id,
+            nit       = p.nit,
+            voucher   = p.voucher,
+            valor_pagado = p.valor_pagado,
+            fila      = IDENTITY(BIGINT, 1, 1)
+        INTO %s
+        FROM pagos_clean p
+        LEFT JOIN rad_clean r
+               ON r.modalidad = p.modalidad
+              AND r.id        = p.id
+              AND r.nit       = p.nit
+        WHERE r.id IS NULL
+          AND p.modalidad IS NOT NULL
+          AND p.modalidad <> '0'
+          AND p.id IS NOT NULL
+          AND p.nit IS NOT NULL
+        """,
+        "CREATE CLUSTERED INDEX IX_lista_tareas_pagos_no_cruzan ON %s (modalidad, nit, id)",
+        "CREATE INDEX IX_lista_tareas_pagos_no_cruzan_nit ON %s (nit, voucher, fila)");
+
+    // Suma de cápita de la métrica "general"
+    BigDecimal sumaCapita = jdbc.queryForObject("""
+        SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED;
+        SELECT suma_capita = SUM(TRY_CONVERT(DECIMAL(18,2), [Valor Factura]))
+        FROM dbo.radicacion_capita WITH (NOLOCK);
+        """, BigDecimal.class);
+
+    intercambiar(List.of("dbo.lista_tareas_pagos_no_cruzan"), "pagos_en = GETDATE(), capita_suma_factura = ?", sumaCapita);
+  }
+
+  /* ===================== Tablas ===================== */
+
+  // Arma tabla_next con SELECT ... INTO (registro mínimo) y le crea los índices
+  private void crearNext(String tabla, String selectInto, String... indices) {
+    String next = tabla + "_next";
+    jdbc.execute("IF OBJECT_ID('" + next + "','U') IS NOT NULL DROP TABLE " + next);
+    jdbc.execute("SET NOCOUNT ON; SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED; " + selectInto.formatted(next));
+    for (String ddl : indices) {
+      jdbc.execute(ddl.formatted(next));
+    }
+  }
+
+  // Reemplaza las tablas por sus _next y actualiza el control en una sola transacción. XACT_ABORT se
+  // apaga también si falla, para no devolver la conexión al pool con la opción puesta.
+  private void intercambiar(List<String> tablas, String setControl, Object... args) {
+    StringBuilder sql = new StringBuilder("SET XACT_ABORT ON;\nBEGIN TRY\nBEGIN TRAN;\n");
+    for (String tabla : tablas) {
+      String nombre = tabla.substring(tabla.indexOf('.') + 1);
+      sql.append("  IF OBJECT_ID('").append(tabla).append("_old','U') IS NOT NULL DROP TABLE ").append(tabla).append("_old;\n")
+         .append("  IF OBJECT_ID('").append(tabla).append("','U') IS NOT NULL EXEC sp_rename '").append(tabla)
+         .append("', '").append(nombre).append("_old';\n")
+         .append("  EXEC sp_rename '").append(tabla).append("_next', '").append(nombre).append("';\n");
+    }
+    sql.append("  UPDATE ").append(CONTROL).append(" SET ").append(setControl).append(" WHERE id = 1;\n")
+       .append("COMMIT;\nSET XACT_ABORT OFF;\nEND TRY\n")
+       .append("BEGIN CATCH\n  IF @@TRANCOUNT > 0 ROLLBACK;\n  SET XACT_ABORT OFF;\n  THROW;\nEND CATCH");
+    jdbc.update(sql.toString(), args);
+    for (String tabla : tablas) {
+      jdbc.execute("IF OBJECT_ID('" + tabla + "_old','U') IS NOT NULL DROP TABLE " + tabla + "_old");
+    }
+  }
+
+  private void leerControl() {
+    if (controlLeido) return;
+    synchronized (construidas) {
+      if (controlLeido) return;
+      jdbc.execute("""
+        IF OBJECT_ID('dbo.lista_tareas_snapshot_control','U') IS NULL
+        BEGIN
+          CREATE TABLE dbo.lista_tareas_snapshot_control (
+            id INT NOT NULL PRIMARY KEY,
+            traza_en DATETIME NULL,
+            radicacion_en DATETIME NULL,
+            pagos_en DATETIME NULL,
+            traza_suma_causado DECIMAL(38,2) NULL,
+            traza_suma_pagado DECIMAL(38,2) NULL,
+            capita_suma_factura DECIMAL(38,2) NULL
+          );
+          INSERT INTO dbo.lista_tareas_snapshot_control (id) VALUES (1);
+        END
+      """);
+      // Una parte cuenta como armada solo si además existen sus tablas (con la columna fila, que usa la
+      // paginación por cursor)
+      Map<String, Object> c = jdbc.queryForMap("""
+          SELECT
+            traza_en      = CASE WHEN OBJECT_ID('dbo.lista_tareas_traza','U') IS NULL THEN NULL ELSE traza_en END,
+            radicacion_en = CASE WHEN OBJECT_ID('dbo.lista_tareas_radicacion','U') IS NULL
+                                   OR COL_LENGTH('dbo.lista_tareas_pagado_mayor_fact','fila') IS NULL THEN NULL ELSE radicacion_en END,
+            pagos_en      = CASE WHEN COL_LENGTH('dbo.lista_tareas_pagos_no_cruzan','fila') IS NULL THEN NULL ELSE pagos_en END
+          FROM dbo.lista_tareas_snapshot_control WHERE id = 1
+          """);
+      construidas.put(Parte.TRAZA, instante(c.get("traza_en")));
+      construidas.put(Parte.RADICACION, instante(c.get("radicacion_en")));
+      construidas.put(Parte.PAGOS, instante(c.get("pagos_en")));
+      controlLeido = true;
+    }
+  }
+
+  private static Instant instante(Object v) {
+    return v instanceof Timestamp ts ? ts.toInstant() : null;
+  }
+
+  private static BigDecimal decimal(Object v) {
+    return v instanceof BigDecimal bd ? bd : null;
+  }
+}
@@ -0,0 +1,150 @@
+package com.pagosyradicacion.backend.listatareas;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Caché de métricas por tipo de reporte con carga única por clave: si varios piden la misma métrica a la
+ * vez, una sola consulta corre y los demás esperan su resultado. Una entrada vencida (ttl) se sirve igual
+ * y se recarga en segundo plano; una calculada sobre otra versión del snapshot (una carga o rebuild la
+ * reemplazó) ya no se sirve y se espera la recarga.
+ *
+ * Los tipos se cargan por grupo: los que salen de una misma consulta comparten la carga y pedir uno deja
+ * guardados todos los del grupo. Un tipo sin grupo propio es un grupo de uno.
+ */
+final class MetricasCache {
+
+  private record Entrada(long ts, long version, Map<String, Object> data) {}
+
+  private final Function<String, Map<String, Map<String, Object>>> cargador;
+  private final UnaryOperator<String> grupo;
+  private final LongSupplier version;
+  private final Executor executor;
+  private final long ttlMs;
+
+  private final ConcurrentHashMap<String, Entrada> entradas = new ConcurrentHashMap<>();
+  // Cargas en curso por grupo
+  private final ConcurrentHashMap<String, CompletableFuture<Map<String, Map<String, Object>>>> enCurso =
+      new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder vencidas = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder cargas = new LongAdder();
+  private final LongAdder errores = new LongAdder();
+  private final LongAdder cargaNanos = new LongAdder();
+  private final AtomicLong cargaMaxNanos = new AtomicLong();
+
+  /**
+   * cargador recibe un grupo y devuelve las métricas de cada tipo del grupo; grupo da el grupo de un tipo.
+   */
+  MetricasCache(Function<String, Map<String, Map<String, Object>>> cargador, UnaryOperator<String> grupo,
+      LongSupplier version, Executor executor, long ttlMs) {
+    this.cargador = cargador;
+    this.grupo = grupo;
+    this.version = version;
+    this.executor = executor;
+    this.ttlMs = ttlMs;
+  }
+
+  /** Métrica de type; con fresca = true no se usa la entrada guardada (sí se comparte una carga en curso). */
+  Map<String, Object> obtener(String type, boolean fresca) {
+    Entrada e = entradas.get(type);
+    if (!fresca && e != null && e.version() == version.getAsLong()) {
+      if (System.currentTimeMillis() - e.ts() < ttlMs) {
+        hits.increment();
+      } else {
+        vencidas.increment();
+        recargarEnSegundoPlano(type);
+      }
+      return e.data();
+    }
+    misses.increment();
+    return esperar(cargar(type, null));
+  }
+
+  /** Inicia la carga del grupo de type (o se une a la que ya corre) y devuelve el resultado futuro de type. */
+  CompletableFuture<Map<String, Object>> cargar(String type, Executor en) {
+    String g = grupo.apply(type);
+    CompletableFuture<Map<String, Map<String, Object>>> nueva = new CompletableFuture<>();
+    CompletableFuture<Map<String, Map<String, Object>>> existente = enCurso.putIfAbsent(g, nueva);
+    if (existente == null) {
+      existente = nueva;
+      Runnable carga = () -> ejecutar(g, nueva);
+      if (en == null) {
+        carga.run();
+      } else {
+        try {
+          en.execute(carga);
+        } catch (RejectedExecutionException ex) {
+          // Pool saturado: carga en el hilo que pidió
+          carga.run();
+        }
+      }
+    }
+    return existente.thenApply(porTipo -> porTipo.get(type));
+  }
+
+  static Map<String, Object> esperar(CompletableFuture<Map<String, Object>> futuro) {
+    try {
+      return futuro.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException re) throw re;
+      throw ex;
+    }
+  }
+
+  Map<String, Object> estadisticas() {
+    long n = cargas.sum();
+    Map<String, Object> out = new LinkedHashMap<>();
+    out.put("hits", hits.sum());
+    out.put("stale", vencidas.sum());
+    out.put("misses", misses.sum());
+    out.put("loads", n);
+    out.put("errors", errores.sum());
+    out.put("loadMsTotal", TimeUnit.NANOSECONDS.toMillis(cargaNanos.sum()));
+    out.put("loadMsMax", TimeUnit.NANOSECONDS.toMillis(cargaMaxNanos.get()));
+    out.put("loadMsAvg", n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(cargaNanos.sum() / n));
+    out.put("inFlight", enCurso.size());
+    out.put("entries", entradas.size());
+    return out;
+  }
+
+  private void recargarEnSegundoPlano(String type) {
+    if (enCurso.containsKey(grupo.apply(type))) return;
+    // Un error de la recarga queda en los contadores; se sigue sirviendo la entrada anterior
+    cargar(type, executor);
+  }
+
+  private void ejecutar(String g, CompletableFuture<Map<String, Map<String, Object>>> futuro) {
+    long v = version.getAsLong();
+    long t0 = System.nanoTime();
+    try {
+      Map<String, Map<String, Object>> data = cargador.apply(g);
+      long ts = System.currentTimeMillis();
+      data.forEach((type, metricas) -> entradas.put(type, new Entrada(ts, v, metricas)));
+      enCurso.remove(g, futuro);
+      futuro.complete(data);
+    } catch (RuntimeException | Error ex) {
+      errores.increment();
+      enCurso.remove(g, futuro);
+      futuro.completeExceptionally(ex);
+    } finally {
+      long nanos = System.nanoTime() - t0;
+      cargas.increment();
+      cargaNanos.add(nanos);
+      cargaMaxNanos.accumulateAndGet(nanos, Math::max);
+    }
+  }
+}
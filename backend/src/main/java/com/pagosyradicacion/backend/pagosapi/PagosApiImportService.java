@@ -20,15 +20,20 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.ResponseStatusException;
 
+import com.pagosyradicacion.backend.listatareas.ListaTareasSnapshot;
+
 @Service
 public class PagosApiImportService {
 
   private final RemotePagosClient remote;
   private final JdbcTemplate jdbc;
+  private final ListaTareasSnapshot listaTareas;
 
-  public PagosApiImportService(RemotePagosClient remote, JdbcTemplate jdbc) {
+  public PagosApiImportService(RemotePagosClient remote, JdbcTemplate jdbc,
+      ListaTareasSnapshot listaTareas) {
     this.remote = remote;
     this.jdbc = jdbc;
+    this.listaTareas = listaTareas;
   }
 
   public Map<String, Object> resumenPorFecha(LocalDate fecha) {
@@ -100,6 +105,7 @@ public class PagosApiImportService {
         try { jdbc.update("DELETE FROM pagos_api_staging"); } catch (Exception ignore) {}
       }
       dropStaging();
+      if (totalInserted > 0) listaTareas.invalidar(ListaTareasSnapshot.Parte.PAGOS);
       int saltados = Math.max(0, rows.size() - totalInserted);
       return Map.of("ok", Boolean.TRUE, "insertados", totalInserted, "saltados", saltados);
     } catch (RuntimeException ex) {
@@ -0,0 +1,55 @@
+package com.pagosyradicacion.backend.radicacion;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Clave única fila de radicacion_filtrada: RadicacionRegistro la usa como @Id y el cursor pagina sobre (id, fila).
+ * La crea db/migracion/002_fila_radicacion_filtrada.sql; no se agrega al arrancar porque reescribe la tabla.
+ * Aquí solo se revisa el catálogo para que el log diga qué script falta en lugar de un "Invalid column name"
+ * en la primera consulta.
+ */
+@Component
+public class FilaRadicacionSchema {
+
+  private static final Logger log = LoggerFactory.getLogger(FilaRadicacionSchema.class);
+
+  public static final String COLUMNA = "fila";
+
+  // Lo que falte de la migración 002 (vacío si la tabla no existe todavía)
+  private static final String PENDIENTES_SQL = """
+      SELECT 'columna fila'
+      WHERE OBJECT_ID('dbo.radicacion_filtrada', 'U') IS NOT NULL
+        AND COL_LENGTH('dbo.radicacion_filtrada', 'fila') IS NULL
+      UNION ALL
+      SELECT 'índice UX_radicacion_filtrada_fila'
+      WHERE OBJECT_ID('dbo.radicacion_filtrada', 'U') IS NOT NULL
+        AND NOT EXISTS (SELECT 1 FROM sys.indexes
+                        WHERE object_id = OBJECT_ID('dbo.radicacion_filtrada') AND name = 'UX_radicacion_filtrada_fila')
+      """;
+
+  private final JdbcTemplate jdbc;
+
+  public FilaRadicacionSchema(JdbcTemplate jdbc) {
+    this.jdbc = jdbc;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void verificar() {
+    try {
+      List<String> pendientes = jdbc.queryForList(PENDIENTES_SQL, String.class);
+      if (!pendientes.isEmpty()) {
+        log.error("radicacion_filtrada no tiene {}: ejecutar db/migracion/002_fila_radicacion_filtrada.sql y reiniciar",
+            String.join(" ni ", pendientes));
+      }
+    } catch (Exception ex) {
+      log.warn("No se pudo revisar la columna radicacion_filtrada.{}: {}", COLUMNA, ex.getMessage());
+    }
+  }
+}
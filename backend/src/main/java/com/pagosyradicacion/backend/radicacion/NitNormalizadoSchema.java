@@ -0,0 +1,149 @@
+package com.pagosyradicacion.backend.radicacion;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Columna nit_norm (NIT en mayúsculas, sin espacios, puntos ni guiones) indexada en radicacion_filtrada y en
+ * las tablas de origen que se filtran o cruzan por NIT (radicacion3, pagos, pagos_traza, cápita...). Los filtros
+ * comparan contra ella en lugar de envolver la columna en UPPER()/REPLACE(), así SQL Server puede hacer seek.
+ * En radicacion_filtrada es una columna normal que llena el rebuild (sobrevive al swap de la tabla sombra);
+ * en las demás es calculada PERSISTED: SQL Server la mantiene en cada carga, sea de este backend o externa.
+ * Las columnas y sus índices se crean con db/migracion/003_nit_norm.sql (una sola vez, fuera del arranque y
+ * del rebuild). Al arrancar solo se revisa el catálogo; con radicacion.schema.auto-migrar=true se aplica aquí
+ * lo que falte, como antes.
+ */
+@Component
+public class NitNormalizadoSchema {
+
+  private static final Logger log = LoggerFactory.getLogger(NitNormalizadoSchema.class);
+
+  public static final String COLUMNA = "nit_norm";
+
+  // Misma regla que normalizar(): usar con .formatted(columna)
+  public static final String EXPRESION_SQL = "UPPER(LTRIM(RTRIM(REPLACE(REPLACE(CAST(%s AS VARCHAR(30)),'.',''),'-',''))))";
+
+  // Tabla -> columna del NIT de la que se calcula (radicacion_filtrada la llena el rebuild)
+  private static final Map<String, String> CALCULADAS = new LinkedHashMap<>();
+  static {
+    CALCULADAS.put("radicacion3", "nit");
+    CALCULADAS.put("radicacion_filtrada_capita", "nit");
+    CALCULADAS.put("radicacion_capita", "[NIT]");
+    CALCULADAS.put("pagos", "nit");
+    CALCULADAS.put("pagos_capita", "nit");
+    CALCULADAS.put("pagos_traza", "identificacion");
+  }
+
+  // Tablas existentes a las que les falta la columna o su índice; una consulta al catálogo, sin DDL
+  private static final String PENDIENTES_SQL = """
+      SELECT v.t
+      FROM (VALUES %s) v(t)
+      WHERE OBJECT_ID('dbo.' + v.t, 'U') IS NOT NULL
+        AND (COL_LENGTH('dbo.' + v.t, '%s') IS NULL
+             OR NOT EXISTS (SELECT 1 FROM sys.indexes i
+                            WHERE i.object_id = OBJECT_ID('dbo.' + v.t) AND i.name = 'IX_' + v.t + '_%2$s'))
+      """;
+
+  private final JdbcTemplate jdbc;
+  private final boolean autoMigrar;
+  private final AtomicBoolean verificado = new AtomicBoolean(false);
+  private volatile boolean listo = false;
+
+  public NitNormalizadoSchema(JdbcTemplate jdbc,
+      @Value("${radicacion.schema.auto-migrar:false}") boolean autoMigrar) {
+    this.jdbc = jdbc;
+    this.autoMigrar = autoMigrar;
+  }
+
+  public static String normalizar(String nit) {
+    if (nit == null) return "";
+    return nit.replace(".", "").replace("-", "").trim().toUpperCase(Locale.ROOT);
+  }
+
+  /**
+   * Revisa el catálogo una vez por proceso; las llamadas siguientes no van a la base. Si faltan columnas o
+   * índices los crea solo con auto-migrar; si no, avisa qué script correr (y hay que reiniciar después).
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void asegurar() {
+    if (verificado.get()) return;
+    synchronized (this) {
+      if (verificado.get()) return;
+      try {
+        List<String> pendientes = pendientes();
+        if (!pendientes.isEmpty() && autoMigrar) {
+          log.info("Creando {} en {} (radicacion.schema.auto-migrar=true)", COLUMNA, pendientes);
+          for (String tabla : pendientes) {
+            if (tabla.equals("radicacion_filtrada")) asegurarRadicacionFiltrada();
+            else asegurarCalculada(tabla, CALCULADAS.get(tabla));
+          }
+          pendientes = pendientes();
+        }
+        if (pendientes.isEmpty()) {
+          listo = true;
+        } else {
+          log.error("Falta la columna {} o su índice en {}: ejecutar db/migracion/003_nit_norm.sql y reiniciar",
+              COLUMNA, pendientes);
+        }
+        verificado.set(true);
+      } catch (Exception ex) {
+        // Sin marcar como revisado: la próxima llamada vuelve a intentarlo (p. ej. la base no respondía)
+        log.warn("No se pudo revisar la columna {}: {}", COLUMNA, ex.getMessage());
+      }
+    }
+  }
+
+  /** true si la última revisión encontró la columna e índice en todas las tablas existentes. */
+  public boolean listo() {
+    return listo;
+  }
+
+  private List<String> pendientes() {
+    List<String> tablas = new ArrayList<>();
+    tablas.add("radicacion_filtrada");
+    tablas.addAll(CALCULADAS.keySet());
+    String valores = tablas.stream().map(t -> "('" + t + "')").collect(Collectors.joining(", "));
+    return jdbc.queryForList(PENDIENTES_SQL.formatted(valores, COLUMNA), String.class);
+  }
+
+  private void asegurarRadicacionFiltrada() {
+    Integer existe = jdbc.queryForObject(
+        "SELECT CASE WHEN COL_LENGTH('dbo.radicacion_filtrada', ?) IS NULL THEN 0 ELSE 1 END", Integer.class, COLUMNA);
+    if (existe != null && existe == 0) {
+      jdbc.execute("ALTER TABLE dbo.radicacion_filtrada ADD " + COLUMNA + " VARCHAR(30) NULL");
+      // Relleno único al crear la columna; de ahí en adelante la llena el rebuild
+      int n = jdbc.update("UPDATE dbo.radicacion_filtrada SET " + COLUMNA + " = " + EXPRESION_SQL.formatted("nit"));
+      log.info("Columna radicacion_filtrada.{} creada y rellenada ({} filas)", COLUMNA, n);
+    }
+    crearIndice("radicacion_filtrada");
+  }
+
+  private void asegurarCalculada(String tabla, String columnaNit) {
+    jdbc.execute("""
+      IF OBJECT_ID('dbo.%1$s','U') IS NOT NULL AND COL_LENGTH('dbo.%1$s', '%2$s') IS NULL
+        ALTER TABLE dbo.%1$s ADD %2$s AS (%3$s) PERSISTED;
+    """.formatted(tabla, COLUMNA, EXPRESION_SQL.formatted(columnaNit)));
+    crearIndice(tabla);
+  }
+
+  private void crearIndice(String tabla) {
+    jdbc.execute("""
+      IF OBJECT_ID('dbo.%1$s','U') IS NOT NULL
+         AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_%1$s_%2$s' AND object_id = OBJECT_ID('dbo.%1$s'))
+        CREATE INDEX IX_%1$s_%2$s ON dbo.%1$s (%2$s);
+    """.formatted(tabla, COLUMNA));
+  }
+}
@@ -1,10 +1,12 @@
 package com.pagosyradicacion.backend.radicacion;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -13,18 +15,20 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping("/api/v1/radicacion")
 public class RadicacionController {
 
+  private static final int MAX_TIMING_HEADER_LENGTH = 4000;
+
   private final RadicacionService service;
-  private final RadicacionFiltradaUpdateService updater;
   private final RadicacionFiltradaJobService jobs;
 
-  public RadicacionController(RadicacionService service, RadicacionFiltradaUpdateService updater, RadicacionFiltradaJobService jobs) {
+  public RadicacionController(RadicacionService service, RadicacionFiltradaJobService jobs) {
     this.service = service;
-    this.updater = updater;
     this.jobs = jobs;
   }
 
@@ -42,62 +46,116 @@ public class RadicacionController {
         result.getSize());
   }
 
+  // Paginación por cursor: token = nextToken de la respuesta anterior; total=true agrega el conteo (cacheado)
+  @GetMapping("/cursor")
+  public RadicacionKeysetResponse buscarPorNitCursor(
+      @RequestParam String nit,
+      @RequestParam(required = false) String token,
+      @RequestParam(required = false) Integer size,
+      @RequestParam(name = "total", defaultValue = "false") boolean total) {
+    return service.buscarPorNitKeyset(nit, token, size, total);
+  }
+
+  // Las exportaciones TXT se escriben fila a fila sobre la respuesta (sin armar el archivo en memoria)
   @GetMapping(value = "/export", produces = MediaType.TEXT_PLAIN_VALUE)
-  public ResponseEntity<String> exportarPorNit(@RequestParam String nit) {
-    String data = service.exportarPorNitTxt(nit);
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentDisposition(ContentDisposition.attachment().filename("radicacion_" + nit + ".txt").build());
+  public ResponseEntity<StreamingResponseBody> exportarPorNit(@RequestParam String nit) {
+    StreamingResponseBody data = service.exportarPorNitTxt(nit);
+    HttpHeaders headers = txtHeaders("radicacion_" + nit + ".txt");
     return ResponseEntity.ok().headers(headers).body(data);
   }
 
   @PostMapping(value = "/export/multiple", produces = MediaType.TEXT_PLAIN_VALUE)
-  public ResponseEntity<String> exportarPorMultiplesNit(@RequestBody RadicacionMultiExportRequest request) {
-    String data = service.exportarPorMultiplesNitTxt(request.nits());
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentDisposition(
-        ContentDisposition.attachment().filename("radicacion_multiples_nit.txt").build());
-    return ResponseEntity.ok().headers(headers).body(data);
+  public ResponseEntity<StreamingResponseBody> exportarPorMultiplesNit(@RequestBody RadicacionMultiExportRequest request) {
+    RadicacionService.ExportacionMultiple export = service.exportarPorMultiplesNitTxt(request.nits());
+    HttpHeaders headers = txtHeaders("radicacion_multiples_nit.txt");
+    headers.set("X-Export-Total-Ms", String.valueOf(export.totalMillis()));
+    headers.set("X-Export-Nits", String.valueOf(export.partes().size()));
+    headers.set("X-Export-Nits-Con-Registros",
+        String.valueOf(export.partes().stream().filter(p -> p.filas() > 0).count()));
+    // nit:ms:filas por NIT en el orden solicitado; se recorta para no exceder el tamaño máximo de headers
+    StringBuilder timings = new StringBuilder();
+    boolean recortado = false;
+    for (var parte : export.partes()) {
+      String item = parte.nit() + ":" + parte.millis() + ":" + parte.filas();
+      if (timings.length() + item.length() + 1 > MAX_TIMING_HEADER_LENGTH) { recortado = true; break; }
+      if (timings.length() > 0) timings.append(',');
+      timings.append(item);
+    }
+    headers.set("X-Export-Nit-Timings", timings.toString());
+    if (recortado) headers.set("X-Export-Nit-Timings-Truncated", "true");
+    return ResponseEntity.ok().headers(headers).body(export.body());
   }
 
   @PostMapping(value = "/export/fecha", produces = MediaType.TEXT_PLAIN_VALUE)
-  public ResponseEntity<String> exportarPorFecha(@RequestBody(required = false) RadicacionFechaExportRequest request) {
+  public ResponseEntity<StreamingResponseBody> exportarPorFecha(@RequestBody(required = false) RadicacionFechaExportRequest request) {
     RadicacionFechaExportRequest filtros = request != null
         ? request
         : new RadicacionFechaExportRequest(null, null, null, null);
-    String data = service.exportarPorFechaTxt(filtros);
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentDisposition(ContentDisposition.attachment().filename("radicacion_por_fecha.txt").build());
+    StreamingResponseBody data = service.exportarPorFechaTxt(filtros);
+    HttpHeaders headers = txtHeaders("radicacion_por_fecha.txt");
     return ResponseEntity.ok().headers(headers).body(data);
   }
 
+  private static HttpHeaders txtHeaders(String filename) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(new MediaType("text", "plain", StandardCharsets.UTF_8));
+    headers.setContentDisposition(ContentDisposition.attachment().filename(filename).build());
+    return headers;
+  }
+
   @GetMapping("/opciones/estados-aplicacion")
   public List<String> obtenerEstadosAplicacion() {
     return service.obtenerEstadosAplicacion();
   }
 
+  // Síncrono: pasa por el mismo runner que /start (single-flight y registro en radicacion_filtrada_job)
+  // y espera a que termine. Si ya hay una actualización corriendo responde 409 en lugar de lanzar otra.
   @PostMapping("/actualizar-filtrada")
-  public ResponseEntity<Map<String, Object>> actualizarFiltrada() {
-    Map<String, Object> res = updater.actualizar();
+  public ResponseEntity<Map<String, Object>> actualizarFiltrada(
+      @RequestParam(name = "modo", defaultValue = "completo") String modo) {
+    var inicio = jobs.start(modo);
+    if (!inicio.nuevo()) {
+      throw new ResponseStatusException(HttpStatus.CONFLICT, "Ya hay una actualización de radicacion_filtrada en curso");
+    }
+    var st = inicio.job().terminado.join();
+    if (st.status != RadicacionFiltradaJobService.Status.COMPLETED) {
+      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+          "Falló la actualización de radicacion_filtrada: " + st.message);
+    }
+    Map<String, Object> res = new java.util.LinkedHashMap<>(st.resultado);
+    res.put("jobId", st.id);
     return ResponseEntity.ok(res);
   }
 
   // Async start + status (para evitar timeouts en front)
   @PostMapping("/actualizar-filtrada/start")
-  public ResponseEntity<Map<String,Object>> startAsync() {
-    String id = jobs.start();
-    return ResponseEntity.ok(java.util.Map.of("jobId", id));
+  public ResponseEntity<Map<String,Object>> startAsync(
+      @RequestParam(name = "modo", defaultValue = "completo") String modo) {
+    var inicio = jobs.start(modo);
+    // Si ya había un job corriendo se devuelve ese mismo id (no se lanza otro TRUNCATE+INSERT)
+    return ResponseEntity.ok(java.util.Map.of(
+      "jobId", inicio.job().id,
+      "nuevo", inicio.nuevo(),
+      "modo", inicio.job().modo));
   }
 
   @GetMapping("/actualizar-filtrada/status")
   public ResponseEntity<?> status(@RequestParam String jobId) {
     var st = jobs.get(jobId);
     if (st == null) return ResponseEntity.status(404).body(java.util.Map.of("error","job no encontrado"));
-    return ResponseEntity.ok(java.util.Map.of(
-      "jobId", st.id,
-      "status", st.status.name(),
-      "startedAt", st.startedAt.toString(),
-      "inserted", st.inserted,
-      "message", st.message
-    ));
+    // LinkedHashMap: inserted/tiempos son null mientras el job corre (Map.of no admite nulls)
+    Map<String, Object> body = new java.util.LinkedHashMap<>();
+    body.put("jobId", st.id);
+    body.put("status", st.status.name());
+    body.put("modo", st.modo);
+    body.put("fase", st.fase);
+    body.put("segundosEnFase", RadicacionFiltradaJobService.segundosEnFase(st));
+    body.put("startedAt", st.startedAt.toString());
+    body.put("finishedAt", st.finishedAt == null ? null : st.finishedAt.toString());
+    body.put("inserted", st.inserted);
+    body.put("message", st.message);
+    body.put("tiempos", st.tiempos);
+    body.put("tiemposAnteriores", st.tiemposAnteriores);
+    return ResponseEntity.ok(body);
   }
 }
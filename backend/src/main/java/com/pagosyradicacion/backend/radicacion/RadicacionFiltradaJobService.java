@@ -1,57 +1,265 @@
 package com.pagosyradicacion.backend.radicacion;
 
+import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.springframework.scheduling.annotation.Async;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
+/**
+ * Jobs de actualización de radicacion_filtrada. Corren en un pool acotado (radicacionJobExecutor),
+ * solo uno a la vez (single-flight: un segundo start devuelve el job en curso), reportan la fase
+ * actual y quedan registrados en dbo.radicacion_filtrada_job para sobrevivir a un reinicio.
+ * En memoria solo se guardan los jobs recientes; los terminados se descartan tras el TTL.
+ */
 @Service
 public class RadicacionFiltradaJobService {
 
+  private static final Logger log = LoggerFactory.getLogger(RadicacionFiltradaJobService.class);
+
   public enum Status { RUNNING, COMPLETED, FAILED }
 
+  /** Modos de actualización. Un valor desconocido se rechaza (400): no cae en completo, que hace TRUNCATE. */
+  public enum Modo {
+    COMPLETO, INCREMENTAL, SOMBRA;
+
+    public static Modo desde(String valor) {
+      if (valor == null || valor.isBlank()) return COMPLETO;
+      return valueOf(valor.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public String nombre() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
   public static class JobState {
     public final String id;
-    public final Instant startedAt = Instant.now();
+    public final Instant startedAt;
     public volatile Status status = Status.RUNNING;
     public volatile String message = "";
     public volatile Integer inserted = null;
-    public JobState(String id){ this.id = id; }
+    public volatile String modo = "completo";
+    public volatile String fase = "en cola";
+    public volatile Instant faseDesde = Instant.now();
+    public volatile Instant finishedAt = null;
+    public volatile Map<String, Long> tiempos = null;
+    // Tiempos de la última ejecución completada del mismo modo, para comparar antes/después
+    public volatile Map<String, Long> tiemposAnteriores = null;
+    // Respuesta completa del updater (solo en memoria; la usa el endpoint síncrono)
+    public volatile Map<String, Object> resultado = null;
+    // Se completa al terminar (COMPLETED o FAILED), para quien quiera esperar el job
+    public final CompletableFuture<JobState> terminado = new CompletableFuture<>();
+    public JobState(String id){ this(id, Instant.now()); }
+    public JobState(String id, Instant startedAt){ this.id = id; this.startedAt = startedAt; }
   }
 
+  /** Resultado de start(): el job y si se creó ahora o ya estaba en curso. */
+  public record Inicio(JobState job, boolean nuevo) {}
+
   private final RadicacionFiltradaUpdateService updater;
+  private final TaskExecutor executor;
+  private final JdbcTemplate jdbc;
+  private final Duration ttl;
   private final Map<String, JobState> jobs = new ConcurrentHashMap<>();
+  private final Map<String, Map<String, Long>> ultimosTiempos = new ConcurrentHashMap<>();
+  private final AtomicReference<JobState> enCurso = new AtomicReference<>();
+  private volatile boolean tablaLista = false;
 
-  public RadicacionFiltradaJobService(RadicacionFiltradaUpdateService updater) {
+  public RadicacionFiltradaJobService(
+      RadicacionFiltradaUpdateService updater,
+      @Qualifier("radicacionJobExecutor") TaskExecutor executor,
+      JdbcTemplate jdbc,
+      @Value("${radicacion.jobs.ttl-minutes:60}") long ttlMinutes) {
     this.updater = updater;
+    this.executor = executor;
+    this.jdbc = jdbc;
+    this.ttl = Duration.ofMinutes(ttlMinutes > 0 ? ttlMinutes : 60);
+  }
+
+  // Un job RUNNING en la tabla al arrancar quedó huérfano por un reinicio
+  @EventListener(ApplicationReadyEvent.class)
+  public void marcarInterrumpidos() {
+    try {
+      ensureTabla();
+      int n = jdbc.update("""
+          UPDATE dbo.radicacion_filtrada_job
+          SET status = 'FAILED', message = 'Interrumpido por reinicio del servidor', finished_at = GETDATE()
+          WHERE status = 'RUNNING'
+          """);
+      if (n > 0) log.warn("{} job(s) de radicacion_filtrada marcados como interrumpidos", n);
+    } catch (Exception ex) {
+      log.warn("No se pudo revisar dbo.radicacion_filtrada_job: {}", ex.getMessage());
+    }
   }
 
-  public String start() {
-    String id = UUID.randomUUID().toString();
-    JobState st = new JobState(id);
-    jobs.put(id, st);
-    runAsync(st);
-    return id;
+  public Inicio start(String modo) {
+    Modo m;
+    try {
+      m = Modo.desde(modo);
+    } catch (IllegalArgumentException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "modo debe ser completo, incremental o sombra");
+    }
+    evictExpirados();
+    JobState st = new JobState(UUID.randomUUID().toString());
+    st.modo = m.nombre();
+    st.tiemposAnteriores = ultimosTiempos.get(st.modo);
+
+    // Single-flight: si ya hay un job corriendo se devuelve ese mismo
+    JobState actual = enCurso.get();
+    if ((actual != null && actual.status == Status.RUNNING) || !enCurso.compareAndSet(actual, st)) {
+      JobState otro = enCurso.get();
+      return new Inicio(otro != null ? otro : st, false);
+    }
+
+    jobs.put(st.id, st);
+    persistir(st);
+    try {
+      executor.execute(() -> run(st, m));
+    } catch (RejectedExecutionException ex) {
+      finalizar(st, Status.FAILED, "Pool de jobs saturado, intenta más tarde");
+    }
+    return new Inicio(st, true);
   }
 
-  public JobState get(String id) { return jobs.get(id); }
+  public boolean hayEnCurso() {
+    JobState actual = enCurso.get();
+    return actual != null && actual.status == Status.RUNNING;
+  }
 
-  @Async
-  protected CompletableFuture<Void> runAsync(JobState st) {
-    return CompletableFuture.runAsync(() -> {
-      try {
-        var res = updater.actualizar();
-        st.inserted = (Integer) res.getOrDefault("inserted", 0);
-        st.status = Status.COMPLETED;
-      } catch (Exception ex) {
-        st.status = Status.FAILED;
-        st.message = ex.getMessage();
+  public JobState get(String id) {
+    evictExpirados();
+    JobState st = jobs.get(id);
+    return st != null ? st : cargar(id);
+  }
+
+  private void run(JobState st, Modo modo) {
+    RadicacionFiltradaUpdateService.Progreso progreso = fase -> {
+      st.fase = fase;
+      st.faseDesde = Instant.now();
+    };
+    try {
+      var res = switch (modo) {
+        case COMPLETO -> updater.actualizar(progreso);
+        case INCREMENTAL -> updater.actualizarIncremental(progreso);
+        case SOMBRA -> updater.actualizarConSombra(progreso);
+      };
+      st.resultado = res;
+      st.inserted = (Integer) res.getOrDefault("inserted", 0);
+      @SuppressWarnings("unchecked")
+      Map<String, Long> tiempos = (Map<String, Long>) res.get("tiempos");
+      if (tiempos != null) {
+        st.tiempos = tiempos;
+        ultimosTiempos.put(st.modo, tiempos);
       }
-    });
+      finalizar(st, Status.COMPLETED, "");
+    } catch (Exception ex) {
+      log.error("Job {} de radicacion_filtrada falló en fase {}: {}", st.id, st.fase, ex.getMessage(), ex);
+      finalizar(st, Status.FAILED, ex.getMessage());
+    }
   }
-}
 
+  private void finalizar(JobState st, Status status, String message) {
+    st.message = message == null ? "" : message;
+    st.finishedAt = Instant.now();
+    st.fase = status == Status.COMPLETED ? "terminado" : st.fase;
+    st.status = status;
+    enCurso.compareAndSet(st, null);
+    persistir(st);
+    st.terminado.complete(st);
+  }
+
+  private void evictExpirados() {
+    Instant limite = Instant.now().minus(ttl);
+    jobs.values().removeIf(j -> j.finishedAt != null && j.finishedAt.isBefore(limite));
+  }
+
+  private void ensureTabla() {
+    if (tablaLista) return;
+    jdbc.execute("""
+      IF OBJECT_ID('dbo.radicacion_filtrada_job','U') IS NULL
+      CREATE TABLE dbo.radicacion_filtrada_job (
+        id VARCHAR(36) NOT NULL PRIMARY KEY,
+        modo VARCHAR(20) NULL,
+        status VARCHAR(20) NOT NULL,
+        fase VARCHAR(30) NULL,
+        inserted INT NULL,
+        message NVARCHAR(2000) NULL,
+        started_at DATETIME2 NOT NULL,
+        finished_at DATETIME2 NULL
+      );
+    """);
+    tablaLista = true;
+  }
+
+  // Best-effort: el registro en BD no debe tumbar el job
+  private void persistir(JobState st) {
+    try {
+      ensureTabla();
+      String msg = st.message == null ? null : st.message.substring(0, Math.min(st.message.length(), 2000));
+      Timestamp fin = st.finishedAt == null ? null : Timestamp.from(st.finishedAt);
+      int n = jdbc.update("""
+          UPDATE dbo.radicacion_filtrada_job
+          SET status = ?, fase = ?, inserted = ?, message = ?, finished_at = ?
+          WHERE id = ?
+          """, st.status.name(), st.fase, st.inserted, msg, fin, st.id);
+      if (n == 0) {
+        jdbc.update("""
+            INSERT INTO dbo.radicacion_filtrada_job (id, modo, status, fase, inserted, message, started_at, finished_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+            """, st.id, st.modo, st.status.name(), st.fase, st.inserted, msg, Timestamp.from(st.startedAt), fin);
+      }
+    } catch (Exception ex) {
+      log.warn("No se pudo registrar el job {}: {}", st.id, ex.getMessage());
+    }
+  }
+
+  private JobState cargar(String id) {
+    try {
+      ensureTabla();
+      List<JobState> rows = jdbc.query(
+          "SELECT id, modo, status, fase, inserted, message, started_at, finished_at FROM dbo.radicacion_filtrada_job WHERE id = ?",
+          (rs, n) -> {
+            JobState st = new JobState(rs.getString("id"), rs.getTimestamp("started_at").toInstant());
+            st.modo = rs.getString("modo");
+            st.status = Status.valueOf(rs.getString("status"));
+            st.fase = rs.getString("fase");
+            int ins = rs.getInt("inserted");
+            st.inserted = rs.wasNull() ? null : ins;
+            st.message = rs.getString("message") == null ? "" : rs.getString("message");
+            Timestamp fin = rs.getTimestamp("finished_at");
+            st.finishedAt = fin == null ? null : fin.toInstant();
+            return st;
+          }, id);
+      return rows.isEmpty() ? null : rows.get(0);
+    } catch (Exception ex) {
+      log.warn("No se pudo consultar el job {}: {}", id, ex.getMessage());
+      return null;
+    }
+  }
+
+  /** Segundos que lleva el job en su fase actual (o en total si ya terminó). */
+  public static long segundosEnFase(JobState st) {
+    Instant desde = st.finishedAt != null ? st.startedAt : st.faseDesde;
+    Instant hasta = st.finishedAt != null ? st.finishedAt : Instant.now();
+    return Duration.between(desde, hasta).getSeconds();
+  }
+}
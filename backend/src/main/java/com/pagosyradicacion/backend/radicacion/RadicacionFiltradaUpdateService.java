@@ -3,94 +3,503 @@ package com.pagosyradicacion.backend.radicacion;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.pagosyradicacion.backend.carga.ClaveCruceSchema;
 
 @Service
 public class RadicacionFiltradaUpdateService {
 
-  private final JdbcTemplate jdbc;
-
-  public RadicacionFiltradaUpdateService(JdbcTemplate jdbc) { this.jdbc = jdbc; }
-
-  @Transactional
-  public Map<String, Object> actualizar() {
-    jdbc.update("TRUNCATE TABLE dbo.radicacion_filtrada");
-
-    String sql = """
-      INSERT INTO dbo.radicacion_filtrada (
+  // Columnas destino del INSERT (el %s es la tabla: dbo.radicacion_filtrada)
+  private static final String INSERT_COLUMNS = """
+      INSERT INTO %s (
         id, modalidad_pago, modalidad_Factura, nit, nom_prestador, tipo_red, departamento, municipio, prefijo, factura, prefijo_factura,
         mes_radicacion, estado_aplicacion, fecha_radicacion, rango_dias, fecha_factura, valor_factura, valor_iva,
         nota_credito, valor_glosa_inicial, valor_no_glosado_inicial, valor_aceptado_primera_respuesta,
         valor_levantado_primera_respuesta, valor_ratificado_primera_respuesta, valor_aceptado_segunda_respuesta,
         valor_levantado_segunda_respuesta, valor_ratificado_segunda_respuesta, valor_aceptado_conciliacion,
         valor_levantado_conciliacion, valor_ratificado_conciliacion, Valor_actual_aceptado, valor_actual_reconocido,
-        valor_final_ratificado, valor_pagado, porcentaje_pago, estado, voucher, feccha_pago, id_fomag,procedencia
+        valor_final_ratificado, valor_pagado, porcentaje_pago, estado, voucher, feccha_pago, id_fomag,procedencia, nit_norm
       )
+      """;
+
+  // Etapa 1: cruce radicacion3 + pagos. ROW_NUMBER() y DATEDIFF se calculan una sola vez por fila
+  // (antes se repetían 14 y hasta 8 veces en la proyección). %s = filtro adicional (modo incremental).
+  private static final String BASE_FILTRADA = """
+      ;WITH base AS (
+        SELECT
+          r.id, r.modalidad_pago, r.modalidad_Factura, r.nit, r.nom_prestador, r.tipo_red, r.departamento, r.municipio,
+          r.prefijo, r.factura, r.prefijo_factura, r.mes_radicacion, r.estado_aplicacion, r.fecha_radicacion, r.fecha_factura,
+          r.valor_factura, r.valor_iva, r.nota_credito, r.valor_glosa_inicial, r.valor_no_glosado_inicial,
+          r.valor_aceptado_pri_respuesta, r.valor_levantado_pri_respuesta, r.valor_ratificado_pri_respeuesta,
+          r.valor_aceptado_seg_respuesta, r.valor_levantado_seg_respuesta, r.valor_ratificado_seg_respeuesta,
+          r.valor_aceptado_conciliacion, r.valor_levantado_conciliacion, r.valor_ratificado_conciliacion,
+          r.valor_final_aceptado, r.valor_final_reconocido, r.valor_final_ratificado, r.procedencia,
+          p.valor_pagado, p.porcentaje_pago, p.estado, p.voucher, p.feccha_pago, p.id_fomag,
+          ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) AS rn,
+          DATEDIFF(DAY, r.fecha_radicacion, GETDATE()) AS dias
+        FROM dbo.radicacion3 r
+        LEFT JOIN dbo.pagos p
+          ON p.clave_cruce = r.clave_cruce
+        WHERE r.estado_aplicacion <> 'No Aprobado por Calidad'
+          AND r.estado_aplicacion <> 'En Revisi+¦n Calidad'
+          %s
+      )
+      """;
+
+  // Etapa 2: proyección final; los valores de radicación solo van en la primera fila de cada partición
+  private static final String SELECT_FILTRADA = """
       SELECT
-        r.id,
-        r.modalidad_pago,
-        r.modalidad_Factura,
-        r.nit,
-        r.nom_prestador,
-        r.tipo_red,
-        r.departamento,
-        r.municipio,
-        r.prefijo,
-        r.factura,
-        r.prefijo_factura,
-        r.mes_radicacion,
-        r.estado_aplicacion,
-        r.fecha_radicacion,
-        CASE
-          WHEN DATEDIFF(DAY, r.fecha_radicacion, GETDATE()) BETWEEN 0 AND 30 THEN '0 a 30 días'
-          WHEN DATEDIFF(DAY, r.fecha_radicacion, GETDATE()) BETWEEN 31 AND 45 THEN '31 a 45 días'
-          WHEN DATEDIFF(DAY, r.fecha_radicacion, GETDATE()) BETWEEN 46 AND 60 THEN '46 a 60 días'
-          WHEN DATEDIFF(DAY, r.fecha_radicacion, GETDATE()) BETWEEN 61 AND 90 THEN '61 a 90 días'
-          WHEN DATEDIFF(DAY, r.fecha_radicacion, GETDATE()) BETWEEN 91 AND 120 THEN '91 a 120 días'
-          WHEN DATEDIFF(DAY, r.fecha_radicacion, GETDATE()) BETWEEN 121 AND 150 THEN '121 a 150 días'
-          WHEN DATEDIFF(DAY, r.fecha_radicacion, GETDATE()) BETWEEN 151 AND 180 THEN '151 a 180 días'
-          ELSE 'Mayor a 180 días'
-        END AS rango_dias,
-        r.fecha_factura,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_factura ELSE 0 END AS valor_factura,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_iva ELSE 0 END AS valor_iva,
-        r.nota_credito,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_glosa_inicial ELSE 0 END AS valor_glosa_inicial,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_no_glosado_inicial ELSE 0 END AS valor_no_glosado_inicial,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_aceptado_pri_respuesta ELSE 0 END AS valor_aceptado_primera_respuesta,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_levantado_pri_respuesta ELSE 0 END AS valor_levantado_primera_respuesta,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_ratificado_pri_respeuesta ELSE 0 END AS valor_ratificado_primera_respuesta,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_aceptado_seg_respuesta ELSE 0 END AS valor_aceptado_segunda_respuesta,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_levantado_seg_respuesta ELSE 0 END AS valor_levantado_segunda_respuesta,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_ratificado_seg_respeuesta ELSE 0 END AS valor_ratificado_segunda_respuesta,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_aceptado_conciliacion ELSE 0 END AS valor_aceptado_conciliacion,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_levantado_conciliacion ELSE 0 END AS valor_levantado_conciliacion,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_ratificado_conciliacion ELSE 0 END AS valor_ratificado_conciliacion,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_final_aceptado ELSE 0 END AS valor_actual_aceptado,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_final_reconocido ELSE 0 END AS valor_actual_reconocido,
-        CASE WHEN ROW_NUMBER() OVER (PARTITION BY r.modalidad_pago, r.id, r.nit ORDER BY p.feccha_pago) = 1 THEN r.valor_final_ratificado ELSE 0 END AS valor_actual_ratificado,
-        p.valor_pagado,
-        p.porcentaje_pago,
-        p.estado,
-        p.voucher,
-        p.feccha_pago,
-        p.id_fomag,
-		r.procedencia
+        b.id,
+        b.modalidad_pago,
+        b.modalidad_Factura,
+        b.nit,
+        b.nom_prestador,
+        b.tipo_red,
+        b.departamento,
+        b.municipio,
+        b.prefijo,
+        b.factura,
+        b.prefijo_factura,
+        b.mes_radicacion,
+        b.estado_aplicacion,
+        b.fecha_radicacion,
+        %s AS rango_dias,
+        b.fecha_factura,
+        CASE WHEN b.rn = 1 THEN b.valor_factura ELSE 0 END AS valor_factura,
+        CASE WHEN b.rn = 1 THEN b.valor_iva ELSE 0 END AS valor_iva,
+        b.nota_credito,
+        CASE WHEN b.rn = 1 THEN b.valor_glosa_inicial ELSE 0 END AS valor_glosa_inicial,
+        CASE WHEN b.rn = 1 THEN b.valor_no_glosado_inicial ELSE 0 END AS valor_no_glosado_inicial,
+        CASE WHEN b.rn = 1 THEN b.valor_aceptado_pri_respuesta ELSE 0 END AS valor_aceptado_primera_respuesta,
+        CASE WHEN b.rn = 1 THEN b.valor_levantado_pri_respuesta ELSE 0 END AS valor_levantado_primera_respuesta,
+        CASE WHEN b.rn = 1 THEN b.valor_ratificado_pri_respeuesta ELSE 0 END AS valor_ratificado_primera_respuesta,
+        CASE WHEN b.rn = 1 THEN b.valor_aceptado_seg_respuesta ELSE 0 END AS valor_aceptado_segunda_respuesta,
+        CASE WHEN b.rn = 1 THEN b.valor_levantado_seg_respuesta ELSE 0 END AS valor_levantado_segunda_respuesta,
+        CASE WHEN b.rn = 1 THEN b.valor_ratificado_seg_respeuesta ELSE 0 END AS valor_ratificado_segunda_respuesta,
+        CASE WHEN b.rn = 1 THEN b.valor_aceptado_conciliacion ELSE 0 END AS valor_aceptado_conciliacion,
+        CASE WHEN b.rn = 1 THEN b.valor_levantado_conciliacion ELSE 0 END AS valor_levantado_conciliacion,
+        CASE WHEN b.rn = 1 THEN b.valor_ratificado_conciliacion ELSE 0 END AS valor_ratificado_conciliacion,
+        CASE WHEN b.rn = 1 THEN b.valor_final_aceptado ELSE 0 END AS valor_actual_aceptado,
+        CASE WHEN b.rn = 1 THEN b.valor_final_reconocido ELSE 0 END AS valor_actual_reconocido,
+        CASE WHEN b.rn = 1 THEN b.valor_final_ratificado ELSE 0 END AS valor_actual_ratificado,
+        b.valor_pagado,
+        b.porcentaje_pago,
+        b.estado,
+        b.voucher,
+        b.feccha_pago,
+        b.id_fomag,
+        b.procedencia,
+        %s AS nit_norm
+      FROM base b
+      """;
+
+  // Tabla temporal de sesión: se crea fuera de sp_executesql para que sobreviva entre sentencias
+  private static final String AFECTADOS_DDL = """
+      IF OBJECT_ID('tempdb..#rf_afectados') IS NOT NULL DROP TABLE #rf_afectados;
+      CREATE TABLE #rf_afectados (
+        modalidad_pago VARCHAR(100) NULL,
+        id VARCHAR(50) NULL,
+        nit VARCHAR(50) NULL
+      );
+      """;
+
+  // Particiones (modalidad_pago, id, nit) afectadas desde la última actualización: filas de radicacion3 o pagos
+  // con rowversion posterior a la marca de agua, más las claves anteriores de los pagos corregidos (id_fomag)
+  private static final String AFECTADOS_SQL = """
+      INSERT INTO #rf_afectados (modalidad_pago, id, nit)
+      SELECT r.modalidad_pago, CAST(r.id AS VARCHAR(50)), CAST(r.nit AS VARCHAR(50))
       FROM dbo.radicacion3 r
-      LEFT JOIN dbo.pagos p
-        ON (r.modalidad_pago + CAST(r.id AS VARCHAR(50)) + CAST(r.nit AS VARCHAR(50))) =
-           (p.modalidad + CAST(p.id AS VARCHAR(50)) + CAST(p.nit AS VARCHAR(50)))
-      WHERE r.estado_aplicacion <> 'No Aprobado por Calidad'
-        AND r.estado_aplicacion <> 'En Revisi+¦n Calidad'
-    """;
-
-    int inserted = jdbc.update(sql);
+      WHERE r.%1$s > ?
+
+      UNION
+
+      SELECT r.modalidad_pago, CAST(r.id AS VARCHAR(50)), CAST(r.nit AS VARCHAR(50))
+      FROM dbo.pagos p
+      JOIN dbo.radicacion3 r
+        ON p.clave_cruce = r.clave_cruce
+      WHERE p.%2$s > ?
+
+      UNION
+
+      SELECT rf.modalidad_pago, CAST(rf.id AS VARCHAR(50)), CAST(rf.nit AS VARCHAR(50))
+      FROM dbo.radicacion_filtrada rf
+      WHERE rf.id_fomag IN (SELECT p.id_fomag FROM dbo.pagos p WHERE p.%2$s > ? AND p.id_fomag IS NOT NULL)
+      """;
+
+  // Bucket de rango_dias sobre una expresión de días ya calculada (%1$s)
+  private static final String RANGO_DIAS_SQL = """
+      CASE
+        WHEN %1$s BETWEEN 0 AND 30 THEN '0 a 30 días'
+        WHEN %1$s BETWEEN 31 AND 45 THEN '31 a 45 días'
+        WHEN %1$s BETWEEN 46 AND 60 THEN '46 a 60 días'
+        WHEN %1$s BETWEEN 61 AND 90 THEN '61 a 90 días'
+        WHEN %1$s BETWEEN 91 AND 120 THEN '91 a 120 días'
+        WHEN %1$s BETWEEN 121 AND 150 THEN '121 a 150 días'
+        WHEN %1$s BETWEEN 151 AND 180 THEN '151 a 180 días'
+        ELSE 'Mayor a 180 días'
+      END""";
+
+  private final JdbcTemplate jdbc;
+  private final ClaveCruceSchema claveCruce;
+  // Generación de radicacion_filtrada en este proceso: sube cuando una reconstrucción se confirma
+  private final AtomicLong generacion = new AtomicLong();
+  private final AtomicInteger enCurso = new AtomicInteger();
+
+  public RadicacionFiltradaUpdateService(JdbcTemplate jdbc, ClaveCruceSchema claveCruce) {
+    this.jdbc = jdbc;
+    this.claveCruce = claveCruce;
+  }
+
+  /**
+   * Generación actual de radicacion_filtrada, para quien guarde resultados derivados de la tabla (p. ej.
+   * ConciliacionExportCache). Sube después de cada actualización confirmada (completa, sombra o
+   * incremental). Mientras una actualización corre la tabla puede estar a medio llenar: devuelve -1 y
+   * lo leído en ese momento no se debe guardar. Es un contador en memoria, no sobrevive a un reinicio.
+   */
+  public long generacion() {
+    return enCurso.get() > 0 ? -1 : generacion.get();
+  }
+
+  /** Recibe el nombre de cada fase al iniciarla (preparando, truncate, insert, indices, swap, ...). */
+  @FunctionalInterface
+  public interface Progreso {
+    Progreso NINGUNO = fase -> {};
+    void fase(String fase);
+  }
+
+  // WITH base AS (...) INSERT INTO <tabla> (...) SELECT ... FROM base
+  private static String insertFiltrada(String tabla, String filtroExtra) {
+    return BASE_FILTRADA.formatted(filtroExtra)
+        + INSERT_COLUMNS.formatted(tabla)
+        + SELECT_FILTRADA.formatted(RANGO_DIAS_SQL.formatted("b.dias"), NitNormalizadoSchema.EXPRESION_SQL.formatted("b.nit"));
+  }
+
+  // @Transactional también en las sobrecargas sin progreso: la llamada interna sobre this no pasa por el
+  // proxy, y sin transacción el TRUNCATE + INSERT dejaría la tabla vacía a la vista y la generación
+  // subiría sin esperar al commit
+  @Transactional
+  public Map<String, Object> actualizar() {
+    return actualizar(Progreso.NINGUNO);
+  }
+
+  @Transactional
+  public Map<String, Object> actualizar(Progreso progreso) {
+    return reconstruir(() -> actualizarCompleto(progreso));
+  }
+
+  private Map<String, Object> actualizarCompleto(Progreso progreso) {
+    progreso.fase("preparando");
+    ensureControl();
+    // Marca de agua tomada ANTES de leer: lo que se modifique durante el rebuild se reprocesa en el siguiente incremental
+    byte[] marcaPagos = marcaActual();
+    byte[] marcaRadicacion = marcaPagos;
+    Map<String, Long> tiempos = new LinkedHashMap<>();
+    long t0 = System.nanoTime();
+
+    progreso.fase("truncate");
+    long t = System.nanoTime();
+    jdbc.update("TRUNCATE TABLE dbo.radicacion_filtrada");
+    tiempos.put("truncate_ms", ms(t));
+
+    progreso.fase("insert");
+    t = System.nanoTime();
+    int inserted = jdbc.update(insertFiltrada("dbo.radicacion_filtrada", ""));
+    tiempos.put("insert_ms", ms(t));
+    guardarMarcas(marcaPagos, marcaRadicacion, "completo");
+    tiempos.put("total_ms", ms(t0));
     Map<String, Object> out = new HashMap<>();
     out.put("ok", true);
+    out.put("modo", "completo");
     out.put("inserted", inserted);
+    out.put("tiempos", tiempos);
     return out;
   }
-}
 
+  /**
+   * Reconstrucción completa sin dejar la tabla vacía: llena dbo.radicacion_filtrada_next (heap + TABLOCK,
+   * log mínimo), le crea los mismos índices que la tabla viva y la intercambia con sp_rename en una
+   * transacción corta. Los lectores ven la versión anterior hasta el instante del swap.
+   */
+  public Map<String, Object> actualizarConSombra() {
+    return actualizarConSombra(Progreso.NINGUNO);
+  }
+
+  public Map<String, Object> actualizarConSombra(Progreso progreso) {
+    return reconstruir(() -> sombra(progreso));
+  }
+
+  private Map<String, Object> sombra(Progreso progreso) {
+    progreso.fase("preparando");
+    ensureControl();
+    byte[] marca = marcaActual();
+    Map<String, Long> tiempos = new LinkedHashMap<>();
+    long t0 = System.nanoTime();
+
+    progreso.fase("insert");
+    long t = System.nanoTime();
+    jdbc.execute("""
+        IF OBJECT_ID('dbo.radicacion_filtrada_next','U') IS NOT NULL DROP TABLE dbo.radicacion_filtrada_next;
+        SELECT TOP 0 * INTO dbo.radicacion_filtrada_next FROM dbo.radicacion_filtrada;
+        """);
+    int inserted = jdbc.update(insertFiltrada("dbo.radicacion_filtrada_next WITH (TABLOCK)", ""));
+    tiempos.put("insert_ms", ms(t));
+
+    progreso.fase("indices");
+    t = System.nanoTime();
+    List<String> indices = scriptIndices("dbo.radicacion_filtrada", "dbo.radicacion_filtrada_next");
+    for (String ddl : indices) {
+      jdbc.execute(ddl);
+    }
+    tiempos.put("indices_ms", ms(t));
+
+    progreso.fase("swap");
+    t = System.nanoTime();
+    // XACT_ABORT se apaga en ambos caminos: la conexión vuelve al pool con la opción de sesión puesta
+    jdbc.execute("""
+        SET XACT_ABORT ON;
+        BEGIN TRY
+          BEGIN TRAN;
+            IF OBJECT_ID('dbo.radicacion_filtrada_old','U') IS NOT NULL DROP TABLE dbo.radicacion_filtrada_old;
+            EXEC sp_rename 'dbo.radicacion_filtrada', 'radicacion_filtrada_old';
+            EXEC sp_rename 'dbo.radicacion_filtrada_next', 'radicacion_filtrada';
+          COMMIT;
+          SET XACT_ABORT OFF;
+        END TRY
+        BEGIN CATCH
+          IF @@TRANCOUNT > 0 ROLLBACK;
+          SET XACT_ABORT OFF;
+          THROW;
+        END CATCH
+        """);
+    jdbc.execute("DROP TABLE dbo.radicacion_filtrada_old");
+    tiempos.put("swap_ms", ms(t));
+
+    guardarMarcas(marca, marca, "sombra");
+    tiempos.put("total_ms", ms(t0));
+    Map<String, Object> out = new HashMap<>();
+    out.put("ok", true);
+    out.put("modo", "sombra");
+    out.put("inserted", inserted);
+    out.put("indices", indices.size());
+    out.put("tiempos", tiempos);
+    return out;
+  }
+
+  // Genera los CREATE INDEX de la tabla origen sobre la tabla destino. PK y UNIQUE constraints se
+  // recrean como índices únicos para no chocar con los nombres de constraint (únicos por esquema).
+  private List<String> scriptIndices(String origen, String destino) {
+    return jdbc.query("""
+        SELECT
+          i.name,
+          i.is_unique,
+          i.type_desc,
+          STRING_AGG(CASE WHEN ic.is_included_column = 0
+                          THEN QUOTENAME(c.name) + CASE WHEN ic.is_descending_key = 1 THEN ' DESC' ELSE '' END END, ',')
+            WITHIN GROUP (ORDER BY ic.key_ordinal) AS claves,
+          STRING_AGG(CASE WHEN ic.is_included_column = 1 THEN QUOTENAME(c.name) END, ',') AS incluidas,
+          i.filter_definition
+        FROM sys.indexes i
+        JOIN sys.index_columns ic ON ic.object_id = i.object_id AND ic.index_id = i.index_id
+        JOIN sys.columns c ON c.object_id = ic.object_id AND c.column_id = ic.column_id
+        WHERE i.object_id = OBJECT_ID(?) AND i.type IN (1, 2)
+        GROUP BY i.name, i.is_unique, i.type_desc, i.filter_definition, i.index_id
+        ORDER BY i.index_id
+        """, (rs, n) -> {
+          StringBuilder ddl = new StringBuilder("CREATE ");
+          if (rs.getBoolean("is_unique")) ddl.append("UNIQUE ");
+          ddl.append(rs.getString("type_desc")).append(" INDEX ").append('[').append(rs.getString("name")).append(']')
+             .append(" ON ").append(destino).append(" (").append(rs.getString("claves")).append(')');
+          String incluidas = rs.getString("incluidas");
+          if (incluidas != null && !incluidas.isBlank()) ddl.append(" INCLUDE (").append(incluidas).append(')');
+          String filtro = rs.getString("filter_definition");
+          if (filtro != null && !filtro.isBlank()) ddl.append(" WHERE ").append(filtro);
+          return ddl.toString();
+        }, origen);
+  }
+
+  /**
+   * Recalcula solo las particiones (modalidad_pago, id, nit) tocadas desde la última ejecución.
+   * Usa columnas rowversion en pagos y radicacion3, así que cubre las cargas de CargaPagosService,
+   * PagosApiImportService y CorreccionPagosService (y cualquier carga externa de radicacion3).
+   * Las columnas se crean con db/migracion/001_rowversion_radicacion.sql; sin ellas este modo falla.
+   * Si nunca se ha hecho una actualización completa, hace una.
+   */
+  @Transactional
+  public Map<String, Object> actualizarIncremental() {
+    return actualizarIncremental(Progreso.NINGUNO);
+  }
+
+  @Transactional
+  public Map<String, Object> actualizarIncremental(Progreso progreso) {
+    return reconstruir(() -> incremental(progreso));
+  }
+
+  private Map<String, Object> incremental(Progreso progreso) {
+    progreso.fase("preparando");
+    ensureControl();
+    Map<String, Object> control = jdbc.queryForMap(
+        "SELECT pagos_hw, radicacion_hw FROM dbo.radicacion_filtrada_control WHERE id = 1");
+    byte[] hwPagos = (byte[]) control.get("pagos_hw");
+    byte[] hwRadicacion = (byte[]) control.get("radicacion_hw");
+    if (hwPagos == null || hwRadicacion == null) {
+      return actualizarCompleto(progreso);
+    }
+
+    String rvPagos = columnaRowversion("pagos");
+    String rvRadicacion = columnaRowversion("radicacion3");
+    byte[] marca = marcaActual();
+    Map<String, Long> tiempos = new LinkedHashMap<>();
+    long t0 = System.nanoTime();
+
+    progreso.fase("deteccion");
+    long t = System.nanoTime();
+    jdbc.execute(AFECTADOS_DDL);
+    jdbc.update(AFECTADOS_SQL.formatted(rvRadicacion, rvPagos), hwRadicacion, hwPagos, hwPagos);
+    jdbc.execute("CREATE CLUSTERED INDEX IX_rf_afectados ON #rf_afectados (modalidad_pago, id, nit)");
+    Integer afectados = jdbc.queryForObject("SELECT COUNT(*) FROM #rf_afectados", Integer.class);
+    tiempos.put("deteccion_ms", ms(t));
+
+    int deleted = 0;
+    int inserted = 0;
+    if (afectados != null && afectados > 0) {
+      progreso.fase("delete");
+      t = System.nanoTime();
+      deleted = jdbc.update("""
+          DELETE rf
+          FROM dbo.radicacion_filtrada rf
+          JOIN #rf_afectados a
+            ON a.modalidad_pago = rf.modalidad_pago
+           AND a.id = CAST(rf.id AS VARCHAR(50))
+           AND a.nit = CAST(rf.nit AS VARCHAR(50))
+          """);
+      tiempos.put("delete_ms", ms(t));
+
+      progreso.fase("insert");
+      t = System.nanoTime();
+      inserted = jdbc.update(insertFiltrada("dbo.radicacion_filtrada", """
+          AND EXISTS (
+            SELECT 1 FROM #rf_afectados a
+            WHERE a.modalidad_pago = r.modalidad_pago
+              AND a.id = CAST(r.id AS VARCHAR(50))
+              AND a.nit = CAST(r.nit AS VARCHAR(50))
+          )"""));
+      tiempos.put("insert_ms", ms(t));
+    }
+    jdbc.execute("DROP TABLE #rf_afectados");
+
+    // rango_dias depende de GETDATE(): las filas no tocadas también cambian de rango con los días
+    progreso.fase("rangos");
+    t = System.nanoTime();
+    int rangos = jdbc.update("""
+        UPDATE rf SET rango_dias = x.rango
+        FROM dbo.radicacion_filtrada rf
+        CROSS APPLY (SELECT DATEDIFF(DAY, rf.fecha_radicacion, GETDATE()) AS dias) d
+        CROSS APPLY (SELECT %s AS rango) x
+        WHERE ISNULL(rf.rango_dias, '') <> x.rango
+        """.formatted(RANGO_DIAS_SQL.formatted("d.dias")));
+    tiempos.put("rangos_ms", ms(t));
+
+    guardarMarcas(marca, marca, "incremental");
+    tiempos.put("total_ms", ms(t0));
+    Map<String, Object> out = new HashMap<>();
+    out.put("ok", true);
+    out.put("modo", "incremental");
+    out.put("particiones", afectados == null ? 0 : afectados);
+    out.put("deleted", deleted);
+    out.put("inserted", inserted);
+    out.put("rangosActualizados", rangos);
+    out.put("tiempos", tiempos);
+    return out;
+  }
+
+  // Marca la actualización como en curso. Dentro de una transacción la generación sube recién al
+  // confirmarse (afterCompletion); sin transacción (sombra), al terminar sin error.
+  private Map<String, Object> reconstruir(Supplier<Map<String, Object>> trabajo) {
+    enCurso.incrementAndGet();
+    boolean diferido = TransactionSynchronizationManager.isSynchronizationActive();
+    if (diferido) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          terminarReconstruccion(status == STATUS_COMMITTED);
+        }
+      });
+    }
+    boolean ok = false;
+    try {
+      Map<String, Object> out = trabajo.get();
+      ok = true;
+      return out;
+    } finally {
+      if (!diferido) terminarReconstruccion(ok);
+    }
+  }
+
+  private void terminarReconstruccion(boolean confirmada) {
+    if (confirmada) generacion.incrementAndGet();
+    enCurso.decrementAndGet();
+  }
+
+  private void ensureControl() {
+    jdbc.execute("""
+      IF OBJECT_ID('dbo.radicacion_filtrada_control','U') IS NULL
+      BEGIN
+        CREATE TABLE dbo.radicacion_filtrada_control (
+          id INT NOT NULL PRIMARY KEY,
+          pagos_hw BINARY(8) NULL,
+          radicacion_hw BINARY(8) NULL,
+          ultimo_modo VARCHAR(20) NULL,
+          actualizado_en DATETIME NULL
+        );
+        INSERT INTO dbo.radicacion_filtrada_control (id) VALUES (1);
+      END
+    """);
+    // Solo revisa el catálogo: la columna la crea db/migracion/004_clave_cruce.sql, no el rebuild
+    claveCruce.asegurar();
+    if (!claveCruce.listo()) {
+      throw new IllegalStateException("dbo.pagos o dbo.radicacion3 no tiene la columna " + ClaveCruceSchema.COLUMNA
+          + " indexada: ejecutar db/migracion/004_clave_cruce.sql");
+    }
+  }
+
+  // Columna rowversion de la tabla. No se crea aquí: agregarla reescribe toda la tabla, así que va en la
+  // migración db/migracion/001_rowversion_radicacion.sql (una sola vez, fuera del rebuild)
+  private String columnaRowversion(String tabla) {
+    List<String> cols = jdbc.queryForList(
+        "SELECT c.name FROM sys.columns c WHERE c.object_id = OBJECT_ID(?) AND c.system_type_id = 189",
+        String.class, "dbo." + tabla);
+    if (cols.isEmpty()) {
+      throw new IllegalStateException("dbo." + tabla + " no tiene columna rowversion: el modo incremental requiere "
+          + "ejecutar db/migracion/001_rowversion_radicacion.sql");
+    }
+    return cols.get(0);
+  }
+
+  // Todo lo que tenga rowversion menor a MIN_ACTIVE_ROWVERSION() ya está confirmado
+  private byte[] marcaActual() {
+    return jdbc.queryForObject("SELECT CAST(CAST(MIN_ACTIVE_ROWVERSION() AS BIGINT) - 1 AS BINARY(8))", byte[].class);
+  }
+
+  private static long ms(long desdeNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - desdeNanos);
+  }
+
+  private void guardarMarcas(byte[] pagos, byte[] radicacion, String modo) {
+    jdbc.update("""
+        UPDATE dbo.radicacion_filtrada_control
+        SET pagos_hw = ?, radicacion_hw = ?, ultimo_modo = ?, actualizado_en = GETDATE()
+        WHERE id = 1
+        """, pagos, radicacion, modo);
+  }
+}
@@ -0,0 +1,14 @@
+package com.pagosyradicacion.backend.radicacion;
+
+import java.util.List;
+
+/**
+ * Página por cursor (keyset): nextToken es opaco y se envía tal cual para pedir la siguiente página.
+ * totalElements solo viene si se pidió (total=true) y puede salir de caché.
+ */
+public record RadicacionKeysetResponse(
+    List<RadicacionRegistro> content,
+    String nextToken,
+    boolean hasMore,
+    int pageSize,
+    Long totalElements) {}
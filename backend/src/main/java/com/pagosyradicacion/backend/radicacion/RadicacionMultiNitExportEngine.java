@@ -0,0 +1,159 @@
+package com.pagosyradicacion.backend.radicacion;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Exporta varios NIT en paralelo sobre radicacionExportExecutor, compartido por todas las exportaciones. Cada NIT se escribe en su propio archivo
+ * temporal (la memoria no crece con el volumen) y el resultado se devuelve en el mismo orden de
+ * entrada para que el TXT final conserve el orden del LinkedHashSet original.
+ *
+ * Los temporales los borra la respuesta al terminar de enviarlos. Si la respuesta nunca llega a correr
+ * (cliente que se va antes del dispatch, error del contenedor), los recoge el barrido periódico: todo lo
+ * del directorio propio (java.io.tmpdir/radicacion_export) más viejo que radicacion.export.temp-ttl-minutes.
+ */
+@Component
+public class RadicacionMultiNitExportEngine {
+
+  private static final Logger log = LoggerFactory.getLogger(RadicacionMultiNitExportEngine.class);
+
+  private final Executor executor;
+  private final Path directorio = Path.of(System.getProperty("java.io.tmpdir"), "radicacion_export");
+  private final Duration ttlTemporales;
+
+  public RadicacionMultiNitExportEngine(
+      @Qualifier("radicacionExportExecutor") Executor executor,
+      @Value("${radicacion.export.temp-ttl-minutes:120}") long ttlMinutes) {
+    this.executor = executor;
+    this.ttlTemporales = Duration.ofMinutes(ttlMinutes > 0 ? ttlMinutes : 120);
+  }
+
+  // Lo que haya en el directorio al arrancar quedó de un proceso anterior
+  @EventListener(ApplicationReadyEvent.class)
+  public void limpiarAlArrancar() {
+    barrer(Instant.now());
+  }
+
+  @Scheduled(fixedDelay = 10, initialDelay = 10, timeUnit = TimeUnit.MINUTES)
+  public void barrerHuerfanos() {
+    barrer(Instant.now().minus(ttlTemporales));
+  }
+
+  private void barrer(Instant limite) {
+    if (!Files.isDirectory(directorio)) return;
+    int n = 0;
+    try (Stream<Path> archivos = Files.list(directorio)) {
+      for (Path archivo : (Iterable<Path>) archivos::iterator) {
+        try {
+          if (Files.getLastModifiedTime(archivo).toInstant().isBefore(limite) && Files.deleteIfExists(archivo)) n++;
+        } catch (IOException ignore) {
+          // Lo borró la respuesta mientras se recorría
+        }
+      }
+    } catch (IOException ex) {
+      log.warn("No se pudo barrer {}: {}", directorio, ex.getMessage());
+    }
+    if (n > 0) log.info("{} temporal(es) huérfano(s) de exportación borrados en {}", n, directorio);
+  }
+
+  @FunctionalInterface
+  public interface NitExporter {
+    /** Escribe las filas del NIT y devuelve cuántas escribió. */
+    long exportar(String nit, BufferedWriter writer) throws IOException;
+  }
+
+  public record ParteNit(String nit, Path archivo, long filas, long millis) {
+    public void eliminar() {
+      try { Files.deleteIfExists(archivo); } catch (IOException ignore) {}
+    }
+
+    /** Marca el archivo como en uso: el barrido cuenta el TTL desde aquí (la respuesta empezó a enviarlo). */
+    public void renovar() {
+      try { Files.setLastModifiedTime(archivo, FileTime.from(Instant.now())); } catch (IOException ignore) {}
+    }
+  }
+
+  public List<ParteNit> ejecutar(Collection<String> nits, NitExporter exporter) {
+    List<String> orden = new ArrayList<>(nits);
+    if (orden.isEmpty()) return List.of();
+
+    AtomicBoolean abortado = new AtomicBoolean(false);
+    List<CompletableFuture<ParteNit>> futures = new ArrayList<>(orden.size());
+    try {
+      for (String nit : orden) {
+        futures.add(CompletableFuture.supplyAsync(() -> exportarParte(nit, exporter, abortado), executor));
+      }
+      List<ParteNit> partes = new ArrayList<>(orden.size());
+      for (CompletableFuture<ParteNit> f : futures) {
+        partes.add(f.join());
+      }
+      return partes;
+    } catch (CompletionException ex) {
+      // Si un NIT falla, los pendientes no arrancan; se espera a los que ya corrían (el pool es compartido,
+      // no se puede apagar) y se limpian los temporales generados
+      abortado.set(true);
+      for (CompletableFuture<ParteNit> f : futures) {
+        try {
+          f.join().eliminar();
+        } catch (CompletionException ignore) {
+          // ese NIT falló o no arrancó: no dejó archivo
+        }
+      }
+      Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+      if (cause instanceof RuntimeException re) throw re;
+      throw ex;
+    }
+  }
+
+  private ParteNit exportarParte(String nit, NitExporter exporter, AtomicBoolean abortado) {
+    if (abortado.get()) {
+      throw new IllegalStateException("Exportacion cancelada");
+    }
+    long t0 = System.nanoTime();
+    Path archivo = null;
+    try {
+      Files.createDirectories(directorio);
+      archivo = Files.createTempFile(directorio, "radicacion_nit_", ".txt");
+      long filas;
+      try (BufferedWriter writer = Files.newBufferedWriter(archivo, StandardCharsets.UTF_8)) {
+        filas = exporter.exportar(nit, writer);
+      }
+      return new ParteNit(nit, archivo, filas, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+    } catch (IOException ex) {
+      if (archivo != null) {
+        try { Files.deleteIfExists(archivo); } catch (IOException ignore) {}
+      }
+      throw new UncheckedIOException("Error exportando NIT " + nit, ex);
+    } catch (RuntimeException ex) {
+      if (archivo != null) {
+        try { Files.deleteIfExists(archivo); } catch (IOException ignore) {}
+      }
+      throw ex;
+    }
+  }
+}
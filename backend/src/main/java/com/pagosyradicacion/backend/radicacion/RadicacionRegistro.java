@@ -13,7 +13,13 @@ import jakarta.persistence.Table;
 @Table(name = "radicacion_filtrada")
 public class RadicacionRegistro {
 
+  // Clave única (IDENTITY, db/migracion/002_fila_radicacion_filtrada.sql): id se repite una vez por pago
+  // y entre modalidades, y como @Id Hibernate devolvía la misma instancia para filas distintas
   @Id
+  @Column(name = "fila", insertable = false, updatable = false)
+  private Long fila;
+
+  @Column(name = "id")
   private Long id;
 
   @Column(name = "modalidad_pago")
@@ -130,7 +136,8 @@ public class RadicacionRegistro {
   @Column(name = "id_fomag")
   private String idFomag;
 
-  @Formula("CAST(NULL AS varchar(255))")
+  // Solo lectura: la llena el rebuild de radicacion_filtrada (ver NitNormalizadoSchema)
+  @Column(name = "nit_norm", insertable = false, updatable = false)
   private String nitNorm;
 
   @Formula("CAST(NULL AS varchar(255))")
@@ -138,6 +145,10 @@ public class RadicacionRegistro {
 
   protected RadicacionRegistro() {}
 
+  public Long getFila() {
+    return fila;
+  }
+
   public Long getId() {
     return id;
   }
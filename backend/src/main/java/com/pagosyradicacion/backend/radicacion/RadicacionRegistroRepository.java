@@ -2,13 +2,30 @@ package com.pagosyradicacion.backend.radicacion;
 
 import java.util.List;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 public interface RadicacionRegistroRepository extends PagingAndSortingRepository<RadicacionRegistro, Long> {
 
-  Page<RadicacionRegistro> findByNitIgnoreCase(String nit, Pageable pageable);
+  // nit_norm: NIT normalizado (NitNormalizadoSchema.normalizar) con índice; evita UPPER(nit) = UPPER(?)
+  Page<RadicacionRegistro> findByNitNorm(String nitNorm, Pageable pageable);
 
   List<RadicacionRegistro> findAllByNitIgnoreCaseOrderByIdAsc(String nit);
+
+  // Keyset sobre (id, fila) con TOP n; sin OFFSET ni COUNT(*) por página. id solo no sirve: se repite por
+  // pago y modalidad, y "id > ?" saltaba las filas restantes del mismo id al cortar la página
+  @Query("""
+      SELECT r FROM RadicacionRegistro r
+      WHERE r.nitNorm = :nitNorm
+        AND (r.id > :id OR (r.id = :id AND r.fila > :fila))
+      ORDER BY r.id, r.fila
+      """)
+  List<RadicacionRegistro> findByNitNormDespuesDe(
+      @Param("nitNorm") String nitNorm, @Param("id") long id, @Param("fila") long fila, Limit limit);
+
+  long countByNitNorm(String nitNorm);
 }
@@ -1,35 +1,52 @@
 package com.pagosyradicacion.backend.radicacion;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.pagosyradicacion.backend.radicacion.RadicacionMultiNitExportEngine.ParteNit;
 
 @Service
 public class RadicacionService {
 
-  private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-  private static final DateTimeFormatter DMY_DATE = DateTimeFormatter.ofPattern("d/M/uuuu");
-  private static final DateTimeFormatter DMY_DATE_TIME = DateTimeFormatter.ofPattern("d/M/uuuu HH:mm[:ss]");
   private static final int DEFAULT_PAGE_SIZE = 100;
   private static final int MAX_PAGE_SIZE = 500;
+  private static final long COUNT_CACHE_TTL_MS = 5 * 60 * 1000L;
+  // Buffer fijo para escribir el TXT directo a la respuesta; la memoria no crece con el número de filas
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+  private static final int EXPORT_FETCH_SIZE = 1000;
+  private static final String LINE_SEPARATOR = System.lineSeparator();
   private static final Set<String> DATE_COLUMNS = Set.of("fecha_radicacion", "fecha_factura", "feccha_pago", "fecha_pago");
   private static final String[] EXPORT_COLUMNS = {
       "id",
@@ -113,13 +130,16 @@ public class RadicacionService {
         voucher,
         feccha_pago,
         id_fomag,
-        CAST(NULL AS varchar(255)) AS nit_norm,
+        nit_norm,
         CAST(NULL AS varchar(255)) AS voucher_norm
       FROM radicacion_filtrada
-      WHERE UPPER(nit) = UPPER(?)
+      WHERE nit_norm = CAST(? AS VARCHAR(30))
       ORDER BY id
       """;
 
+  // nit_norm es VARCHAR y el driver manda los String como NVARCHAR: sin el CAST se convierte la columna y no hay seek
+  private static final String EXISTS_QUERY = "SELECT TOP 1 1 FROM radicacion_filtrada WHERE nit_norm = CAST(? AS VARCHAR(30))";
+
   private static final String[] RADICACION3_EXPORT_COLUMNS = {
       "id",
       "modalidad_pago",
@@ -216,16 +236,20 @@ public class RadicacionService {
         valor_final_ratificado,
         modalidad_norm,
         id_norm,
-        CAST(NULL AS varchar(255)) AS nit_norm
+        nit_norm
       FROM radicacion3
       """;
 
   private final RadicacionRegistroRepository repository;
   private final JdbcTemplate jdbcTemplate;
+  private final RadicacionMultiNitExportEngine multiNitEngine;
+  private final Map<String, ConteoCacheado> conteos = new ConcurrentHashMap<>();
 
-  public RadicacionService(RadicacionRegistroRepository repository, JdbcTemplate jdbcTemplate) {
+  public RadicacionService(RadicacionRegistroRepository repository, JdbcTemplate jdbcTemplate,
+      RadicacionMultiNitExportEngine multiNitEngine) {
     this.repository = repository;
     this.jdbcTemplate = jdbcTemplate;
+    this.multiNitEngine = multiNitEngine;
   }
 
   public Page<RadicacionRegistro> buscarPorNit(String nit, Integer page, Integer size) {
@@ -237,28 +261,90 @@ public class RadicacionService {
     int pageSize = size != null && size > 0 ? Math.min(size, MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE;
     Pageable pageable = PageRequest.of(pageNumber, pageSize);
 
-    return repository.findByNitIgnoreCase(nit.trim(), pageable);
+    return repository.findByNitNorm(NitNormalizadoSchema.normalizar(nit), pageable);
   }
 
-  public String exportarPorNitTxt(String nit) {
+  /**
+   * Página por cursor: cada página cuesta lo mismo (seek sobre (id, fila)) sin importar qué tan profunda sea.
+   * El total es opcional y se cachea por NIT durante COUNT_CACHE_TTL_MS.
+   */
+  public RadicacionKeysetResponse buscarPorNitKeyset(String nit, String token, Integer size, boolean incluirTotal) {
     if (nit == null || nit.isBlank()) {
       throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "El NIT es obligatorio");
     }
+    String nitLimpio = NitNormalizadoSchema.normalizar(nit);
+    int pageSize = size != null && size > 0 ? Math.min(size, MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE;
+    Cursor desde = decodificarCursor(token, nitLimpio);
+
+    // Se pide una fila de más para saber si hay siguiente página sin contar
+    List<RadicacionRegistro> filas = repository.findByNitNormDespuesDe(
+        nitLimpio, desde.id(), desde.fila(), Limit.of(pageSize + 1));
+    boolean hasMore = filas.size() > pageSize;
+    List<RadicacionRegistro> content = hasMore ? filas.subList(0, pageSize) : filas;
+    String nextToken = hasMore ? codificarCursor(nitLimpio, content.get(content.size() - 1)) : null;
+    Long total = incluirTotal ? contarPorNit(nitLimpio) : null;
+    return new RadicacionKeysetResponse(List.copyOf(content), nextToken, hasMore, pageSize, total);
+  }
 
-    List<String> registros = obtenerRegistrosParaNit(nit.trim());
+  private long contarPorNit(String nit) {
+    String key = nit;
+    long now = System.currentTimeMillis();
+    ConteoCacheado c = conteos.get(key);
+    if (c != null && now - c.ts() < COUNT_CACHE_TTL_MS) {
+      return c.total();
+    }
+    long total = repository.countByNitNorm(nit);
+    conteos.put(key, new ConteoCacheado(total, now));
+    return total;
+  }
 
-    if (registros.isEmpty()) {
-      throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No se encontraron registros para el NIT indicado");
+  private record ConteoCacheado(long total, long ts) {}
+
+  // Última fila entregada: (id, fila) es único y es el orden de la consulta
+  private record Cursor(long id, long fila) {}
+
+  // Cursor opaco: base64url("nitNorm|id|fila"); se valida que corresponda al mismo NIT
+  private static String codificarCursor(String nit, RadicacionRegistro ultima) {
+    String raw = nit + "|" + ultima.getId() + "|" + ultima.getFila();
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static Cursor decodificarCursor(String token, String nit) {
+    if (token == null || token.isBlank()) {
+      return new Cursor(Long.MIN_VALUE, Long.MIN_VALUE);
+    }
+    try {
+      String raw = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+      int sepFila = raw.lastIndexOf('|');
+      int sepId = sepFila > 0 ? raw.lastIndexOf('|', sepFila - 1) : -1;
+      if (sepId < 0 || !raw.substring(0, sepId).equals(nit)) {
+        throw new IllegalArgumentException("cursor de otro NIT");
+      }
+      return new Cursor(Long.parseLong(raw.substring(sepId + 1, sepFila)), Long.parseLong(raw.substring(sepFila + 1)));
+    } catch (IllegalArgumentException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Token de paginación inválido");
     }
+  }
 
-    List<String> lineas = new ArrayList<>();
-    lineas.add(String.join("|", EXPORT_COLUMNS));
-    lineas.addAll(registros);
+  public StreamingResponseBody exportarPorNitTxt(String nit) {
+    if (nit == null || nit.isBlank()) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "El NIT es obligatorio");
+    }
+
+    String nitLimpio = nit.trim();
+    if (!existenRegistrosParaNit(nitLimpio)) {
+      throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No se encontraron registros para el NIT indicado");
+    }
 
-    return String.join(System.lineSeparator(), lineas) + System.lineSeparator();
+    return out -> {
+      BufferedWriter writer = abrirWriter(out);
+      escribirLinea(writer, String.join("|", EXPORT_COLUMNS));
+      escribirRegistrosParaNit(nitLimpio, writer);
+      writer.flush();
+    };
   }
 
-  public String exportarPorMultiplesNitTxt(List<String> nits) {
+  public ExportacionMultiple exportarPorMultiplesNitTxt(List<String> nits) {
     if (nits == null || nits.isEmpty()) {
       throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes proporcionar al menos un NIT");
     }
@@ -272,55 +358,76 @@ public class RadicacionService {
       throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Los NIT suministrados son invalidos");
     }
 
-    List<String> resultado = new ArrayList<>();
-    resultado.add(String.join("|", EXPORT_COLUMNS));
+    long t0 = System.nanoTime();
+    // Cada NIT se consulta en paralelo (pool acotado); las partes vuelven en el orden del LinkedHashSet
+    List<ParteNit> partes = multiNitEngine.ejecutar(unicos, this::escribirRegistrosParaNit);
+    long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
 
-    int conRegistros = 0;
-    for (String nit : unicos) {
-      List<String> registros = obtenerRegistrosParaNit(nit);
-      if (registros.isEmpty()) {
-        // Saltar NIT sin registros (no cancelar toda la descarga)
-        continue;
-      }
-
-      resultado.add("# NIT " + nit);
-      resultado.addAll(registros);
-      conRegistros++;
+    // Saltar NIT sin registros (no cancelar toda la descarga)
+    List<ParteNit> conRegistros = new ArrayList<>();
+    for (ParteNit parte : partes) {
+      if (parte.filas() > 0) conRegistros.add(parte); else parte.eliminar();
     }
 
     // Si ninguno de los NIT tiene registros, mantener comportamiento de error
-    if (conRegistros == 0) {
+    if (conRegistros.isEmpty()) {
       throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No se encontraron registros para los NIT suministrados");
     }
 
-    return String.join(System.lineSeparator(), resultado) + System.lineSeparator();
+    // Si esta respuesta nunca corre, los temporales los borra el barrido del engine
+    StreamingResponseBody body = out -> {
+      try {
+        conRegistros.forEach(ParteNit::renovar);
+        BufferedWriter writer = abrirWriter(out);
+        escribirLinea(writer, String.join("|", EXPORT_COLUMNS));
+        for (ParteNit parte : conRegistros) {
+          escribirLinea(writer, "# NIT " + parte.nit());
+          writer.flush();
+          Files.copy(parte.archivo(), out);
+        }
+        writer.flush();
+      } finally {
+        conRegistros.forEach(ParteNit::eliminar);
+      }
+    };
+    return new ExportacionMultiple(body, partes, totalMillis);
   }
 
-  public String exportarPorFechaTxt(RadicacionFechaExportRequest request) {
+  public record ExportacionMultiple(StreamingResponseBody body, List<ParteNit> partes, long totalMillis) {}
+
+  public StreamingResponseBody exportarPorFechaTxt(RadicacionFechaExportRequest request) {
     RadicacionFechaExportRequest filtros = request != null
         ? request
         : new RadicacionFechaExportRequest(null, null, null, null);
 
-    List<String> registros = obtenerRegistrosPorFecha(filtros);
+    ConsultaFecha consulta = construirConsultaPorFecha(filtros);
 
-    if (registros.isEmpty()) {
+    List<Integer> existe = jdbcTemplate.query("SELECT TOP 1 1 FROM (" + consulta.sql() + ") q",
+        consulta.params(), (rs, rowNum) -> 1);
+    if (existe.isEmpty()) {
       throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No se encontraron registros con los filtros suministrados");
     }
 
-    List<String> resultado = new ArrayList<>();
-    resultado.add(String.join("|", RADICACION3_EXPORT_COLUMNS));
-    resultado.addAll(registros);
+    return out -> {
+      BufferedWriter writer = abrirWriter(out);
+      escribirLinea(writer, String.join("|", RADICACION3_EXPORT_COLUMNS));
+      streamQuery(consulta.sql() + " ORDER BY fecha_radicacion, id", consulta.params(),
+          escritorTxt(writer, RADICACION3_EXPORT_COLUMNS));
+      writer.flush();
+    };
+  }
 
-    return String.join(System.lineSeparator(), resultado) + System.lineSeparator();
+  private boolean existenRegistrosParaNit(String nit) {
+    List<Integer> existe = jdbcTemplate.query(EXISTS_QUERY,
+        ps -> ps.setString(1, NitNormalizadoSchema.normalizar(nit)), (rs, rowNum) -> 1);
+    return !existe.isEmpty();
   }
 
-  private List<String> obtenerRegistrosParaNit(String nit) {
-    return jdbcTemplate.query(EXPORT_QUERY,
-        ps -> ps.setString(1, nit),
-        (rs, rowNum) -> mapearRegistroATxt(rs));
+  private long escribirRegistrosParaNit(String nit, BufferedWriter writer) {
+    return streamQuery(EXPORT_QUERY, new Object[] { NitNormalizadoSchema.normalizar(nit) }, escritorTxt(writer, EXPORT_COLUMNS));
   }
 
-  private List<String> obtenerRegistrosPorFecha(RadicacionFechaExportRequest filtros) {
+  private ConsultaFecha construirConsultaPorFecha(RadicacionFechaExportRequest filtros) {
     LocalDate fechaInicio = parseDate(filtros.fechaInicio(), "fechaInicio");
     LocalDate fechaFin = parseDate(filtros.fechaFin(), "fechaFin");
 
@@ -344,33 +451,86 @@ public class RadicacionService {
 
     List<String> estados = sanitizeValues(filtros.estadosAplicacion());
     if (!estados.isEmpty()) {
-      sql.append(" AND UPPER(estado_aplicacion) IN (");
+      // Sin UPPER() sobre la columna: la intercalación de la BD ya es case-insensitive y así se puede usar índice
+      sql.append(" AND estado_aplicacion IN (");
       for (int i = 0; i < estados.size(); i++) {
         if (i > 0) {
           sql.append(", ");
         }
         sql.append("?");
-        params.add(estados.get(i).toUpperCase());
+        params.add(estados.get(i));
       }
       sql.append(")");
     }
 
     List<String> nits = sanitizeValues(filtros.nits());
     if (!nits.isEmpty()) {
-      sql.append(" AND UPPER(nit) IN (");
+      sql.append(" AND nit_norm IN (");
       for (int i = 0; i < nits.size(); i++) {
         if (i > 0) {
           sql.append(", ");
         }
-        sql.append("?");
-        params.add(nits.get(i).toUpperCase());
+        sql.append("CAST(? AS VARCHAR(30))");
+        params.add(NitNormalizadoSchema.normalizar(nits.get(i)));
       }
       sql.append(")");
     }
 
-    sql.append(" ORDER BY fecha_radicacion, id");
+    return new ConsultaFecha(sql.toString(), params.toArray());
+  }
+
+  private record ConsultaFecha(String sql, Object[] params) {}
+
+  /**
+   * Ejecuta la consulta en modo forward-only y entrega cada fila al consumidor a medida que llega
+   * del driver, sin acumular el resultado en memoria. Devuelve el número de filas escritas.
+   */
+  private long streamQuery(String sql, Object[] params, RowWriter rowWriter) {
+    long[] filas = { 0 };
+    jdbcTemplate.query(con -> {
+      PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      ps.setFetchSize(EXPORT_FETCH_SIZE);
+      for (int i = 0; i < params.length; i++) {
+        ps.setObject(i + 1, params[i]);
+      }
+      return ps;
+    }, (RowCallbackHandler) rs -> {
+      try {
+        rowWriter.write(rs);
+        filas[0]++;
+      } catch (IOException ioe) {
+        throw new SQLException("TXT write error", ioe);
+      }
+    });
+    return filas[0];
+  }
+
+  @FunctionalInterface
+  private interface RowWriter {
+    void write(ResultSet rs) throws SQLException, IOException;
+  }
 
-    return jdbcTemplate.query(sql.toString(), params.toArray(), (rs, rowNum) -> mapearRegistroRadicacion3(rs));
+  // El plan de columnas se compila con el metadata de la primera fila y se reutiliza para el resto
+  private static RowWriter escritorTxt(BufferedWriter writer, String[] columnas) {
+    StringBuilder linea = new StringBuilder(512);
+    RadicacionTxtRowPlan[] plan = { null };
+    return rs -> {
+      if (plan[0] == null) {
+        plan[0] = RadicacionTxtRowPlan.compilar(rs.getMetaData(), columnas, DATE_COLUMNS);
+      }
+      plan[0].escribir(rs, linea);
+      writer.append(linea);
+      writer.write(LINE_SEPARATOR);
+    };
+  }
+
+  private static BufferedWriter abrirWriter(OutputStream out) {
+    return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), STREAM_BUFFER_SIZE);
+  }
+
+  private static void escribirLinea(BufferedWriter writer, String linea) throws IOException {
+    writer.write(linea);
+    writer.write(LINE_SEPARATOR);
   }
 
   private List<String> sanitizeValues(List<String> values) {
@@ -400,57 +560,6 @@ public class RadicacionService {
     }
   }
 
-  private String mapearRegistroATxt(ResultSet rs) throws SQLException {
-    String[] values = new String[EXPORT_COLUMNS.length];
-    for (int i = 0; i < EXPORT_COLUMNS.length; i++) {
-      values[i] = extractColumn(rs, EXPORT_COLUMNS[i]);
-    }
-    return String.join("|", values);
-  }
-
-  private String mapearRegistroRadicacion3(ResultSet rs) throws SQLException {
-    String[] values = new String[RADICACION3_EXPORT_COLUMNS.length];
-    for (int i = 0; i < RADICACION3_EXPORT_COLUMNS.length; i++) {
-      values[i] = extractColumn(rs, RADICACION3_EXPORT_COLUMNS[i]);
-    }
-    return String.join("|", values);
-  }
-
-  private String extractColumn(ResultSet rs, String column) throws SQLException {
-    if (DATE_COLUMNS.contains(column)) {
-      Object o = rs.getObject(column);
-      return formatAnyDate(o);
-    }
-
-    String value = rs.getString(column);
-    if (value == null) {
-      return "";
-    }
-    return value.replace('|', '/');
-  }
-
-  private String formatAnyDate(Object o) {
-    try {
-      if (o == null) return "";
-      if (o instanceof Timestamp ts) return ts.toLocalDateTime().format(DATE_TIME_FORMATTER);
-      if (o instanceof java.sql.Date d) return d.toLocalDate().atStartOfDay().format(DATE_TIME_FORMATTER);
-      if (o instanceof java.time.LocalDateTime ldt) return ldt.format(DATE_TIME_FORMATTER);
-      if (o instanceof java.time.LocalDate ld) return ld.atStartOfDay().format(DATE_TIME_FORMATTER);
-      String s = String.valueOf(o).trim();
-      if (s.isEmpty()) return "";
-      // Try common formats: ISO date-time, ISO date, dd/MM/yyyy[ HH:mm[:ss]], yyyy/MM/dd
-      try { return LocalDateTime.parse(s, DATE_TIME_FORMATTER).format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
-      try { return LocalDate.parse(s).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
-      try { return LocalDateTime.parse(s, DMY_DATE_TIME).format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
-      try { return LocalDate.parse(s, DMY_DATE).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
-      try { return LocalDate.parse(s.replace('-', '/'), DMY_DATE).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
-      // If not parseable, return as-is to avoid exception, preserving data
-      return s;
-    } catch (Exception e) {
-      return ""; // be safe
-    }
-  }
-
   public java.util.List<String> obtenerEstadosAplicacion() {
     String sql = "SELECT DISTINCT estado_aplicacion FROM radicacion3 WHERE estado_aplicacion IS NOT NULL AND LTRIM(RTRIM(estado_aplicacion)) <> '' ORDER BY estado_aplicacion";
     return jdbcTemplate.query(sql, (rs, rowNum) -> rs.getString(1));
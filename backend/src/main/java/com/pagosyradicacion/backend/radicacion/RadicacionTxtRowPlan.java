@@ -0,0 +1,164 @@
+package com.pagosyradicacion.backend.radicacion;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plan de extracción para las filas del TXT de radicación. Se resuelve una sola vez por ResultSet
+ * (índice y tipo de cada columna desde el metadata) y luego cada fila se escribe por índice en un
+ * StringBuilder reutilizado, sin buscar columnas por nombre ni armar un String[] intermedio.
+ * Las fechas que llegan como texto se prueban solo contra los formatos cuya forma coincide, para no
+ * usar excepciones como control de flujo en cada celda.
+ */
+final class RadicacionTxtRowPlan {
+
+  static final char SEPARADOR = '|';
+
+  private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final DateTimeFormatter DMY_DATE = DateTimeFormatter.ofPattern("d/M/uuuu");
+  private static final DateTimeFormatter DMY_DATE_TIME = DateTimeFormatter.ofPattern("d/M/uuuu HH:mm[:ss]");
+
+  @FunctionalInterface
+  private interface Extractor {
+    void append(ResultSet rs, int index, StringBuilder out) throws SQLException;
+  }
+
+  private final int[] indices;
+  private final Extractor[] extractores;
+
+  private RadicacionTxtRowPlan(int[] indices, Extractor[] extractores) {
+    this.indices = indices;
+    this.extractores = extractores;
+  }
+
+  static RadicacionTxtRowPlan compilar(ResultSetMetaData md, String[] columnas, Set<String> columnasFecha) throws SQLException {
+    Map<String, Integer> porNombre = new HashMap<>();
+    Map<String, Integer> tipos = new HashMap<>();
+    for (int i = 1; i <= md.getColumnCount(); i++) {
+      String label = md.getColumnLabel(i).toLowerCase(Locale.ROOT);
+      porNombre.putIfAbsent(label, i);
+      tipos.putIfAbsent(label, md.getColumnType(i));
+    }
+
+    int[] indices = new int[columnas.length];
+    Extractor[] extractores = new Extractor[columnas.length];
+    for (int c = 0; c < columnas.length; c++) {
+      String nombre = columnas[c].toLowerCase(Locale.ROOT);
+      Integer idx = porNombre.get(nombre);
+      if (idx == null) {
+        throw new SQLException("Columna no encontrada en el resultado: " + columnas[c]);
+      }
+      indices[c] = idx;
+      extractores[c] = columnasFecha.contains(columnas[c]) ? extractorFecha(tipos.get(nombre)) : RadicacionTxtRowPlan::texto;
+    }
+    return new RadicacionTxtRowPlan(indices, extractores);
+  }
+
+  /** Escribe la fila actual en out (que se vacía antes), separada por '|', sin salto de línea. */
+  void escribir(ResultSet rs, StringBuilder out) throws SQLException {
+    out.setLength(0);
+    for (int c = 0; c < indices.length; c++) {
+      if (c > 0) out.append(SEPARADOR);
+      extractores[c].append(rs, indices[c], out);
+    }
+  }
+
+  private static Extractor extractorFecha(int tipoSql) {
+    return switch (tipoSql) {
+      case Types.TIMESTAMP -> (rs, i, out) -> {
+        Timestamp ts = rs.getTimestamp(i);
+        if (ts != null) fechaHora(ts.toLocalDateTime(), out);
+      };
+      case Types.DATE -> (rs, i, out) -> {
+        java.sql.Date d = rs.getDate(i);
+        if (d != null) fechaHora(d.toLocalDate().atStartOfDay(), out);
+      };
+      case Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR, Types.NCHAR, Types.NVARCHAR, Types.LONGNVARCHAR ->
+          (rs, i, out) -> out.append(fechaDesdeTexto(rs.getString(i)));
+      default -> (rs, i, out) -> out.append(formatAnyDate(rs.getObject(i)));
+    };
+  }
+
+  private static void texto(ResultSet rs, int index, StringBuilder out) throws SQLException {
+    String value = rs.getString(index);
+    if (value == null) return;
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char ch = value.charAt(i);
+      out.append(ch == SEPARADOR ? '/' : ch);
+    }
+  }
+
+  // yyyy-MM-dd HH:mm:ss sin pasar por DateTimeFormatter
+  private static void fechaHora(LocalDateTime t, StringBuilder out) {
+    int year = t.getYear();
+    if (year < 0 || year > 9999) {
+      out.append(t.format(DATE_TIME_FORMATTER));
+      return;
+    }
+    dos(out, year / 100); dos(out, year % 100);
+    out.append('-'); dos(out, t.getMonthValue());
+    out.append('-'); dos(out, t.getDayOfMonth());
+    out.append(' '); dos(out, t.getHour());
+    out.append(':'); dos(out, t.getMinute());
+    out.append(':'); dos(out, t.getSecond());
+  }
+
+  private static void dos(StringBuilder out, int v) {
+    out.append((char) ('0' + v / 10)).append((char) ('0' + v % 10));
+  }
+
+  static String formatAnyDate(Object o) {
+    try {
+      if (o == null) return "";
+      if (o instanceof Timestamp ts) return ts.toLocalDateTime().format(DATE_TIME_FORMATTER);
+      if (o instanceof java.sql.Date d) return d.toLocalDate().atStartOfDay().format(DATE_TIME_FORMATTER);
+      if (o instanceof LocalDateTime ldt) return ldt.format(DATE_TIME_FORMATTER);
+      if (o instanceof LocalDate ld) return ld.atStartOfDay().format(DATE_TIME_FORMATTER);
+      return fechaDesdeTexto(String.valueOf(o));
+    } catch (Exception e) {
+      return ""; // be safe
+    }
+  }
+
+  // Mismo orden de formatos que antes, pero cada intento solo se hace si la forma del texto puede coincidir
+  static String fechaDesdeTexto(String raw) {
+    if (raw == null) return "";
+    String s = raw.trim();
+    if (s.isEmpty()) return "";
+    int len = s.length();
+    boolean guionIso = len >= 10 && s.charAt(4) == '-' && s.charAt(7) == '-';
+    boolean tieneSlash = s.indexOf('/') >= 0;
+    boolean tieneEspacio = s.indexOf(' ') >= 0;
+    try {
+      if (guionIso && len == 19 && s.charAt(10) == ' ') {
+        try { return LocalDateTime.parse(s, DATE_TIME_FORMATTER).format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      }
+      if (guionIso && len == 10) {
+        try { return LocalDate.parse(s).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      }
+      if (tieneSlash && tieneEspacio) {
+        try { return LocalDateTime.parse(s, DMY_DATE_TIME).format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      }
+      if (tieneSlash && !tieneEspacio) {
+        try { return LocalDate.parse(s, DMY_DATE).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      }
+      if (s.indexOf('-') >= 0 && !tieneEspacio) {
+        try { return LocalDate.parse(s.replace('-', '/'), DMY_DATE).atStartOfDay().format(DATE_TIME_FORMATTER); } catch (Exception ignore) {}
+      }
+      // If not parseable, return as-is to avoid exception, preserving data
+      return s;
+    } catch (Exception e) {
+      return "";
+    }
+  }
+}
@@ -0,0 +1,21 @@
+-- Columna rowversion (row_ver) en pagos y radicacion3 para el modo incremental de radicacion_filtrada
+-- (RadicacionFiltradaUpdateService.actualizarIncremental). Agregarla reescribe cada fila de la tabla y
+-- toma un lock de esquema: correr una sola vez, en ventana de mantenimiento. Es idempotente.
+
+IF OBJECT_ID('dbo.pagos','U') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.columns WHERE object_id = OBJECT_ID('dbo.pagos') AND system_type_id = 189)
+  ALTER TABLE dbo.pagos ADD row_ver ROWVERSION;
+GO
+IF OBJECT_ID('dbo.pagos','U') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_pagos_row_ver' AND object_id = OBJECT_ID('dbo.pagos'))
+  CREATE INDEX IX_pagos_row_ver ON dbo.pagos (row_ver);
+GO
+
+IF OBJECT_ID('dbo.radicacion3','U') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.columns WHERE object_id = OBJECT_ID('dbo.radicacion3') AND system_type_id = 189)
+  ALTER TABLE dbo.radicacion3 ADD row_ver ROWVERSION;
+GO
+IF OBJECT_ID('dbo.radicacion3','U') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_radicacion3_row_ver' AND object_id = OBJECT_ID('dbo.radicacion3'))
+  CREATE INDEX IX_radicacion3_row_ver ON dbo.radicacion3 (row_ver);
+GO
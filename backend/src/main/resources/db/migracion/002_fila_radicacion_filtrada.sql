@@ -0,0 +1,21 @@
+-- Clave única fila en radicacion_filtrada. id se repite (una fila por pago y la misma factura puede estar
+-- en varias modalidades), así que no identifica la fila: RadicacionRegistro usa fila como @Id y el cursor de
+-- /api/v1/radicacion/cursor pagina sobre (id, fila). Los rebuilds no la tocan: el INSERT lista sus columnas
+-- y la tabla sombra (SELECT TOP 0 * INTO) hereda el IDENTITY. Reescribe la tabla: correr una sola vez,
+-- en ventana de mantenimiento. Es idempotente.
+
+IF OBJECT_ID('dbo.radicacion_filtrada','U') IS NOT NULL
+   AND COL_LENGTH('dbo.radicacion_filtrada','fila') IS NULL
+  ALTER TABLE dbo.radicacion_filtrada ADD fila BIGINT IDENTITY(1,1) NOT NULL;
+GO
+IF OBJECT_ID('dbo.radicacion_filtrada','U') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'UX_radicacion_filtrada_fila' AND object_id = OBJECT_ID('dbo.radicacion_filtrada'))
+  CREATE UNIQUE INDEX UX_radicacion_filtrada_fila ON dbo.radicacion_filtrada (fila);
+GO
+
+-- Seek del cursor: WHERE nit_norm = ? AND (id > ? OR (id = ? AND fila > ?)) ORDER BY id, fila
+IF OBJECT_ID('dbo.radicacion_filtrada','U') IS NOT NULL
+   AND COL_LENGTH('dbo.radicacion_filtrada','nit_norm') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_radicacion_filtrada_nit_norm_id_fila' AND object_id = OBJECT_ID('dbo.radicacion_filtrada'))
+  CREATE INDEX IX_radicacion_filtrada_nit_norm_id_fila ON dbo.radicacion_filtrada (nit_norm, id, fila);
+GO
@@ -0,0 +1,58 @@
+-- Columna nit_norm (NitNormalizadoSchema) e índice IX_<tabla>_nit_norm. En radicacion_filtrada es una columna
+-- normal que llena el rebuild (aquí solo se rellena una vez); en las tablas de origen es calculada PERSISTED.
+-- Agregarla rellena o calcula cada fila y toma un lock de esquema: correr una sola vez, en ventana de
+-- mantenimiento. La expresión debe coincidir con NitNormalizadoSchema.EXPRESION_SQL. Es idempotente.
+
+IF OBJECT_ID('dbo.radicacion_filtrada','U') IS NOT NULL AND COL_LENGTH('dbo.radicacion_filtrada','nit_norm') IS NULL
+  ALTER TABLE dbo.radicacion_filtrada ADD nit_norm VARCHAR(30) NULL;
+GO
+IF OBJECT_ID('dbo.radicacion_filtrada','U') IS NOT NULL
+   AND EXISTS (SELECT 1 FROM dbo.radicacion_filtrada WHERE nit_norm IS NULL AND nit IS NOT NULL)
+  UPDATE dbo.radicacion_filtrada
+  SET nit_norm = UPPER(LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))))
+  WHERE nit_norm IS NULL;
+GO
+
+IF OBJECT_ID('dbo.radicacion3','U') IS NOT NULL AND COL_LENGTH('dbo.radicacion3','nit_norm') IS NULL
+  ALTER TABLE dbo.radicacion3 ADD nit_norm AS (UPPER(LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))))) PERSISTED;
+GO
+IF OBJECT_ID('dbo.radicacion_filtrada_capita','U') IS NOT NULL AND COL_LENGTH('dbo.radicacion_filtrada_capita','nit_norm') IS NULL
+  ALTER TABLE dbo.radicacion_filtrada_capita ADD nit_norm AS (UPPER(LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))))) PERSISTED;
+GO
+IF OBJECT_ID('dbo.radicacion_capita','U') IS NOT NULL AND COL_LENGTH('dbo.radicacion_capita','nit_norm') IS NULL
+  ALTER TABLE dbo.radicacion_capita ADD nit_norm AS (UPPER(LTRIM(RTRIM(REPLACE(REPLACE(CAST([NIT] AS VARCHAR(30)),'.',''),'-',''))))) PERSISTED;
+GO
+IF OBJECT_ID('dbo.pagos','U') IS NOT NULL AND COL_LENGTH('dbo.pagos','nit_norm') IS NULL
+  ALTER TABLE dbo.pagos ADD nit_norm AS (UPPER(LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))))) PERSISTED;
+GO
+IF OBJECT_ID('dbo.pagos_capita','U') IS NOT NULL AND COL_LENGTH('dbo.pagos_capita','nit_norm') IS NULL
+  ALTER TABLE dbo.pagos_capita ADD nit_norm AS (UPPER(LTRIM(RTRIM(REPLACE(REPLACE(CAST(nit AS VARCHAR(30)),'.',''),'-',''))))) PERSISTED;
+GO
+IF OBJECT_ID('dbo.pagos_traza','U') IS NOT NULL AND COL_LENGTH('dbo.pagos_traza','nit_norm') IS NULL
+  ALTER TABLE dbo.pagos_traza ADD nit_norm AS (UPPER(LTRIM(RTRIM(REPLACE(REPLACE(CAST(identificacion AS VARCHAR(30)),'.',''),'-',''))))) PERSISTED;
+GO
+
+-- Índices IX_<tabla>_nit_norm
+DECLARE @tabla SYSNAME;
+DECLARE tablas CURSOR LOCAL FAST_FORWARD FOR
+  SELECT t FROM (VALUES ('radicacion_filtrada'), ('radicacion3'), ('radicacion_filtrada_capita'),
+                        ('radicacion_capita'), ('pagos'), ('pagos_capita'), ('pagos_traza')) v(t);
+OPEN tablas;
+FETCH NEXT FROM tablas INTO @tabla;
+WHILE @@FETCH_STATUS = 0
+BEGIN
+  IF OBJECT_ID('dbo.' + @tabla,'U') IS NOT NULL
+     AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_' + @tabla + '_nit_norm' AND object_id = OBJECT_ID('dbo.' + @tabla))
+    EXEC ('CREATE INDEX IX_' + @tabla + '_nit_norm ON dbo.' + @tabla + ' (nit_norm)');
+  FETCH NEXT FROM tablas INTO @tabla;
+END
+CLOSE tablas;
+DEALLOCATE tablas;
+GO
+
+-- Si 002_fila_radicacion_filtrada.sql corrió antes de existir nit_norm, su índice del cursor quedó pendiente
+IF OBJECT_ID('dbo.radicacion_filtrada','U') IS NOT NULL
+   AND COL_LENGTH('dbo.radicacion_filtrada','fila') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_radicacion_filtrada_nit_norm_id_fila' AND object_id = OBJECT_ID('dbo.radicacion_filtrada'))
+  CREATE INDEX IX_radicacion_filtrada_nit_norm_id_fila ON dbo.radicacion_filtrada (nit_norm, id, fila);
+GO
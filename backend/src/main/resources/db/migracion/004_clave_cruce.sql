@@ -0,0 +1,34 @@
+-- Clave de cruce MODALIDAD|ID|NIT (ClaveCruceSchema) e índice IX_<tabla>_clave_cruce en pagos y radicacion3,
+-- las dos tablas que cruza el rebuild de radicacion_filtrada. Es calculada PERSISTED: agregarla calcula cada
+-- fila y toma un lock de esquema, así que correr una sola vez, en ventana de mantenimiento. La expresión debe
+-- coincidir con ClaveCruceSchema. Es idempotente.
+
+IF OBJECT_ID('dbo.pagos','U') IS NOT NULL AND COL_LENGTH('dbo.pagos','clave_cruce') IS NULL
+  ALTER TABLE dbo.pagos ADD clave_cruce AS (
+    CAST(modalidad AS VARCHAR(100)) + '|' + CAST(id AS VARCHAR(50)) + '|' + CAST(nit AS VARCHAR(50))
+  ) PERSISTED;
+GO
+IF OBJECT_ID('dbo.pagos','U') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_pagos_clave_cruce' AND object_id = OBJECT_ID('dbo.pagos'))
+  CREATE INDEX IX_pagos_clave_cruce ON dbo.pagos (clave_cruce);
+GO
+
+IF OBJECT_ID('dbo.radicacion3','U') IS NOT NULL AND COL_LENGTH('dbo.radicacion3','clave_cruce') IS NULL
+  ALTER TABLE dbo.radicacion3 ADD clave_cruce AS (
+    CAST(modalidad_pago AS VARCHAR(100)) + '|' + CAST(id AS VARCHAR(50)) + '|' + CAST(nit AS VARCHAR(50))
+  ) PERSISTED;
+GO
+IF OBJECT_ID('dbo.radicacion3','U') IS NOT NULL
+   AND NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_radicacion3_clave_cruce' AND object_id = OBJECT_ID('dbo.radicacion3'))
+  CREATE INDEX IX_radicacion3_clave_cruce ON dbo.radicacion3 (clave_cruce);
+GO
+
+-- Versiones anteriores del backend la creaban también en pagos_capita, que nadie cruza por ella: solo
+-- encarecía cada carga de cápita
+IF OBJECT_ID('dbo.pagos_capita','U') IS NOT NULL
+   AND EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_pagos_capita_clave_cruce' AND object_id = OBJECT_ID('dbo.pagos_capita'))
+  DROP INDEX IX_pagos_capita_clave_cruce ON dbo.pagos_capita;
+GO
+IF OBJECT_ID('dbo.pagos_capita','U') IS NOT NULL AND COL_LENGTH('dbo.pagos_capita','clave_cruce') IS NOT NULL
+  ALTER TABLE dbo.pagos_capita DROP COLUMN clave_cruce;
+GO
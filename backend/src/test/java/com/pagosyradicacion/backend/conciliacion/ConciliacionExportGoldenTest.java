@@ -0,0 +1,219 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * CSV y XLSX de conciliación sobre las mismas filas (sin base de datos: JdbcTemplate entrega un ResultSet
+ * en memoria). El CSV se compara contra golden_conciliacion.csv. En el XLSX, el resultado guardado de
+ * cada fórmula calculada se compara con el que recalcula POI; sus montos no son los del CSV porque cada
+ * formato conserva sus fórmulas (ver ConciliacionCalculo), solo los estados AO y AP coinciden.
+ */
+class ConciliacionExportGoldenTest {
+
+  private static final String[] COLUMNAS = columnas();
+
+  // Ordenadas como llegan del ORDER BY factura (SQL Server: sin mayúsculas ni espacios finales)
+  private static final List<Object[]> FILAS = List.of(
+      // Auditado al 100%, segunda fila de la misma factura y la misma en minúsculas: un solo SUMIF en el
+      // XLSX, dos totales en el CSV (agrupa por la factura exacta)
+      fila("1", "F-100", "Auditado", "1500000.00", "200000.00", "1300000.00", "0.00", "1300000.00", "100.00"),
+      fila("2", "F-100", "Auditado con Glosas", "1500000.00", "0.00", "0.00", "150000.25", "100000.00", "6.67"),
+      fila("3", "f-100", "Radicado", "1500000.00", null, null, null, "0.00", null),
+      // valor_factura null: AQ es #DIV/0! en el XLSX y 0.00 en el CSV
+      fila("4", "F-101", "Devuelto", null, "0.00", "0.00", "0.00", "50000.00", "0.00"),
+      // saldos negativos y pago parcial
+      fila("5", "F-102", "AUDITADO", "1000.00", "0.00", "999.99", "500.55", "1000.01", "99.99"),
+      // 1/3 y 2/3: redondeo del porcentaje
+      fila("6", "F-103", "Auditado", "3.00", "0.00", "3.00", "0.00", "1.00", "33.33"),
+      fila("7", "F-104", "Auditado", "3.00", "0.00", "3.00", "0.00", "2.00", "66.67"),
+      // Mismo grupo por el ORDER BY, pero SUMIF distingue el espacio final
+      fila("8", "F-105 ", "Auditado", "800.00", "0.00", "800.00", "0.00", "100.00", "12.50"),
+      fila("9", "F-105", "Auditado", "400.00", "0.00", "400.00", "0.00", "400.00", "100.00"));
+
+  // Columnas calculadas del detalle (0-based): AG, AM, AN, AO, AP, AQ
+  private static final int AG = 32;
+  private static final int AM = 38;
+  private static final int AN = 39;
+  private static final int AO = 40;
+  private static final int AP = 41;
+  private static final int AQ = 42;
+
+  private ConciliacionPlantillaCache plantillas;
+  private ConciliacionService service;
+
+  @BeforeEach
+  void setUp() {
+    JdbcTemplate jdbc = new JdbcTemplate() {
+      @Override
+      public void query(String sql, RowCallbackHandler rch, Object... args) {
+        try {
+          for (Object[] fila : FILAS) rch.processRow(resultSet(fila));
+        } catch (SQLException ex) {
+          throw new IllegalStateException(ex);
+        }
+      }
+    };
+    plantillas = new ConciliacionPlantillaCache();
+    service = new ConciliacionService(jdbc, plantillas, "formulas");
+  }
+
+  @Test
+  void csvIgualAlGolden() throws IOException {
+    String esperado;
+    try (InputStream in = getClass().getResourceAsStream("/conciliacion/golden_conciliacion.csv")) {
+      esperado = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    assertThat(service.exportCsvPorNit("900123456")).isEqualTo(esperado);
+  }
+
+  @Test
+  void xlsxGuardaLoQueRecalculaExcel() throws IOException {
+    List<String[]> csv = csv(service.exportCsvPorNit("900123456"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    service.exportXlsxPorNit("900123456", out, ConciliacionService.EstadoCuentaModo.AMBOS);
+
+    // Con plantilla la hoja de detalle conserva su nombre y posición
+    ConciliacionPlantillaCache.Base base = plantillas.abrir();
+    int detalleIdx = base.keepIdx();
+    base.workbook().close();
+    try (XSSFWorkbook wb = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()))) {
+      Sheet detalle = wb.getSheetAt(detalleIdx);
+      FormulaEvaluator evaluador = wb.getCreationHelper().createFormulaEvaluator();
+      assertThat(detalle.getLastRowNum()).isEqualTo(FILAS.size());
+
+      for (int i = 0; i < FILAS.size(); i++) {
+        String[] linea = csv.get(i + 1);
+        Row row = detalle.getRow(i + 1);
+        for (int col : new int[] { AG, AM, AN }) {
+          Cell cell = row.getCell(col);
+          assertThat(cell.getCellType()).isEqualTo(CellType.FORMULA);
+          assertThat(centavos(cell.getNumericCellValue())).as("fila %d col %d", i, col)
+              .isEqualTo(centavos(evaluador.evaluate(cell).getNumberValue()));
+        }
+        assertThat(row.getCell(AO).getStringCellValue()).isEqualTo(linea[AO]);
+        assertThat(row.getCell(AP).getStringCellValue()).isEqualTo(linea[AP]);
+
+        Cell aq = row.getCell(AQ);
+        var recalculado = evaluador.evaluate(aq);
+        if (aq.getCachedFormulaResultType() == CellType.ERROR) {
+          assertThat(aq.getErrorCellValue()).isEqualTo(FormulaError.DIV0.getCode());
+          assertThat(recalculado.getCellType()).isEqualTo(CellType.ERROR);
+        } else {
+          assertThat(porcentaje(aq.getNumericCellValue())).as("fila %d AQ", i)
+              .isEqualTo(porcentaje(recalculado.getNumberValue()));
+        }
+      }
+    }
+  }
+
+  @Test
+  void porcentajeRedondeaComoBigDecimal() {
+    long[][] casos = { { 1, 3 }, { 2, 3 }, { 1, 8 }, { -1, 8 }, { 5, 7 }, { 1, 160_000 }, { 12_345_678_901L, 98_765_432_109L } };
+    for (long[] caso : casos) {
+      BigDecimal esperado = BigDecimal.valueOf(caso[0]).divide(BigDecimal.valueOf(caso[1]), 6, RoundingMode.HALF_UP)
+          .multiply(new BigDecimal("100")).setScale(2, RoundingMode.HALF_UP);
+      ConciliacionCalculo calculo = new ConciliacionCalculo(ConciliacionCalculo.Formulas.CSV);
+      calculo.totalPagado = caso[0];
+      calculo.totalFactura = caso[1];
+      assertThat(ConciliacionCalculo.texto(calculo.porcAplicadoCentesimas())).isEqualTo(esperado.toString());
+    }
+  }
+
+  private static BigDecimal centavos(double v) {
+    return BigDecimal.valueOf(v).setScale(2, RoundingMode.HALF_UP);
+  }
+
+  private static String porcentaje(double fraccion) {
+    return BigDecimal.valueOf(fraccion).setScale(6, RoundingMode.HALF_UP).movePointRight(2)
+        .setScale(2, RoundingMode.HALF_UP).toString();
+  }
+
+  // Los textos del fixture no llevan ';' ni comillas: basta con partir por ';'
+  private static List<String[]> csv(String texto) {
+    List<String[]> lineas = new ArrayList<>();
+    for (String linea : texto.split("\n")) lineas.add(linea.split(";", -1));
+    return lineas;
+  }
+
+  private static Object[] fila(String id, String factura, String estadoAplicacion, String valorFactura,
+      String actualAceptado, String actualReconocido, String finalRatificado, String pagado, String porcentaje) {
+    Object[] fila = new Object[COLUMNAS.length];
+    for (int i = 0; i < ConciliacionFila.TEXTOS.length; i++) fila[i] = "";
+    fila[ConciliacionFila.ID] = id;
+    fila[ConciliacionFila.NIT] = "900123456";
+    fila[ConciliacionFila.NOM_PRESTADOR] = "IPS Ejemplo SAS";
+    fila[ConciliacionFila.FACTURA] = factura;
+    fila[ConciliacionFila.ESTADO_APLICACION] = estadoAplicacion;
+    fila[ConciliacionFila.FECHA_RADICACION] = "2024-03-15";
+    fila[ConciliacionFila.FECHA_FACTURA] = "2024-02-28";
+    int m = ConciliacionFila.TEXTOS.length;
+    for (int i = 0; i < ConciliacionFila.MONTOS.length; i++) fila[m + i] = new BigDecimal("0.00");
+    fila[m + ConciliacionFila.VALOR_FACTURA] = monto(valorFactura);
+    fila[m + ConciliacionFila.VALOR_ACTUAL_ACEPTADO] = monto(actualAceptado);
+    fila[m + ConciliacionFila.VALOR_ACTUAL_RECONOCIDO] = monto(actualReconocido);
+    fila[m + ConciliacionFila.VALOR_FINAL_RATIFICADO] = monto(finalRatificado);
+    fila[m + ConciliacionFila.VALOR_PAGADO] = monto(pagado);
+    fila[m + ConciliacionFila.PORCENTAJE_PAGO] = monto(porcentaje);
+    return fila;
+  }
+
+  private static BigDecimal monto(String v) {
+    return v == null ? null : new BigDecimal(v);
+  }
+
+  private static String[] columnas() {
+    String[] columnas = new String[ConciliacionFila.TEXTOS.length + ConciliacionFila.MONTOS.length];
+    System.arraycopy(ConciliacionFila.TEXTOS, 0, columnas, 0, ConciliacionFila.TEXTOS.length);
+    System.arraycopy(ConciliacionFila.MONTOS, 0, columnas, ConciliacionFila.TEXTOS.length, ConciliacionFila.MONTOS.length);
+    return columnas;
+  }
+
+  // ===== ResultSet en memoria (una fila) =====
+
+  private static ResultSet resultSet(Object[] fila) {
+    ResultSetMetaData md = (ResultSetMetaData) Proxy.newProxyInstance(
+        ResultSetMetaData.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, (p, m, args) -> switch (m.getName()) {
+          case "getColumnCount" -> COLUMNAS.length;
+          case "getColumnLabel", "getColumnName" -> COLUMNAS[(Integer) args[0] - 1];
+          // Montos DECIMAL(18,2)
+          case "getScale" -> (Integer) args[0] > ConciliacionFila.TEXTOS.length ? 2 : 0;
+          default -> throw new UnsupportedOperationException(m.getName());
+        });
+    return (ResultSet) Proxy.newProxyInstance(
+        ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (p, m, args) -> {
+          if (m.getName().equals("getMetaData")) return md;
+          Object v = fila[(Integer) args[0] - 1];
+          return switch (m.getName()) {
+            case "getObject", "getBigDecimal" -> v;
+            case "getString" -> v == null ? null : v.toString();
+            default -> throw new UnsupportedOperationException(m.getName());
+          };
+        });
+  }
+}
@@ -0,0 +1,338 @@
+package com.pagosyradicacion.backend.conciliacion;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.LocaleUtil;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Totales de las hojas de resumen que ResumenPrecalculado calcula en Java, contra lo que da POI al evaluar
+ * la fórmula original sobre el mismo libro exportado (modo AMBOS: fórmula con resultado en caché). Antes de
+ * evaluar se le da a POI lo que Excel es-CO entiende y POI no: los criterios de fecha (">=01/01/2024") pasan
+ * a número de serie y COUNTA(_xlfn.UNIQUE(..)) al conteo de valores distintos hecho aquí sobre el detalle.
+ * Sin base de datos: JdbcTemplate entrega filas en memoria.
+ */
+class ResumenPrecalculadoTest {
+
+  private static final String[] COLUMNAS = columnas();
+
+  private static final int PREFIJO_FACTURA = 9;
+  private static final int RANGO_DIAS = 13;
+  private static final int VOUCHER = ConciliacionFila.TEXTOS_INICIO + 1;
+
+  // El rango de la plantilla lleva un guion suave: "dí­as"
+  private static final String DIAS_0_30 = "0 a 30 dí­as";
+  private static final String DIAS_31_45 = "31 a 45 dí­as";
+
+  // Ordenadas por factura, como llegan del ORDER BY
+  private static final List<Object[]> FILAS = List.of(
+      // Misma factura con y sin voucher
+      fila("1", "F-100", "FE-100", "Auditado", "2024-03-10", DIAS_0_30, "1000.00", "400.00", "V1"),
+      fila("2", "F-100", "FE-100", "Auditado", "2024-03-10", DIAS_0_30, "1000.00", "600.00", ""),
+      // Bordes de las vigencias; prefijo repetido en minúsculas (UNIQUE no distingue mayúsculas)
+      fila("3", "F-101", "fe-100", "Radicado", "2024-12-31", DIAS_31_45, "2500.50", "0.00", ""),
+      fila("4", "F-102", "FE-102", "", "2025-01-01", "46 a 60 dí­as", "300.00", "0.00", "V2"),
+      fila("5", "F-103", "FE-103", "Devuelto", "2023-12-31", "Mayor a 180 días", "700.00", "100.00", "V3"),
+      // Fecha dd/MM/yyyy y estado en mayúsculas
+      fila("6", "F-104", "FE-104", "AUDITADO", "15/03/2024", "61 a 90 días", "50.25", "50.25", "V4"),
+      // Sin fecha de radicación: la celda queda como texto vacío
+      fila("7", "F-105", "FE-105", "Auditado con Glosas", "", DIAS_0_30, "10.00", "0.00", "V5"));
+
+  // Prefijos distintos del fixture (FE-100, FE-102, FE-103, FE-104, FE-105)
+  private static final int PREFIJOS_DISTINTOS = 5;
+
+  private static final Pattern UNICOS = Pattern.compile(
+      "COUNTA\\(_xlfn\\.UNIQUE\\((?:'(?:[^']|'')+'|[A-Za-z_][A-Za-z0-9_.]*)!\\$?([A-Z]{1,3}):\\$?[A-Z]{1,3}\\)\\)");
+
+  // Criterio de fecha d/M/uuuu dentro de una cadena: POI lo compara como texto
+  private static final Pattern CRITERIO_FECHA = Pattern.compile("\"(>=|<=|<>|>|<|=)?([0-9]{1,2})/([0-9]{1,2})/([0-9]{4})\"");
+
+  private JdbcTemplate jdbc;
+
+  @BeforeEach
+  void setUp() {
+    jdbc = new JdbcTemplate() {
+      @Override
+      public void query(String sql, RowCallbackHandler rch, Object... args) {
+        try {
+          for (Object[] fila : FILAS) rch.processRow(resultSet(fila));
+        } catch (SQLException ex) {
+          throw new IllegalStateException(ex);
+        }
+      }
+    };
+  }
+
+  @Test
+  void plantillaGuardaLoQueCalculaPoi() throws IOException {
+    ConciliacionPlantillaCache plantillas = new ConciliacionPlantillaCache();
+    int detalleIdx = detalleIdx(plantillas);
+    try (XSSFWorkbook wb = exportar(plantillas, ConciliacionService.EstadoCuentaModo.AMBOS)) {
+      Map<String, CellValue> recalculado = compararConPoi(wb, detalleIdx);
+      XSSFSheet resumen = wb.getSheet("Resumen");
+
+      // Vigencias 2024 y 2025 por fecha de radicación (criterios ">=01/01/2024" en d/M/uuuu)
+      assertThat(centavos(valor(resumen, "C15"))).isEqualTo(centavos(1000 + 1000 + 2500.50 + 50.25));
+      assertThat(centavos(valor(resumen, "D15"))).isEqualTo(centavos(300));
+      // Radicación corriente: SUMIF por texto del rango de días
+      assertThat(centavos(valor(resumen, "D16"))).isEqualTo(centavos(1000 + 1000 + 2500.50 + 300 + 10));
+      // COUNTA(_xlfn.UNIQUE(J:J))-2: sin el encabezado ni el vacío del resto de la columna
+      assertThat(valor(resumen, "D13")).isEqualTo((double) PREFIJOS_DISTINTOS);
+      assertThat(recalculado.get("Resumen!D13").getNumberValue()).isEqualTo((double) PREFIJOS_DISTINTOS);
+      assertThat(resumen.getRow(2).getCell(2).getStringCellValue()).isEqualTo("900123456");
+    }
+  }
+
+  @Test
+  void valoresEscribeLosMismosNumerosSinFormulas() throws IOException {
+    ConciliacionPlantillaCache plantillas = new ConciliacionPlantillaCache();
+    try (XSSFWorkbook ambos = exportar(plantillas, ConciliacionService.EstadoCuentaModo.AMBOS);
+        XSSFWorkbook valores = exportar(plantillas, ConciliacionService.EstadoCuentaModo.VALORES)) {
+      int detalleIdx = detalleIdx(plantillas);
+      int revisadas = 0;
+      for (int s = 0; s < ambos.getNumberOfSheets(); s++) {
+        if (s == detalleIdx) continue;
+        Sheet hoja = valores.getSheetAt(s);
+        for (Row row : ambos.getSheetAt(s)) {
+          for (Cell c : row) {
+            if (c.getCellType() != CellType.FORMULA) continue;
+            Cell v = hoja.getRow(c.getRowIndex()).getCell(c.getColumnIndex());
+            String donde = hoja.getSheetName() + "!" + c.getAddress();
+            assertThat(v.getCellType()).as(donde).isEqualTo(c.getCachedFormulaResultType());
+            if (v.getCellType() == CellType.STRING) {
+              assertThat(v.getStringCellValue()).as(donde).isEqualTo(c.getStringCellValue());
+            } else {
+              assertThat(v.getNumericCellValue()).as(donde).isEqualTo(c.getNumericCellValue());
+            }
+            revisadas++;
+          }
+        }
+      }
+      assertThat(revisadas).isGreaterThan(0);
+    }
+  }
+
+  @Test
+  void criteriosDistintoVacioYFechaSinCeros() throws IOException {
+    String d = "'" + ConciliacionPlantillaCache.HOJA_DETALLE + "'!";
+    Map<String, String> formulas = new LinkedHashMap<>();
+    formulas.put("A1", "COUNTIFS(" + d + "L:L,\"<>\")");
+    formulas.put("A2", "COUNTIF(" + d + "AK:AK,\"\")");
+    formulas.put("A3", "SUMIFS(" + d + "P:P," + d + "AK:AK,\"\")");
+    formulas.put("A4", "SUMIFS(" + d + "P:P," + d + "L:L,\"<>Auditado\")");
+    formulas.put("A5", "COUNTIFS(" + d + "L:L,\"<>Auditado\")");
+    formulas.put("A6", "COUNTIFS(" + d + "L:L,\"<>Auditado\"," + d + "M:M,\">=1/1/2024\")");
+    formulas.put("A7", "SUMIFS(" + d + "AH:AH," + d + "M:M,\">=1/3/2024\"," + d + "M:M,\"<=31/12/2024\")");
+    formulas.put("A8", "SUMIFS(" + d + "P:P," + d + "M:M,\"\")");
+    formulas.put("A9", "SUMIF(" + d + "L:L,\"audit*\"," + d + "P:P)+A1");
+    formulas.put("A10", "COUNTA(_xlfn.UNIQUE(" + d + "J:J))");
+    formulas.put("A11", "COUNTA(" + d + "AK:AK)");
+
+    ConciliacionPlantillaCache plantillas = new ConciliacionPlantillaCache() {
+      @Override
+      Base abrir() {
+        XSSFWorkbook wb = new XSSFWorkbook();
+        XSSFSheet resumen = wb.createSheet("Resumen");
+        wb.createSheet(ConciliacionPlantillaCache.HOJA_DETALLE);
+        formulas.forEach((ref, formula) -> {
+          CellReference r = new CellReference(ref);
+          XSSFRow row = resumen.getRow(r.getRow()) != null ? resumen.getRow(r.getRow()) : resumen.createRow(r.getRow());
+          XSSFCell celda = row.createCell(r.getCol());
+          // setCellFormula no conoce _xlfn.UNIQUE: el texto se pone directo, como viene en una plantilla de Excel
+          celda.setCellFormula("0");
+          celda.getCTCell().getF().setStringValue(formula);
+        });
+        return new Base(wb, 1, false, true);
+      }
+    };
+    try (XSSFWorkbook wb = exportar(plantillas, ConciliacionService.EstadoCuentaModo.AMBOS)) {
+      compararConPoi(wb, 1);
+      XSSFSheet resumen = wb.getSheet("Resumen");
+      // Encabezado + 7 filas: el voucher vacío se escribe como texto vacío y COUNTA lo cuenta
+      assertThat(valor(resumen, "A11")).isEqualTo(8d);
+      // Encabezado + FE-100, FE-102, FE-103, FE-104, FE-105 + vacío
+      assertThat(valor(resumen, "A10")).isEqualTo((double) PREFIJOS_DISTINTOS + 2);
+      assertThat(centavos(valor(resumen, "A3"))).isEqualTo(centavos(1000 + 2500.50));
+      assertThat(centavos(valor(resumen, "A7"))).isEqualTo(centavos(400 + 600 + 50.25));
+    }
+  }
+
+  private record Guardado(String donde, XSSFCell celda, CellType tipo, double numero, String texto) {}
+
+  /**
+   * Compara el resultado en caché de cada fórmula de las hojas de resumen con el que da POI al evaluar la
+   * fórmula original (en su forma equivalente, ver equivalente()). Devuelve lo recalculado por "Hoja!A1".
+   */
+  private static Map<String, CellValue> compararConPoi(XSSFWorkbook wb, int detalleIdx) {
+    Sheet detalle = wb.getSheetAt(detalleIdx);
+    // Primero se guarda lo que quedó en caché y se reescriben todas: E15 = SUM(C15:D15) evalúa C15 de nuevo
+    List<Guardado> guardados = new ArrayList<>();
+    for (int s = 0; s < wb.getNumberOfSheets(); s++) {
+      if (s == detalleIdx) continue;
+      for (Row row : wb.getSheetAt(s)) {
+        for (Cell c : row) {
+          if (c.getCellType() != CellType.FORMULA) continue;
+          XSSFCell celda = (XSSFCell) c;
+          CellType tipo = celda.getCachedFormulaResultType();
+          guardados.add(new Guardado(wb.getSheetName(s) + "!" + celda.getReference(), celda, tipo,
+              tipo == CellType.NUMERIC ? celda.getNumericCellValue() : 0,
+              tipo == CellType.STRING ? celda.getStringCellValue() : null));
+        }
+      }
+    }
+    for (Guardado g : guardados) {
+      String formula = g.celda().getCTCell().getF().getStringValue();
+      // Las celdas que siguen a una fórmula compartida no llevan texto propio
+      if (formula != null && !formula.isEmpty()) g.celda().getCTCell().getF().setStringValue(equivalente(formula, detalle));
+    }
+
+    Map<String, CellValue> recalculados = new LinkedHashMap<>();
+    LocaleUtil.setUserLocale(new Locale("es", "CO")); // TEXT(..., "dd-mmmm-yyyy") como en Excel es-CO
+    try {
+      FormulaEvaluator evaluador = wb.getCreationHelper().createFormulaEvaluator();
+      for (Guardado g : guardados) {
+        CellValue recalculado = evaluador.evaluate(g.celda());
+        recalculados.put(g.donde(), recalculado);
+        assertThat(g.tipo()).as(g.donde()).isEqualTo(recalculado.getCellType());
+        if (recalculado.getCellType() == CellType.STRING) {
+          assertThat(g.texto()).as(g.donde()).isEqualTo(recalculado.getStringValue());
+        } else {
+          assertThat(centavos(g.numero())).as(g.donde()).isEqualTo(centavos(recalculado.getNumberValue()));
+        }
+      }
+    } finally {
+      LocaleUtil.resetUserLocale();
+    }
+    return recalculados;
+  }
+
+  /** La fórmula con fechas de criterio como número de serie y COUNTA(_xlfn.UNIQUE(..)) ya contado. */
+  private static String equivalente(String formula, Sheet detalle) {
+    String conSeriales = CRITERIO_FECHA.matcher(formula).replaceAll(f -> {
+      LocalDate fecha = LocalDate.of(Integer.parseInt(f.group(4)), Integer.parseInt(f.group(3)), Integer.parseInt(f.group(2)));
+      return Matcher.quoteReplacement('"' + (f.group(1) == null ? "" : f.group(1)) + (long) DateUtil.getExcelDate(fecha) + '"');
+    });
+    return UNICOS.matcher(conSeriales).replaceAll(
+        u -> Long.toString(unicos(detalle, CellReference.convertColStringToIndex(u.group(1)))));
+  }
+
+  /** COUNTA(UNIQUE(X:X)) en Excel: valores distintos sin distinguir mayúsculas, más el vacío del resto de la columna. */
+  private static long unicos(Sheet detalle, int col) {
+    Set<String> vistos = new HashSet<>();
+    for (Row row : detalle) {
+      Cell c = row.getCell(col);
+      if (c == null || c.getCellType() == CellType.BLANK) continue;
+      vistos.add(c.getCellType() == CellType.NUMERIC
+          ? "n" + c.getNumericCellValue() : "t" + c.getStringCellValue().toLowerCase(Locale.ROOT));
+    }
+    return vistos.size() + 1L;
+  }
+
+  private XSSFWorkbook exportar(ConciliacionPlantillaCache plantillas, ConciliacionService.EstadoCuentaModo modo)
+      throws IOException {
+    ConciliacionService service = new ConciliacionService(jdbc, plantillas, "formulas");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    service.exportXlsxPorNit("900123456", out, modo);
+    return new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static int detalleIdx(ConciliacionPlantillaCache plantillas) throws IOException {
+    ConciliacionPlantillaCache.Base base = plantillas.abrir();
+    base.workbook().close();
+    return base.keepIdx();
+  }
+
+  private static double valor(Sheet hoja, String ref) {
+    CellReference r = new CellReference(ref);
+    return hoja.getRow(r.getRow()).getCell(r.getCol()).getNumericCellValue();
+  }
+
+  private static BigDecimal centavos(double v) {
+    return BigDecimal.valueOf(v).setScale(2, RoundingMode.HALF_UP);
+  }
+
+  private static Object[] fila(String id, String factura, String prefijoFactura, String estadoAplicacion,
+      String fechaRadicacion, String rangoDias, String valorFactura, String pagado, String voucher) {
+    Object[] fila = new Object[COLUMNAS.length];
+    for (int i = 0; i < ConciliacionFila.TEXTOS.length; i++) fila[i] = "";
+    fila[ConciliacionFila.ID] = id;
+    fila[ConciliacionFila.NIT] = "900123456";
+    fila[ConciliacionFila.NOM_PRESTADOR] = "IPS Ejemplo SAS";
+    fila[ConciliacionFila.FACTURA] = factura;
+    fila[PREFIJO_FACTURA] = prefijoFactura;
+    fila[ConciliacionFila.ESTADO_APLICACION] = estadoAplicacion;
+    fila[ConciliacionFila.FECHA_RADICACION] = fechaRadicacion;
+    fila[RANGO_DIAS] = rangoDias;
+    fila[ConciliacionFila.FECHA_FACTURA] = "2024-02-28";
+    fila[VOUCHER] = voucher;
+    int m = ConciliacionFila.TEXTOS.length;
+    for (int i = 0; i < ConciliacionFila.MONTOS.length; i++) fila[m + i] = new BigDecimal("0.00");
+    fila[m + ConciliacionFila.VALOR_FACTURA] = new BigDecimal(valorFactura);
+    fila[m + ConciliacionFila.VALOR_PAGADO] = new BigDecimal(pagado);
+    return fila;
+  }
+
+  private static String[] columnas() {
+    String[] columnas = new String[ConciliacionFila.TEXTOS.length + ConciliacionFila.MONTOS.length];
+    System.arraycopy(ConciliacionFila.TEXTOS, 0, columnas, 0, ConciliacionFila.TEXTOS.length);
+    System.arraycopy(ConciliacionFila.MONTOS, 0, columnas, ConciliacionFila.TEXTOS.length, ConciliacionFila.MONTOS.length);
+    return columnas;
+  }
+
+  // ===== ResultSet en memoria (una fila) =====
+
+  private static ResultSet resultSet(Object[] fila) {
+    ResultSetMetaData md = (ResultSetMetaData) Proxy.newProxyInstance(
+        ResultSetMetaData.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, (p, m, args) -> switch (m.getName()) {
+          case "getColumnCount" -> COLUMNAS.length;
+          case "getColumnLabel", "getColumnName" -> COLUMNAS[(Integer) args[0] - 1];
+          case "getScale" -> (Integer) args[0] > ConciliacionFila.TEXTOS.length ? 2 : 0;
+          default -> throw new UnsupportedOperationException(m.getName());
+        });
+    return (ResultSet) Proxy.newProxyInstance(
+        ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (p, m, args) -> {
+          if (m.getName().equals("getMetaData")) return md;
+          Object v = fila[(Integer) args[0] - 1];
+          return switch (m.getName()) {
+            case "getObject", "getBigDecimal" -> v;
+            case "getString" -> v == null ? null : v.toString();
+            default -> throw new UnsupportedOperationException(m.getName());
+          };
+        });
+  }
+}
@@ -0,0 +1,98 @@
+package com.pagosyradicacion.backend.radicacion;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Limit;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Paginación por cursor de radicacion_filtrada sin base de datos: el repositorio es un proxy que aplica
+ * en memoria el mismo filtro y orden que findByNitNormDespuesDe. id se repite (una fila por pago y por
+ * modalidad), así que el corte de página puede caer en medio de un mismo id.
+ */
+class RadicacionKeysetTest {
+
+  private static final String NIT = "900123456";
+
+  // (id, fila, modalidad_pago): el id 2 tiene cuatro filas en dos modalidades y filas no consecutivas
+  private static final List<RadicacionRegistro> FILAS = List.of(
+      registro(1, 1, "EVENTO"),
+      registro(2, 2, "EVENTO"),
+      registro(2, 3, "EVENTO"),
+      registro(3, 4, "EVENTO"),
+      registro(2, 5, "CAPITA"),
+      registro(2, 6, "CAPITA"),
+      registro(4, 7, "EVENTO"));
+
+  private RadicacionService service;
+
+  @BeforeEach
+  void setUp() {
+    RadicacionRegistroRepository repository = (RadicacionRegistroRepository) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { RadicacionRegistroRepository.class }, (proxy, method, args) -> {
+          if (!method.getName().equals("findByNitNormDespuesDe")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          long id = (Long) args[1];
+          long fila = (Long) args[2];
+          return FILAS.stream()
+              .filter(r -> r.getNitNorm().equals(args[0]))
+              .filter(r -> r.getId() > id || (r.getId() == id && r.getFila() > fila))
+              .sorted(Comparator.comparing(RadicacionRegistro::getId).thenComparing(RadicacionRegistro::getFila))
+              .limit(((Limit) args[3]).max())
+              .toList();
+        });
+    service = new RadicacionService(repository, null, null);
+  }
+
+  @Test
+  void idsRepetidosEnElCorteDePaginaNoSePierden() {
+    for (int size = 1; size <= FILAS.size(); size++) {
+      List<Long> vistas = new ArrayList<>();
+      String token = null;
+      RadicacionKeysetResponse pagina;
+      do {
+        pagina = service.buscarPorNitKeyset(NIT, token, size, false);
+        pagina.content().forEach(r -> vistas.add(r.getFila()));
+        token = pagina.nextToken();
+      } while (pagina.hasMore());
+
+      assertThat(vistas).as("tamaño de página %d", size).containsExactly(1L, 2L, 3L, 5L, 6L, 4L, 7L);
+      assertThat(token).isNull();
+    }
+  }
+
+  @Test
+  void cursorDeOtroNitOFormatoAnteriorSeRechaza() {
+    String token = service.buscarPorNitKeyset(NIT, null, 2, false).nextToken();
+    assertThatThrownBy(() -> service.buscarPorNitKeyset("800000000", token, 2, false))
+        .isInstanceOf(ResponseStatusException.class);
+
+    // Los tokens de antes solo llevaban el id
+    String anterior = Base64.getUrlEncoder().withoutPadding()
+        .encodeToString((NIT + "|2").getBytes(StandardCharsets.UTF_8));
+    assertThatThrownBy(() -> service.buscarPorNitKeyset(NIT, anterior, 2, false))
+        .isInstanceOf(ResponseStatusException.class);
+  }
+
+  private static RadicacionRegistro registro(long id, long fila, String modalidad) {
+    RadicacionRegistro r = new RadicacionRegistro();
+    ReflectionTestUtils.setField(r, "id", id);
+    ReflectionTestUtils.setField(r, "fila", fila);
+    ReflectionTestUtils.setField(r, "modalidadPago", modalidad);
+    ReflectionTestUtils.setField(r, "nit", NIT);
+    ReflectionTestUtils.setField(r, "nitNorm", NIT);
+    return r;
+  }
+}
@@ -1,6 +1,6 @@
 import { Injectable } from '@angular/core';
-import { HttpClient } from '@angular/common/http';
-import { Observable, of, tap } from 'rxjs';
+import { HttpClient, HttpDownloadProgressEvent, HttpEvent, HttpEventType } from '@angular/common/http';
+import { Observable, defer, mergeMap, of, tap } from 'rxjs';
 
 export interface RadicacionRegistro {
   id: number;
@@ -145,4 +145,35 @@ export class RadicacionApiService {
     if (types && types.length) { params.types = types.join(','); }
     return this.http.get(`${this.listaBaseUrl}/metrics/refresh`, { params });
   }
+
+  // Refresh en streaming (NDJSON): emite { type, ok, metrics | error } por tipo apenas el backend lo
+  // termina y al final { done: true }. Usa HttpClient (no EventSource) para conservar el token.
+  refreshListaMetricsStream(types?: string[]): Observable<any> {
+    const params: any = {};
+    if (types && types.length) { params.types = types.join(','); }
+    return defer(() => {
+      let leido = 0;
+      return this.http.get(`${this.listaBaseUrl}/metrics/refresh/stream`, {
+        params, observe: 'events', reportProgress: true, responseType: 'text'
+      }).pipe(
+        mergeMap((ev: HttpEvent<string>) => {
+          let texto: string;
+          let fin: number;
+          if (ev.type === HttpEventType.DownloadProgress) {
+            texto = (ev as HttpDownloadProgressEvent).partialText ?? '';
+            fin = texto.lastIndexOf('\n') + 1;
+          } else if (ev.type === HttpEventType.Response) {
+            texto = ev.body ?? '';
+            fin = texto.length;
+          } else {
+            return [];
+          }
+          if (fin <= leido) { return []; }
+          const lineas = texto.slice(leido, fin).split('\n').filter((l) => l.trim());
+          leido = fin;
+          return lineas.map((l) => JSON.parse(l));
+        })
+      );
+    });
+  }
 }
@@ -100,17 +100,20 @@ export class ListaTareasComponent implements OnInit {
     // Marca todas como cargando
     for (const r of this.reports) this.setLoading(r.type, true);
 
-    this.api.refreshListaMetrics()
+    // Cada tarjeta se llena apenas llega su tipo (el backend los calcula en paralelo)
+    this.api.refreshListaMetricsStream()
       .pipe(finalize(() => { for (const r of this.reports) this.setLoading(r.type, false); }))
       .subscribe({
         next: (res: any) => {
-          const refreshed = res?.refreshed ?? {};
-          for (const r of this.reports) {
-            if (refreshed[r.type]) {
-              this.setMetrics(r.type, refreshed[r.type]);
-              this.setError(r.type, '');
-            }
+          const type = res?.type as ReportType | undefined;
+          if (!type) return;
+          if (res.ok) {
+            this.setMetrics(type, res.metrics ?? null);
+            this.setError(type, '');
+          } else {
+            this.setError(type, res.error || 'Error al consultar métricas');
           }
+          this.setLoading(type, false);
         },
         error: () => {
           // Fallback: si falla el refresh endpoint, forzamos fresh por cada tipo